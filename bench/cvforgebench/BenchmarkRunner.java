@@ -0,0 +1,37 @@
+package cvforgebench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Headless entry point for the CVForge benchmarks.
+ * Writes JMH results as JSON so that runs of different builds can be compared.
+ * 
+ * Usage:
+ * 	java -Dopencv.jar=[jar] -Dopencv.native=[library] -cp [classpath] cvforgebench.BenchmarkRunner [result file] [include regex]
+ */
+public class BenchmarkRunner {
+	
+	public static final String DEFAULTRESULT = "cvforge-bench.json";
+	
+	public static void main(String[] args) throws Exception{
+		String resultFile = (args.length > 0)? args[0] : DEFAULTRESULT;
+		String include = (args.length > 1)? args[1] : "(cvforgeconversion|reflectiontools)\\..*Benchmark.*";
+		
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.include(include)
+				.resultFormat(ResultFormatType.JSON)
+				.result(resultFile)
+				.jvmArgsAppend("-Djava.awt.headless=true");
+		
+		// hand library locations over to forked JVMs
+		for(String key: new String[]{BenchmarkSetup.JARPROPERTY, BenchmarkSetup.NATIVEPROPERTY}){
+			String value = System.getProperty(key);
+			if(value != null)
+				options = options.jvmArgsAppend("-D" + key + "=" + value);
+		}
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,48 @@
+package cvforgebench;
+
+import java.io.File;
+
+/**
+ * Shared setup for all benchmarks.
+ * Paths to the locally installed OpenCV build are passed as system properties:
+ * opencv.jar points to the OpenCV jar, opencv.native to the matching native library.
+ */
+public final class BenchmarkSetup {
+	
+	public static final String JARPROPERTY = "opencv.jar";
+	public static final String NATIVEPROPERTY = "opencv.native";
+	
+	protected static boolean loaded = false;
+	
+	/**
+	 * Load the OpenCV native library once per JVM.
+	 * Also provides the plugin directory property CVForge expects when running outside of ImageJ.
+	 * @throws IllegalStateException If opencv.native is not set.
+	 */
+	public static synchronized void loadOpenCV(){
+		if(System.getProperty("plugins.dir") == null)
+			System.setProperty("plugins.dir", System.getProperty("java.io.tmpdir"));
+		if(loaded)
+			return;
+		
+		System.load(requireProperty(NATIVEPROPERTY));
+		loaded = true;
+	}
+	
+	/**
+	 * Path to the OpenCV jar.
+	 * @return Absolute path to jar.
+	 * @throws IllegalStateException If opencv.jar is not set.
+	 */
+	public static String jarPath(){
+		return new File(requireProperty(JARPROPERTY)).getAbsolutePath();
+	}
+	
+	// fetch system property or fail with a helpful message
+	protected static String requireProperty(String key){
+		String value = System.getProperty(key);
+		if(value == null)
+			throw new IllegalStateException("System property " + key + " not set");
+		return value;
+	}
+}
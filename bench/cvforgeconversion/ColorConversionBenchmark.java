@@ -0,0 +1,52 @@
+package cvforgeconversion;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.opencv.core.Mat;
+
+import ij.process.ColorProcessor;
+
+import cvforgebench.BenchmarkSetup;
+
+/**
+ * Conversion of ColorProcessors into Mats and back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class ColorConversionBenchmark {
+	
+	@Param({"256", "1024", "4096", "8192"})
+	public int size;
+	
+	protected ColorProcessor ip;
+	protected Mat cvmat;
+	
+	@Setup(Level.Trial)
+	public void setup(){
+		BenchmarkSetup.loadOpenCV();
+		ip = (ColorProcessor)ConversionBenchmark.createProcessor(24, size);
+		cvmat = CVForgeConverter.createCompatibleMat(ip);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		cvmat.release();
+	}
+	
+	@Benchmark
+	public Mat toColorMat(){
+		CVForgeConverter.toColorMat(ip, cvmat);
+		return cvmat;
+	}
+	
+	@Benchmark
+	public ColorProcessor toColorProcessor(){
+		CVForgeConverter.toColorProcessor(cvmat, ip);
+		return ip;
+	}
+}
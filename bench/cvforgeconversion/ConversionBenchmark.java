@@ -0,0 +1,89 @@
+package cvforgeconversion;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.opencv.core.Mat;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import cvforgebench.BenchmarkSetup;
+
+/**
+ * Conversion between ImageProcessors and Mats for all ImageJ bit depths and a range of image sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class ConversionBenchmark {
+	
+	@Param({"8", "16", "24", "32"})
+	public int bitDepth;
+	
+	@Param({"256", "1024", "4096", "8192"})
+	public int size;
+	
+	protected ImageProcessor ip;
+	protected Mat cvmat;
+	
+	@Setup(Level.Trial)
+	public void setup(){
+		BenchmarkSetup.loadOpenCV();
+		ip = createProcessor(bitDepth, size);
+		cvmat = CVForgeConverter.createCompatibleMat(ip);
+		CVForgeConverter.ij2cv(ip, cvmat);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		cvmat.release();
+	}
+	
+	@Benchmark
+	public Mat ij2cv(){
+		CVForgeConverter.ij2cv(ip, cvmat);
+		return cvmat;
+	}
+	
+	@Benchmark
+	public ImageProcessor cv2ij(){
+		CVForgeConverter.cv2ij(cvmat, ip);
+		return ip;
+	}
+	
+	/**
+	 * Create a processor of given bit depth, filled with a gradient.
+	 * @param bitDepth 8, 16, 24 or 32.
+	 * @param size Width and height.
+	 * @return Created processor.
+	 */
+	public static ImageProcessor createProcessor(int bitDepth, int size){
+		ImageProcessor ip;
+		switch(bitDepth){
+			case 8:
+				ip = new ByteProcessor(size, size);
+				break;
+			case 16:
+				ip = new ShortProcessor(size, size);
+				break;
+			case 24:
+				ip = new ColorProcessor(size, size);
+				break;
+			case 32:
+				ip = new FloatProcessor(size, size);
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported bit depth " + bitDepth);
+		}
+		for(int i=0; i<size*size; ++i)
+			ip.set(i, i & 0xff);
+		return ip;
+	}
+}
@@ -0,0 +1,85 @@
+package cvforgeconversion;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import ij.process.ImageProcessor;
+
+import cvforgebench.BenchmarkSetup;
+
+/**
+ * Overhead of CVForgeExecuter.execute compared to calling the same OpenCV method directly on a Mat.
+ * Core.bitwise_not is used since it exists in all OpenCV versions and is cheap compared to the conversion.
+ * Calls writing into their source take the in-place path, calls with a separate destination convert both images.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class ExecutionBenchmark {
+	
+	@Param({"8", "16", "24", "32"})
+	public int bitDepth;
+	
+	@Param({"256", "1024", "4096", "8192"})
+	public int size;
+	
+	protected ImageProcessor ip;
+	protected ImageProcessor dst;
+	protected Mat cvmat;
+	protected Mat cvdst;
+	protected Method method;
+	protected Object[] args;
+	protected Object[] separateArgs;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception{
+		BenchmarkSetup.loadOpenCV();
+		ip = ConversionBenchmark.createProcessor(bitDepth, size);
+		cvmat = CVForgeConverter.createCompatibleMat(ip);
+		CVForgeConverter.ij2cv(ip, cvmat);
+		method = Core.class.getMethod("bitwise_not", Mat.class, Mat.class);
+		args = new Object[]{ip, ip};
+		
+		dst = ip.duplicate();
+		cvdst = CVForgeConverter.createCompatibleMat(dst);
+		separateArgs = new Object[]{ip, dst};
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		cvmat.release();
+		cvdst.release();
+		MatPool.clear();
+	}
+	
+	@Benchmark
+	public ImageProcessor execute() throws Exception{
+		CVForgeExecuter.execute(method, args, "");
+		return ip;
+	}
+	
+	@Benchmark
+	public Mat direct(){
+		Core.bitwise_not(cvmat, cvmat);
+		return cvmat;
+	}
+	
+	@Benchmark
+	public ImageProcessor executeSeparate() throws Exception{
+		CVForgeExecuter.execute(method, separateArgs, "");
+		return dst;
+	}
+	
+	@Benchmark
+	public Mat directSeparate(){
+		Core.bitwise_not(cvmat, cvdst);
+		return cvdst;
+	}
+}
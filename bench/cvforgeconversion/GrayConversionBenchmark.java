@@ -0,0 +1,59 @@
+package cvforgeconversion;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.opencv.core.Mat;
+
+import ij.process.ImageProcessor;
+
+import cvforgebench.BenchmarkSetup;
+
+/**
+ * Back-conversion of gray-value Mats into ImageProcessors, whole image and region of interest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class GrayConversionBenchmark {
+	
+	@Param({"8", "16", "32"})
+	public int bitDepth;
+	
+	@Param({"256", "1024", "4096", "8192"})
+	public int size;
+	
+	protected ImageProcessor ip;
+	protected Mat cvmat;
+	protected Mat roi;
+	
+	@Setup(Level.Trial)
+	public void setup(){
+		BenchmarkSetup.loadOpenCV();
+		ip = ConversionBenchmark.createProcessor(bitDepth, size);
+		cvmat = CVForgeConverter.createCompatibleMat(ip);
+		CVForgeConverter.ij2cv(ip, cvmat);
+		roi = cvmat.submat(size/4, size/2, size/4, size/2);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		roi.release();
+		cvmat.release();
+	}
+	
+	@Benchmark
+	public ImageProcessor toGrayProcessor(){
+		CVForgeConverter.toGrayProcessor(cvmat, ip);
+		return ip;
+	}
+	
+	@Benchmark
+	public ImageProcessor toGrayProcessorRoi(){
+		CVForgeConverter.toGrayProcessor(roi, ip, size/4, size/4);
+		return ip;
+	}
+}
@@ -0,0 +1,55 @@
+package reflectiontools;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import cvforgebench.BenchmarkSetup;
+
+/**
+ * Scanning of the OpenCV jar given by the opencv.jar property.
+ * generateMethodCache loads every class with a new class loader, as a library switch does.
+ * The loader does not delegate to the application class path, which also holds the OpenCV jar,
+ * so classes are defined again on every invocation instead of being found in the parent.
+ * readClassInfos and generateMethodIndex measure the scan without loading classes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class JarInspectorBenchmark {
+	
+	protected String path;
+	protected ClassLoader isolated;
+	protected List<ClassFileInfo> infos;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception{
+		path = BenchmarkSetup.jarPath();
+		// parent of all scanning loaders, delegates to the bootstrap loader only
+		isolated = new URLClassLoader(new URL[0], null);
+		infos = JarInspector.readClassInfos(path);
+	}
+	
+	@Benchmark
+	public HashMap<String, Method> generateMethodCache() throws Exception{
+		return JarInspector.generateMethodCache(path, isolated);
+	}
+	
+	@Benchmark
+	public List<ClassFileInfo> readClassInfos() throws Exception{
+		return JarInspector.readClassInfos(path);
+	}
+	
+	@Benchmark
+	public HashMap<String, MethodInfo> generateMethodIndex(){
+		return JarInspector.generateMethodIndex(infos);
+	}
+}
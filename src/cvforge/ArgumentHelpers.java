@@ -0,0 +1,115 @@
+package cvforge;
+
+import ij.ImagePlus;
+import ij.WindowManager;
+
+/**
+ * Helper methods which turn textual arguments into objects for method calls.
+ * Used by macros and pipelines, so nothing here depends on Swing.
+ */
+public final class ArgumentHelpers {
+	// declarations for parameter recognition
+	public static final String CVMAT = "org.opencv.core.Mat";
+	
+	/**
+	 * Convert String to given primitive class type (String included).
+	 * If conversion to primitive is not possible, return null.
+	 * @param src String to be converted
+	 * @param classType Class to which src is to be converted.
+	 * @return Converted Primitive/ String.
+	 */
+	public static Object stringToPrimitive(String src, Class classType){
+		if(classType == Boolean.TYPE){
+			return Boolean.parseBoolean(src);
+		}else if(classType == Byte.TYPE){
+			return (byte)Float.parseFloat(src);
+		}else if(classType == Short.TYPE){
+			return (short)Float.parseFloat(src);
+		}else if(classType == Integer.TYPE){
+			return (int)Double.parseDouble(src);
+		}else if(classType == Long.TYPE){
+			return (long)Double.parseDouble(src);
+		}else if(classType == Float.TYPE){
+			return Float.parseFloat(src);
+		} else if(classType == Double.TYPE){
+			return Double.parseDouble(src);
+		} else if(classType == String.class){
+			return src;
+		}
+		return null;
+	}
+	
+	/**
+	 * Look up the input of a Mat parameter by name.
+	 * Open images take precedence, cached Mats are passed on as they are without any conversion.
+	 * @param name Image title or cache key.
+	 * @param wholeStack Set true to get the ImagePlus of an image instead of its current processor.
+	 * @return ImagePlus, ImageProcessor or cached object, null if nothing of that name exists.
+	 */
+	public static Object resolveImage(String name, boolean wholeStack){
+		ImagePlus imp = WindowManager.getImage(name);
+		if(imp != null)
+			return wholeStack? imp : imp.getProcessor();
+		return CVForgeCache.get(name);
+	}
+	
+	/**
+	 * Parse a slice range like "3-17" or "5". 
+	 * Empty Strings and "all" denote the whole stack.
+	 * @param range String representation of range.
+	 * @return Array with first and last slice. The last slice is 0 if the range is open-ended.
+	 * @throws NumberFormatException If the range is malformed.
+	 */
+	public static int[] parseSliceRange(String range){
+		range = range.trim();
+		if(range.isEmpty() || range.equalsIgnoreCase("all"))
+			return new int[]{1, 0};
+		
+		int split = range.indexOf('-');
+		if(split == -1){
+			int slice = Integer.parseInt(range);
+			return new int[]{slice, slice};
+		}
+		int first = Integer.parseInt(range.substring(0, split).trim());
+		String end = range.substring(split+1).trim();
+		int last = end.isEmpty()? 0 : Integer.parseInt(end);
+		return new int[]{first, last};
+	}
+	
+	/**
+	 * Check if a range String addresses hyperstack dimensions, e.g. "c:1-2,t:5-".
+	 * @param range String representation of range.
+	 * @return true, if the range contains dimension prefixes.
+	 */
+	public static boolean isHyperstackRange(String range){
+		return range.indexOf(':') != -1;
+	}
+	
+	/**
+	 * Parse a hyperstack range like "c:1-2,z:all,t:5-".
+	 * Dimensions are separated by commas and prefixed with c, z or t.
+	 * Dimensions not mentioned are processed entirely.
+	 * @param range String representation of range.
+	 * @return Array with first and last positions of channels, slices and frames: {c0, c1, z0, z1, t0, t1}.
+	 * @throws NumberFormatException If the range is malformed.
+	 */
+	public static int[] parseHyperstackRange(String range){
+		int[] res = {1, 0, 1, 0, 1, 0};
+		for(String dim: range.split(",")){
+			dim = dim.trim();
+			if(dim.isEmpty())
+				continue;
+			
+			int split = dim.indexOf(':');
+			String key = (split == -1)? "" : dim.substring(0, split).trim().toLowerCase();
+			int d = (key.length() == 1)? "czt".indexOf(key) : -1;
+			if(d == -1)
+				throw new NumberFormatException("Unknown dimension in range " + dim);
+			
+			int[] sub = parseSliceRange(dim.substring(split+1));
+			res[2*d] = sub[0];
+			res[2*d+1] = sub[1];
+		}
+		return res;
+	}
+}
@@ -1,9 +1,9 @@
 package cvforge;
 
+import reflectiontools.ClassFileInfo;
 import reflectiontools.JarInspector;
 
 import javax.swing.JTree;
-import javax.swing.tree.DefaultMutableTreeNode;
 
 import ij.IJ;
 
@@ -13,7 +13,6 @@ import java.io.CharArrayWriter;
 
 import java.io.File;
 import java.io.PrintWriter;
-import java.lang.reflect.Method;
 import java.util.*;
 
 /**
@@ -38,9 +37,12 @@ public class CVForge {
 
     // buffered variables
     protected JTree libTree;   												// class and method tree for loaded lib
-    protected HashMap<String, Class> classCache;							// mapping of strings to classes
-    protected HashMap<String, Method> methodCache;                          // mapping of strings to methods
+    protected FilteredTreeNode treeRoot;                                    // invisible root of libTree
+    protected HashMap<String, String> classCache;							// mapping of simple class names to binary names
+    protected MethodIndex methodCache;                                      // mapping of strings to methods, resolved on demand
+    protected List<ClassFileInfo> libClasses;                               // class metadata of loaded lib, scanned once
     protected HashMap<String, String> config;                               // config map
+    protected LibrarySnapshot snapshot;                                     // scanned libraries of earlier sessions
 
     //protected CVForgeClassLoader forgeLoader = new CVForgeClassLoader();
     protected CVForgeClassLoader forgeLoader;
@@ -62,7 +64,7 @@ public class CVForge {
     	dir = dir.replace("%20", " ");
     	
     	if(dir.endsWith("plugins") || dir.endsWith("plugins"+SEP)){
-    		return dir;
+    		return dir.endsWith(SEP)? dir : dir + SEP;
     	}else{
         	dir += SEP + "plugins" + SEP;
         	return dir;	
@@ -74,6 +76,9 @@ public class CVForge {
      */
     public void init(){
         loadConfig(CONFIGFILE);
+        snapshot = LibrarySnapshot.load(LibrarySnapshot.SNAPSHOTFILE);
+        CVForgeCache.setBudget(getCacheBudget());
+        CVForgeCache.setSpillDirectory(getSpillDirectory());
         
         libsAvailable = new ArrayList<String>();
         String[] foundJars = CVInstaller.getInstalledOpenCV();
@@ -122,15 +127,48 @@ public class CVForge {
      * @param version Library version/ path to load.
      */
     public void loadOpenCV(String version) throws Exception{
+    	loadOpenCV(version, new FilteredTreeNode("root"), LibTreeBuilder.DIRECT);
+    }
+    
+    /**
+     * Loads the active OpenCV jar and the shards without building a library tree.
+     * Only the method index and Executer are set up, so no Swing components are created.
+     * Used for macros in headless mode.
+     * @throws Exception If loading fails.
+     */
+    public void loadLibrary() throws Exception{
+    	loadOpenCV(libPath, null, null);
+    	loadShards(null);
+    }
+    
+    /**
+     * Loads the OpenCV jar identified by the argument.
+     * The library tree is built below the given root, which is hidden in the resulting JTree.
+     * Tree nodes are handed to the sink as they are discovered, before the native library is loaded.
+     * The JTree returned by getLibraryTree() is only created for LibTreeBuilder.DIRECT, other sinks feed a tree shown by the caller.
+     * @param version Library version/ path to load.
+     * @param root Invisible root node of the library tree, null to skip the tree.
+     * @param sink Sink attaching tree nodes, e.g. on the event dispatch thread if the tree is already shown. Null to skip the tree.
+     */
+    public void loadOpenCV(String version, FilteredTreeNode root, LibTreeBuilder.TreeSink sink) throws Exception{
     	String nativePath, jarPath, libName;
     	String bits = (BITS.equals("64"))? "64": "86"; 
 
-    	classCache = new HashMap<String, Class>();
-        methodCache = new HashMap<String, Method>();  
+    	classCache = new HashMap<String, String>();
+        methodCache = new MethodIndex(null);  
+        libClasses = new ArrayList<ClassFileInfo>();
+        treeRoot = root;
+        libTree = null;
+        // other sinks feed a tree owned by the caller, which must not get a second model off the event dispatch thread
+        if((root != null) && (sink == LibTreeBuilder.DIRECT)){
+        	libTree = new JTree(new FilteredTreeModel(root));
+        	libTree.setRootVisible(false);
+        }
     	
     	boolean isWin = OS.contains("Windows");
     	boolean isLinux = OS.contains("Linux");
     	boolean isMac = OS.contains("Mac");
+    	boolean treeGenerated = false;
     	
     	try{
     		// fallback if libPath in config file does not exist
@@ -162,10 +200,17 @@ public class CVForge {
 	            
 	            forgeLoader = new CVForgeClassLoader();
 	            forgeLoader.addURL(libPath);
-	            methodCache = JarInspector.generateMethodCache(libPath, forgeLoader);
-	            classCache = JarInspector.generateConstructableClassCache(libPath, forgeLoader);
-	        
-	            List<Class> classes = JarInspector.loadClassesFromJar(libPath, forgeLoader);
+	            
+	            // read class metadata once and derive all caches from it, classes are loaded on first call
+	            // unchanged jars are restored from the snapshot instead of being rescanned
+	            libClasses = snapshot.readClassInfos(libPath);
+	            methodCache = new MethodIndex(forgeLoader);
+	            methodCache.putAll(JarInspector.generateMethodIndex(libClasses));
+	            classCache = JarInspector.generateConstructableClassNames(libClasses);
+	            
+	            // show tree before the native library is loaded
+	            generateLibraryTree(sink);
+	            treeGenerated = true;
 	            if(!methodCache.isEmpty()){
 	        		Executer.initCVForgeExecuter(libPath, (nativePath + libName), forgeLoader);
 	        	}
@@ -173,17 +218,24 @@ public class CVForge {
 	    		throw new NullPointerException("OpenCV jar " + version + " not found");
 	    	}
     	}catch(Exception e){System.out.println(e);}
-    	generateLibraryTree();
+    	if(!treeGenerated)
+    		generateLibraryTree(sink);
     }
 
     /**
      * Generate a JTree representation of the library based on the methodCache;
+     * @param sink Sink attaching tree nodes.
      */
-    protected void generateLibraryTree(){
-        libTree = new JTree(new DefaultMutableTreeNode("No library loaded"));
-        if(!methodCache.isEmpty()){        	
+    protected void generateLibraryTree(LibTreeBuilder.TreeSink sink){
+        if((sink == null) || (treeRoot == null))
+        	return;
+        if(methodCache.isEmpty()){
+        	sink.attach(treeRoot, new FilteredTreeNode("No library loaded"));
+        }else{        	
         	try{
-        		libTree = LibTreeBuilder.generateLibTree(libPath, forgeLoader);
+        		FilteredTreeNode libRoot = new FilteredTreeNode(LibTreeBuilder.getLibName(libPath));
+        		sink.attach(treeRoot, libRoot);
+        		LibTreeBuilder.populateLibTree(libRoot, libClasses, false, sink);
     		}catch(Exception e){
         		IJ.beep();
     			IJ.showStatus(e.toString());
@@ -199,26 +251,35 @@ public class CVForge {
      * Load shards from plugin folder and hook them into the library tree.
      */
     public void loadShards(){
+    	loadShards(LibTreeBuilder.DIRECT);
+    }
+    
+    /**
+     * Load shards from plugin folder and hook them into the library tree.
+     * @param sink Sink attaching tree nodes, null to skip the tree.
+     */
+    public void loadShards(LibTreeBuilder.TreeSink sink){
     	File pluginDir = new File(PLUGINDIR);
       	File[] shards = pluginDir.listFiles(new JarInspector.DefaultFilenameFilter(".shard.jar"));
-      	FilteredTreeNode newRoot = new FilteredTreeNode("root");
-      	newRoot.add((FilteredTreeNode)libTree.getModel().getRoot());
       	
        	for(File f: shards){
     		try{
     			String path = f.getAbsolutePath();
-    			forgeLoader.addURL(path);		
-    			HashMap<String, Method> shardCache = JarInspector.generateMethodCache(path, forgeLoader);
-    			this.methodCache.putAll(shardCache);
+    			forgeLoader.addURL(path);
+    			List<ClassFileInfo> shardClasses = snapshot.readClassInfos(path);
+    			this.methodCache.putAll(JarInspector.generateMethodIndex(shardClasses));
+    			if((sink == null) || (treeRoot == null))
+    				continue;
 
-    			// HACK
-				JTree shardTree = LibTreeBuilder.generateLibTree(path, forgeLoader, true);
-    			FilteredTreeNode shardRoot = (FilteredTreeNode)shardTree.getModel().getRoot();
-    			newRoot.add(shardRoot);
+    			FilteredTreeNode shardRoot = new FilteredTreeNode(LibTreeBuilder.getLibName(path));
+    			sink.attach(treeRoot, shardRoot);
+    			LibTreeBuilder.populateLibTree(shardRoot, shardClasses, true, sink);
     		}catch(Exception e){System.out.println(e);}
     	}
-       	libTree = new JTree(new FilteredTreeModel(newRoot)); 
-       	libTree.setRootVisible(false);
+       	
+       	// forget deleted jars, store rescanned ones
+       	snapshot.removeMissing();
+       	snapshot.save(LibrarySnapshot.SNAPSHOTFILE);
     }
     
 
@@ -274,17 +335,19 @@ public class CVForge {
 
     /**
      * Mapping of method name to method.
+     * Methods are resolved, and their classes loaded, on first access.
      * @return Generated cache of methods, granted a library has been loaded.
      */
-    public HashMap<String, Method> getMethodCache(){
+    public MethodIndex getMethodCache(){
         return methodCache;
     }
     
     /**
-     * Mapping of class name to class.
-     * @return Generated cache of methods, granted a library has been loaded.
+     * Mapping of simple class name to binary class name for classes with public constructors.
+     * Load classes through getClassLoader().
+     * @return Generated cache of class names, granted a library has been loaded.
      */
-    public HashMap<String, Class> getClassCache(){
+    public HashMap<String, String> getClassCache(){
     	return classCache;
     }
 
@@ -305,6 +368,78 @@ public class CVForge {
     	return verbose;
     }
     
+    /**
+     * Check if Mat results are shown as ImageJ images right after a call.
+     * If disabled, Mat results are only cached and converted when opened from the cache frame.
+     * @return Setting from config file, true by default.
+     */
+    public boolean isDisplayResults(){
+    	String display = config.get("displayResults");
+    	return (display == null) || Boolean.parseBoolean(display);
+    }
+    
+    /**
+     * Enable or disable immediate display of Mat results.
+     * @param display Set to false to keep Mat results in the cache only.
+     */
+    public void setDisplayResults(boolean display){
+    	config.put("displayResults", Boolean.toString(display));
+    }
+    
+    /**
+     * Number of worker threads used for stack execution.
+     * @return Thread count from config file, 0 if all available processors are to be used.
+     */
+    public int getStackThreads(){
+    	String threads = config.get("stackThreads");
+    	try{
+    		return (threads == null)? 0 : Integer.parseInt(threads);
+    	}catch(NumberFormatException e){
+    		return 0;
+    	}
+    }
+    
+    /**
+     * Set number of worker threads used for stack execution.
+     * @param threads Thread count. Enter 0 to use all available processors.
+     */
+    public void setStackThreads(int threads){
+    	config.put("stackThreads", Integer.toString(Math.max(0, threads)));
+    }
+    
+    /**
+     * Byte budget of CVForgeCache.
+     * @return Budget from config file in bytes, 0 if unlimited.
+     */
+    public long getCacheBudget(){
+    	String megabytes = config.get("cacheBudget");
+    	try{
+    		return (megabytes == null)? CVForgeCache.DEFAULT_BUDGET : Long.parseLong(megabytes) << 20;
+    	}catch(NumberFormatException e){
+    		return CVForgeCache.DEFAULT_BUDGET;
+    	}
+    }
+    
+    /**
+     * Set byte budget of CVForgeCache and store it in config file.
+     * @param bytes Budget in bytes, rounded down to MB. Enter 0 to disable the limit.
+     */
+    public void setCacheBudget(long bytes){
+    	config.put("cacheBudget", Long.toString(Math.max(0, bytes) >> 20));
+    	CVForgeCache.setBudget(bytes);
+    }
+    
+    /**
+     * Scratch directory for cache entries spilled to disk.
+     * @return Directory from config file, temporary directory by default, null if spilling is disabled by an empty entry.
+     */
+    public File getSpillDirectory(){
+    	String dir = config.get("spillDir");
+    	if(dir == null)
+    		return CVForgeCache.DEFAULT_SPILL_DIRECTORY;
+    	return dir.isEmpty()? null : new File(dir);
+    }
+    
     /**
      * Gets Frame position from config file.
      * @return Stored Frame position from earlier session.
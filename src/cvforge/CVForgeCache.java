@@ -1,12 +1,38 @@
 package cvforge;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
 
 import javax.swing.JComboBox;
+import javax.swing.Timer;
 
 import ij.IJ;
 import ij.WindowManager;
@@ -14,26 +40,125 @@ import ij.process.ImageProcessor;
 
 /**
  * Cache for objects created e.g. by the CVForgeConstructor or method calls. 
+ * Safe for concurrent use: method calls may add results from worker threads while frames read the cache.
+ * Iteration works on snapshots, so readers never see a cache changing under their hands.
+ * The cache is bounded by a byte budget. Entries are weighed by their footprint, including native memory of Mats, 
+ * see MemoryFootprint. If the budget is exceeded, least recently used entries are evicted and their Mats released.
+ * Objects which a running call obtained via get() inside beginLeases()/ endLeases() are released once the call ends.
+ * Pinned entries are never evicted. When the JVM runs low on heap, the cache trims itself to half its size.
+ * Large Mats and primitive arrays are not dropped on eviction but spilled to disk, see SpillStore. 
+ * For these, only metadata stays in memory; get() reads them back. Disk I/O runs outside of the cache lock.
+ * Keys are indexed by the type of their objects, including supertypes and interfaces, for fast lookups by type.
  */
 public class CVForgeCache {
+	// default byte budget
+	public static final long DEFAULT_BUDGET = 1L << 30;
+	// default byte budget of spilled entries on disk
+	public static final long DEFAULT_SPILL_BUDGET = 16L << 30;
+	// default scratch directory of spilled entries
+	public static final File DEFAULT_SPILL_DIRECTORY = new File(System.getProperty("java.io.tmpdir"), "cvforge-spill");
+	// heap usage after GC, relative to maximum, at which the cache is trimmed
+	protected static final double PRESSURE_THRESHOLD = 0.85;
+	
 	// cached objects with names associated to them.
-	protected static HashMap<String, Object> cache = new HashMap<String, Object>();
+	protected static final ConcurrentHashMap<String, Object> cache = new ConcurrentHashMap<String, Object>();
 	// listeners notified if cache changes
-	protected static LinkedList<CacheListener> listeners = new LinkedList<CacheListener>();
+	protected static final CopyOnWriteArrayList<CacheListener> listeners = new CopyOnWriteArrayList<CacheListener>();
+	// delay in ms over which changes are collected before listeners are notified
+	public static final int COALESCE_DELAY = 50;
+	// changes not yet delivered to listeners, at most one per key
+	protected static final LinkedHashMap<String, CacheEvent> pending = new LinkedHashMap<String, CacheEvent>();
+	protected static boolean deliveryScheduled = false;
+	
+	// timer delivering changes, created on first use so headless macros never touch Swing
+	protected static final class Delivery {
+		protected static final Timer timer = new Timer(COALESCE_DELAY, new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e){
+				notifyListeners();
+			}
+		});
+		
+		static{
+			timer.setRepeats(false);
+		}
+	}
+	
+	// weights of cached objects in access order, least recently used first; also guards all modifications
+	protected static final LinkedHashMap<String, Long> usage = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	// names exempt from eviction
+	protected static final HashSet<String> pinned = new HashSet<String>();
+	protected static long budget = DEFAULT_BUDGET;
+	protected static long usedBytes = 0;
 	
+	// disk tier, null if disabled
+	protected static SpillStore spillStore = new SpillStore(DEFAULT_SPILL_DIRECTORY);
+	// metadata of spilled entries in order of spilling, guarded by usage
+	protected static final LinkedHashMap<String, SpillStore.Spilled> spilled = new LinkedHashMap<String, SpillStore.Spilled>();
+	protected static long spillBudget = DEFAULT_SPILL_BUDGET;
+	protected static long spilledBytes = 0;
+	// evicted objects being written to disk outside of the lock, guarded by usage; get() takes them back
+	protected static final HashMap<String, Object> spilling = new HashMap<String, Object>();
+	// spilled entries being read back outside of the lock, guarded by usage; other readers wait for them
+	protected static final HashMap<String, SpillStore.Spilled> restoring = new HashMap<String, SpillStore.Spilled>();
+	
+	// sorted keys of cached and spilled objects per assignable type, guarded by usage
+	protected static final HashMap<Class, TreeSet<String>> typeIndex = new HashMap<Class, TreeSet<String>>();
+	// class of each cached and spilled object, guarded by usage
+	protected static final HashMap<String, Class> keyTypes = new HashMap<String, Class>();
+	// types a class is assignable to, including itself
+	protected static final ClassValue<Class[]> assignableTypes = new ClassValue<Class[]>(){
+		@Override
+		protected Class[] computeValue(Class<?> type){
+			return collectAssignableTypes(type);
+		}
+	};
+	
+	// number of lease scopes holding each object handed out by get(), guarded by usage
+	protected static final IdentityHashMap<Object, Integer> leases = new IdentityHashMap<Object, Integer>();
+	// evicted objects waiting for their leases to end before being released, guarded by usage
+	protected static final Set<Object> deferred = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+	// lease scope of the current thread, null outside of beginLeases()/ endLeases()
+	protected static final ThreadLocal<LeaseScope> scope = new ThreadLocal<LeaseScope>();
+	
+	// objects leased by one thread, scopes may be nested
+	protected static final class LeaseScope {
+		protected final ArrayList<Object> leased = new ArrayList<Object>();
+		protected final ArrayList<String> names = new ArrayList<String>();
+		protected int depth = 1;
+	}
+	
+	// statistics
+	protected static final AtomicLong hits = new AtomicLong();
+	protected static final AtomicLong misses = new AtomicLong();
+	protected static final AtomicLong evictions = new AtomicLong();
+	protected static final AtomicLong spills = new AtomicLong();
+	
+	static{
+		installMemoryListener();
+	}
 	
 	/**
-	 * Create a JComboBox containing all cached Objects of specified class. 
+	 * Creates an object for a key missing in the cache.
+	 * @see CVForgeCache#computeIfAbsent(String, Factory)
+	 */
+	public interface Factory {
+		/**
+		 * Create object to be cached.
+		 * @param key Key the object will be associated to.
+		 * @return Created object, null if nothing should be cached.
+		 */
+		public Object create(String key);
+	}
+	
+	
+	/**
+	 * Create a JComboBox containing all cached Objects of specified class, including its subclasses and implementations. 
 	 * @param classType Type of objects to display in ComboBox. Enter Object.class to list entire cache.
 	 * @return Constructed JComboBox.
 	 */
 	public static JComboBox<String> createComboBox(Class classType){
-		ArrayList<String> validKeys = new ArrayList<String>();
-		for(Entry<String, Object> entry: cache.entrySet()){
-			if(entry.getValue().getClass() == classType){
-				validKeys.add(entry.getKey());
-			}
-		}
+		List<String> validKeys = getKeys(classType);
 	
 		String[] conv = new String[validKeys.size()];
 		for(int i=0; i<validKeys.size(); ++i)
@@ -50,16 +175,30 @@ public class CVForgeCache {
 		return cacheBox;
 	}
 	
+	/**
+	 * Get keys of cached objects assignable to given type, e.g. a MatOfPoint for Mat or an ArrayList for List.
+	 * Spilled objects are included. Answered from the type index without scanning the cache.
+	 * @param classType Type to look up. Primitive types are looked up by their wrapper class.
+	 * @return Sorted copy of matching keys.
+	 */
+	public static List<String> getKeys(Class classType){
+		if(classType.isPrimitive())
+			classType = Array.get(Array.newInstance(classType, 1), 0).getClass();
+		synchronized(usage){
+			TreeSet<String> keys = typeIndex.get(classType);
+			return (keys == null)? new ArrayList<String>() : new ArrayList<String>(keys);
+		}
+	}
+	
 	/**
 	 * Add ImageProcessor to cache.
 	 * @param ip ImageProcessor to add.
 	 */
 	public void addImageProcessor(String name){
 		ImageProcessor ip = WindowManager.getImage(name).getProcessor();
-        if(ip == null){
+        if(ip != null){
         	add(name, ip);
         }
-        notifyListeners();
 	}
 	
 	/**
@@ -68,10 +207,9 @@ public class CVForgeCache {
 	public void addActiveImageProcessor(){
 		String name = WindowManager.getCurrentImage().getTitle();
 		ImageProcessor ip = WindowManager.getCurrentImage().getProcessor();
-        if(ip == null){
+        if(ip != null){
         	add(name, ip);
         }
-        notifyListeners();
 	}
 	
 	/**
@@ -79,32 +217,136 @@ public class CVForgeCache {
 	 * @param name The name to associate.
 	 * @param obj Object to add to cache.
 	 */
-	public static void add(String name, Object obj){		
-		if(cache.containsKey(name)){
+	public static void add(String name, Object obj){
+		List<Object> evicted;
+		boolean updated;
+		synchronized(usage){
+			updated = store(name, obj);
+			evicted = evict(budget);
+		}
+		if(updated){
 			IJ.showStatus("cached object \"" + name + "\" of type " + obj.getClass().getSimpleName() + " updated");
-			cache.replace(name, obj);
 		} else{
 			IJ.showStatus("named object \"" + name + "\" of type " + obj.getClass().getSimpleName() + " added to cache");
-			cache.put(name, obj);
 		}
-		notifyListeners();
+		release(evicted);
+	}
+	
+	/**
+	 * Get cached object, or create and add it atomically if the key is missing.
+	 * Concurrent callers with the same key all receive the same object; the factory runs at most once per missing key.
+	 * The factory must not modify the cache.
+	 * @param name Key/ name of entry.
+	 * @param factory Creates the object if needed.
+	 * @return Cached or newly created object, null if the factory returned null.
+	 */
+	public static Object computeIfAbsent(String name, Factory factory){
+		Object obj = get(name);
+		if(obj != null)
+			return obj;
+		
+		List<Object> evicted;
+		synchronized(usage){
+			obj = cache.get(name);
+			if(obj != null)
+				return obj;
+			obj = factory.create(name);
+			if(obj == null)
+				return null;
+			store(name, obj);
+			evicted = evict(budget);
+		}
+		IJ.showStatus("named object \"" + name + "\" of type " + obj.getClass().getSimpleName() + " added to cache");
+		release(evicted);
+		return obj;
+	}
+	
+	/**
+	 * Add object only if no object is associated to name yet.
+	 * @param name Key/ name of entry.
+	 * @param obj Object to add to cache.
+	 * @return Object previously associated to name, null if obj was added.
+	 */
+	public static Object addIfAbsent(String name, Object obj){
+		List<Object> evicted = new ArrayList<Object>();
+		Object previous;
+		do{
+			previous = getResident(name, evicted);
+			if(previous != null)
+				break;
+			synchronized(usage){
+				// may have been added while it was read from disk
+				if(!contains(name)){
+					store(name, obj);
+					evicted.addAll(evict(budget));
+					break;
+				}
+			}
+		}while(true);
+		release(evicted);
+		return previous;
 	}
 	
 	/**
 	 * Remove all objects from cache.
+	 * Removed objects are left to the caller, i.e. their Mats are not released.
 	 */
 	public static void clear(){
 		IJ.showStatus("cache cleared");
-		cache.clear();
-		notifyListeners();
+		synchronized(usage){
+			cache.clear();
+			usage.clear();
+			pinned.clear();
+			usedBytes = 0;
+			for(SpillStore.Spilled entry: spilled.values())
+				SpillStore.discard(entry);
+			spilled.clear();
+			spilledBytes = 0;
+			// pending disk I/O notices that its entry is gone
+			spilling.clear();
+			restoring.clear();
+			for(Map.Entry<String, Class> entry: keyTypes.entrySet())
+				record(new CacheEvent(CacheEvent.REMOVED, entry.getKey(), entry.getValue(), null));
+			typeIndex.clear();
+			keyTypes.clear();
+		}
+	}
+	
+	/**
+	 * Get consistent copy of the objects held in memory, unaffected by later changes.
+	 * @return Unmodifiable mapping of names to cached objects.
+	 */
+	public static Map<String, Object> snapshot(){
+		return Collections.unmodifiableMap(new HashMap<String, Object>(cache));
+	}
+	
+	/**
+	 * Get metadata of entries spilled to disk.
+	 * These are not part of snapshot() and getEntries().
+	 * @return Unmodifiable copy of the mapping of names to spilled entries.
+	 */
+	public static Map<String, SpillStore.Spilled> getSpilledEntries(){
+		synchronized(usage){
+			return Collections.unmodifiableMap(new HashMap<String, SpillStore.Spilled>(spilled));
+		}
 	}
 	
 	/**
 	 * Get Set of entries in cache.
+	 * Entries spilled to disk are not included.
+	 * The Set is a snapshot, it may be iterated while the cache is modified.
 	 * @return Set of cache entries. 
 	 */
 	public static Set<Entry<String, Object>> getEntries(){
-		return cache.entrySet();
+		return snapshot().entrySet();
+	}
+	
+	/**
+	 * Iterate over a snapshot of the cache entries.
+	 * @return Iterator over cache entries.
+	 */
+	public static Iterator<Entry<String, Object>> iterator(){
+		return getEntries().iterator();
 	}
 	
 	/**
@@ -112,16 +354,83 @@ public class CVForgeCache {
 	 * @return Size of cache.
 	 */
 	public static int size(){
-		return cache.size();
+		synchronized(usage){
+			return cache.size() + spilled.size() + spilling.size() + restoring.size();
+		}
 	}
 	
 	/**
 	 * Get entry from cache.
+	 * Marks the entry as recently used. Spilled entries are read back into memory.
 	 * @param key Key/ name of entry.
 	 * @return Cached entry if found, null else.
 	 */
 	public static Object get(String key){
-		return cache.get(key);
+		List<Object> evicted = new ArrayList<Object>(0);
+		Object obj = getResident(key, evicted);
+		if(obj == null){
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		release(evicted);
+		return obj;
+	}
+	
+	/**
+	 * Get the class of a cached object without reading spilled entries back.
+	 * Does not count as access of the entry.
+	 * @param key Key/ name of entry.
+	 * @return Class of the cached or spilled object, null if not cached.
+	 */
+	public static Class getType(String key){
+		synchronized(usage){
+			return keyTypes.get(key);
+		}
+	}
+	
+	/**
+	 * Start holding the objects the current thread obtains via get(), e.g. for the arguments of a call.
+	 * Held objects evicted in the meantime are not released before endLeases().
+	 * Calls may be nested, objects are held until the outermost scope ends.
+	 */
+	public static void beginLeases(){
+		LeaseScope leaseScope = scope.get();
+		if(leaseScope != null)
+			++leaseScope.depth;
+		else
+			scope.set(new LeaseScope());
+	}
+	
+	/**
+	 * Stop holding the objects obtained since beginLeases() and release those evicted meanwhile.
+	 * Objects still cached are weighed again, as calls may have written into them, e.g. Mats passed as destination.
+	 */
+	public static void endLeases(){
+		LeaseScope leaseScope = scope.get();
+		if((leaseScope == null) || (--leaseScope.depth > 0))
+			return;
+		scope.remove();
+		
+		List<Object> evicted = new ArrayList<Object>();
+		synchronized(usage){
+			long used = usedBytes;
+			for(String name: leaseScope.names)
+				reweigh(name);
+			if(usedBytes > used)
+				evicted.addAll(evict(budget));
+			for(Object obj: leaseScope.leased){
+				int count = leases.get(obj);
+				if(count > 1){
+					leases.put(obj, count-1);
+					continue;
+				}
+				leases.remove(obj);
+				if(deferred.remove(obj) && !cache.containsValue(obj))
+					evicted.add(obj);
+			}
+		}
+		release(evicted);
 	}
 	
 	/**
@@ -130,7 +439,11 @@ public class CVForgeCache {
 	 * @return true, if cached object with such key exists.
 	 */
 	public static boolean contains(String key){
-		return cache.containsKey(key);
+		if(cache.containsKey(key))
+			return true;
+		synchronized(usage){
+			return spilled.containsKey(key) || spilling.containsKey(key) || restoring.containsKey(key);
+		}
 	}
 	
 	/**
@@ -138,18 +451,568 @@ public class CVForgeCache {
 	 * @param key Key identifying object to be removed.
 	 */
 	public static void remove(String key){
-		cache.remove(key);
-		notifyListeners();
+		synchronized(usage){
+			unstore(key);
+		}
+	}
+	
+	/**
+	 * Remove entry only if it is still associated to the given object.
+	 * @param key Key identifying object to be removed.
+	 * @param value Expected cached object.
+	 * @return true, if entry was removed.
+	 */
+	public static boolean remove(String key, Object value){
+		synchronized(usage){
+			Object current = cache.get(key);
+			return (current != null) && current.equals(value) && unstore(key);
+		}
 	}
 	
 	/**
 	 * Update the given key-value pair.
+	 * Nothing happens if key is not cached.
 	 * @param key Key for update.
 	 * @param value Object to be reassigned to key.
 	 */
 	public static void update(String key, Object value){
-		cache.replace(key, value);
-		notifyListeners();
+		List<Object> evicted;
+		synchronized(usage){
+			if(!contains(key))
+				return;
+			store(key, value);
+			evicted = evict(budget);
+		}
+		release(evicted);
+	}
+	
+	/**
+	 * Update the given key-value pair only if key is still associated to the expected object.
+	 * @param key Key for update.
+	 * @param expected Currently cached object.
+	 * @param value Object to be reassigned to key.
+	 * @return true, if value was assigned.
+	 */
+	public static boolean replace(String key, Object expected, Object value){
+		List<Object> evicted;
+		synchronized(usage){
+			Object current = cache.get(key);
+			if((current == null) || !current.equals(expected))
+				return false;
+			store(key, value);
+			evicted = evict(budget);
+		}
+		release(evicted);
+		return true;
+	}
+	
+	/**
+	 * Exempt entry from eviction.
+	 * The name stays pinned until it is unpinned or removed from the cache.
+	 * @param key Key/ name of entry.
+	 */
+	public static void pin(String key){
+		synchronized(usage){
+			pinned.add(key);
+		}
+	}
+	
+	/**
+	 * Make pinned entry evictable again.
+	 * @param key Key/ name of entry.
+	 */
+	public static void unpin(String key){
+		List<Object> evicted;
+		synchronized(usage){
+			if(!pinned.remove(key))
+				return;
+			evicted = evict(budget);
+		}
+		release(evicted);
+	}
+	
+	public static boolean isPinned(String key){
+		synchronized(usage){
+			return pinned.contains(key);
+		}
+	}
+	
+	/**
+	 * Set byte budget and evict entries exceeding it.
+	 * @param bytes Maximum bytes held by unpinned and pinned entries. Enter 0 to disable the limit.
+	 */
+	public static void setBudget(long bytes){
+		List<Object> evicted;
+		synchronized(usage){
+			budget = (bytes <= 0)? Long.MAX_VALUE : bytes;
+			evicted = evict(budget);
+		}
+		release(evicted);
+	}
+	
+	/**
+	 * Get byte budget.
+	 * @return Budget in bytes, Long.MAX_VALUE if unlimited.
+	 */
+	public static long getBudget(){
+		synchronized(usage){
+			return budget;
+		}
+	}
+	
+	/**
+	 * Get estimated bytes held by cached objects.
+	 * @return Size in bytes.
+	 */
+	public static long getUsedBytes(){
+		synchronized(usage){
+			return usedBytes;
+		}
+	}
+	
+	/**
+	 * Evict least recently used unpinned entries until the cache uses at most the given bytes.
+	 * @param bytes Target size.
+	 * @return Number of evicted entries.
+	 */
+	public static int trim(long bytes){
+		List<Object> evicted;
+		synchronized(usage){
+			evicted = evict(Math.max(0, bytes));
+		}
+		release(evicted);
+		return evicted.size();
+	}
+	
+	public static long getHits(){
+		return hits.get();
+	}
+	
+	public static long getMisses(){
+		return misses.get();
+	}
+	
+	/**
+	 * Number of entries dropped from the cache by eviction.
+	 * @return Eviction count.
+	 */
+	public static long getEvictions(){
+		return evictions.get();
+	}
+	
+	/**
+	 * Number of entries moved to disk by eviction.
+	 * @return Spill count.
+	 */
+	public static long getSpills(){
+		return spills.get();
+	}
+	
+	/**
+	 * Get bytes of entries spilled to disk.
+	 * @return Size in bytes.
+	 */
+	public static long getSpilledBytes(){
+		synchronized(usage){
+			return spilledBytes;
+		}
+	}
+	
+	/**
+	 * Set scratch directory of spill files.
+	 * Entries already spilled stay in the old directory.
+	 * @param directory Directory of spill files, null to drop instead of spilling evicted entries.
+	 */
+	public static void setSpillDirectory(File directory){
+		synchronized(usage){
+			if(directory == null)
+				spillStore = null;
+			else if((spillStore == null) || !directory.equals(spillStore.getDirectory()))
+				spillStore = new SpillStore(directory);
+		}
+	}
+	
+	/**
+	 * Set byte budget of spilled entries. If exceeded, the oldest spilled entries are dropped.
+	 * @param bytes Maximum bytes on disk.
+	 */
+	public static void setSpillBudget(long bytes){
+		synchronized(usage){
+			spillBudget = Math.max(0, bytes);
+			trimSpilled();
+		}
+	}
+	
+	/**
+	 * Reset hit, miss and eviction counters.
+	 */
+	public static void resetStatistics(){
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+		spills.set(0);
+	}
+	
+	/**
+	 * Associate object to name and account its weight. Caller must hold the lock.
+	 * @return true, if an object was replaced.
+	 */
+	protected static boolean store(String name, Object obj){
+		long weight = MemoryFootprint.sizeOf(obj);
+		Long previous = usage.put(name, weight);
+		usedBytes += weight - ((previous == null)? 0 : previous);
+		boolean wasSpilled = discardSpilled(name);
+		indexPut(name, obj.getClass());
+		return (cache.put(name, obj) != null) || wasSpilled;
+	}
+	
+	// remove entry and its weight, caller must hold the lock
+	protected static boolean unstore(String name){
+		Long weight = usage.remove(name);
+		pinned.remove(name);
+		if(weight != null)
+			usedBytes -= weight;
+		boolean wasSpilled = discardSpilled(name);
+		indexRemove(name);
+		return (cache.remove(name) != null) || wasSpilled;
+	}
+	
+	// delete spilled entry of name, also if it is just being written or read, caller must hold the lock
+	protected static boolean discardSpilled(String name){
+		boolean pending = (spilling.remove(name) != null) | (restoring.remove(name) != null);
+		SpillStore.Spilled entry = spilled.remove(name);
+		if(entry == null)
+			return pending;
+		spilledBytes -= entry.getBytes();
+		SpillStore.discard(entry);
+		return true;
+	}
+	
+	/**
+	 * Get object held in memory and mark it as recently used, reading it back from disk if it was spilled.
+	 * The object is leased if the current thread is inside beginLeases()/ endLeases().
+	 * Caller must not hold the lock, as the file is read outside of it.
+	 * @param name Key/ name of entry.
+	 * @param evicted Receives objects evicted to make room for a restored object.
+	 * @return Object, null if not cached or not restorable.
+	 */
+	protected static Object getResident(String name, List<Object> evicted){
+		LeaseScope leaseScope = scope.get();
+		SpillStore.Spilled entry;
+		synchronized(usage){
+			// another thread is reading the entry, wait for its result
+			while(restoring.containsKey(name)){
+				try{
+					usage.wait();
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+			// looked up under the lock, so the object cannot be released before it is leased
+			Object obj = cache.get(name);
+			if(obj == null){
+				// still being written to disk, take it back
+				obj = spilling.get(name);
+				if(obj != null){
+					store(name, obj);
+					evicted.addAll(evict(budget));
+				}
+			}
+			if(obj != null){
+				usage.get(name);
+				lease(name, obj, leaseScope);
+				return obj;
+			}
+			entry = spilled.remove(name);
+			if(entry == null)
+				return null;
+			spilledBytes -= entry.getBytes();
+			restoring.put(name, entry);
+		}
+		
+		Object obj = null;
+		try{
+			obj = SpillStore.restore(entry);
+		}catch(IOException e){
+			IJ.log("Unable to restore cached object \"" + name + "\": " + e);
+			SpillStore.discard(entry);
+		}
+		
+		synchronized(usage){
+			// entry may have been removed or replaced meanwhile
+			boolean current = (restoring.get(name) == entry);
+			if(current)
+				restoring.remove(name);
+			usage.notifyAll();
+			if(!current){
+				if(obj != null)
+					evicted.add(obj);
+				obj = cache.get(name);
+				lease(name, obj, leaseScope);
+				return obj;
+			}
+			if(obj == null){
+				indexRemove(name);
+				return null;
+			}
+			store(name, obj);
+			evicted.addAll(evict(budget));
+			lease(name, obj, leaseScope);
+			return obj;
+		}
+	}
+	
+	// hold object until the lease scope ends, caller must hold the lock
+	protected static void lease(String name, Object obj, LeaseScope leaseScope){
+		if((obj == null) || (leaseScope == null))
+			return;
+		Integer count = leases.get(obj);
+		leases.put(obj, (count == null)? 1 : count+1);
+		leaseScope.leased.add(obj);
+		leaseScope.names.add(name);
+	}
+	
+	/**
+	 * Measure the weight of a cached object again and account the difference. Caller must hold the lock.
+	 * Weights are taken on insertion, but Mats grow natively when passed as destination of a call.
+	 * @return Current weight, 0 if name is not held in memory.
+	 */
+	protected static long reweigh(String name){
+		Object obj = cache.get(name);
+		Long previous = usage.get(name);
+		if((obj == null) || (previous == null))
+			return 0;
+		long weight = MemoryFootprint.sizeOf(obj);
+		if(weight != previous){
+			usage.put(name, weight);
+			usedBytes += weight - previous;
+		}
+		return weight;
+	}
+	
+	// drop oldest spilled entries exceeding the spill budget, caller must hold the lock
+	protected static void trimSpilled(){
+		Iterator<Map.Entry<String, SpillStore.Spilled>> it = spilled.entrySet().iterator();
+		while((spilledBytes > spillBudget) && it.hasNext()){
+			Map.Entry<String, SpillStore.Spilled> next = it.next();
+			SpillStore.Spilled entry = next.getValue();
+			it.remove();
+			indexRemove(next.getKey());
+			spilledBytes -= entry.getBytes();
+			SpillStore.discard(entry);
+			evictions.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Evict least recently used unpinned entries until at most bytes are used. Caller must hold the lock.
+	 * The most recently used entry is kept, even if it exceeds the budget on its own.
+	 * Spillable entries are moved to disk, the others are dropped.
+	 * @return Evicted objects not cached under another name nor leased, to be released by release().
+	 */
+	protected static List<Object> evict(long bytes){
+		List<Object> evicted = new ArrayList<Object>();
+		if(usedBytes <= bytes)
+			return evicted;
+		
+		List<String> victims = new ArrayList<String>();
+		long used = usedBytes;
+		int remaining = usage.size();
+		for(Map.Entry<String, Long> entry: usage.entrySet()){
+			if((used <= bytes) || (--remaining == 0))
+				break;
+			if(pinned.contains(entry.getKey()))
+				continue;
+			victims.add(entry.getKey());
+			used -= entry.getValue();
+		}
+		for(String name: victims){
+			Object obj = cache.get(name);
+			// victims were chosen by their last known weight, spilling needs the current one
+			long weight = reweigh(name);
+			if((spillStore != null) && SpillStore.isSpillable(obj, weight)){
+				// written by release() outside of the lock, the key stays indexed meanwhile
+				usage.remove(name);
+				usedBytes -= weight;
+				cache.remove(name);
+				spilling.put(name, obj);
+				evicted.add(new PendingSpill(name, obj, spillStore));
+				continue;
+			}
+			unstore(name);
+			evictions.incrementAndGet();
+			if(isReleasable(obj))
+				evicted.add(obj);
+		}
+		trimSpilled();
+		return evicted;
+	}
+	
+	/**
+	 * Check if an evicted object may be released now.
+	 * Objects in use by a running call are marked to be released when it ends. Caller must hold the lock.
+	 * @param obj Evicted object.
+	 * @return true, if obj is neither cached under another name nor leased.
+	 */
+	protected static boolean isReleasable(Object obj){
+		if(cache.containsValue(obj))
+			return false;
+		if(leases.containsKey(obj)){
+			deferred.add(obj);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Evicted object to be moved to the disk tier once the lock is released.
+	 */
+	protected static final class PendingSpill {
+		protected final String name;
+		protected final Object obj;
+		protected final SpillStore store;
+		
+		protected PendingSpill(String name, Object obj, SpillStore store){
+			this.name = name;
+			this.obj = obj;
+			this.store = store;
+		}
+		
+		/**
+		 * Write object to disk and publish the spilled entry, unless the key was changed meanwhile.
+		 * Must be called without holding the lock.
+		 * @return Object to be released, null if it must be kept.
+		 */
+		protected Object write(){
+			SpillStore.Spilled entry = null;
+			try{
+				entry = store.spill(obj);
+			}catch(IOException e){
+				IJ.log("Unable to spill cached object \"" + name + "\": " + e);
+			}
+			synchronized(usage){
+				boolean current = (spilling.get(name) == obj);
+				if(current)
+					spilling.remove(name);
+				if(current && (entry != null)){
+					spilled.put(name, entry);
+					spilledBytes += entry.getBytes();
+					// lets frames show the entry as spilled
+					indexPut(name, entry.getType());
+					spills.incrementAndGet();
+					trimSpilled();
+				}else{
+					if(entry != null)
+						SpillStore.discard(entry);
+					if(current){
+						indexRemove(name);
+						evictions.incrementAndGet();
+					}
+				}
+				return isReleasable(obj)? obj : null;
+			}
+		}
+	}
+	
+	// add key to index of all types assignable from type and record the change, caller must hold the lock
+	protected static void indexPut(String name, Class type){
+		Class previous = keyTypes.put(name, type);
+		record(new CacheEvent((previous == null)? CacheEvent.ADDED : CacheEvent.UPDATED, name, type, previous));
+		if(previous == type)
+			return;
+		if(previous != null)
+			unindex(name, previous);
+		for(Class c: assignableTypes.get(type)){
+			TreeSet<String> keys = typeIndex.get(c);
+			if(keys == null){
+				keys = new TreeSet<String>();
+				typeIndex.put(c, keys);
+			}
+			keys.add(name);
+		}
+	}
+	
+	// remove key from type index and record the change, caller must hold the lock
+	protected static void indexRemove(String name){
+		Class previous = keyTypes.remove(name);
+		if(previous != null){
+			unindex(name, previous);
+			record(new CacheEvent(CacheEvent.REMOVED, name, previous, null));
+		}
+	}
+	
+	protected static void unindex(String name, Class type){
+		for(Class c: assignableTypes.get(type)){
+			TreeSet<String> keys = typeIndex.get(c);
+			if(keys == null)
+				continue;
+			keys.remove(name);
+			if(keys.isEmpty())
+				typeIndex.remove(c);
+		}
+	}
+	
+	/**
+	 * Collect class, superclasses and all implemented interfaces.
+	 * Arrays of objects are also assignable to arrays of the supertypes of their component type.
+	 * @param type Class to inspect.
+	 * @return Assignable types, type first.
+	 */
+	protected static Class[] collectAssignableTypes(Class type){
+		LinkedHashSet<Class> types = new LinkedHashSet<Class>();
+		ArrayDeque<Class> pending = new ArrayDeque<Class>();
+		pending.add(type);
+		while(!pending.isEmpty()){
+			Class c = pending.poll();
+			if(!types.add(c))
+				continue;
+			if(c.getSuperclass() != null)
+				pending.add(c.getSuperclass());
+			for(Class inter: c.getInterfaces())
+				pending.add(inter);
+		}
+		if(type.isArray() && !type.getComponentType().isPrimitive()){
+			for(Class component: assignableTypes.get(type.getComponentType()))
+				types.add(Array.newInstance(component, 0).getClass());
+		}
+		types.add(Object.class);
+		return types.toArray(new Class[types.size()]);
+	}
+	
+	// spill and free native memory of evicted objects, outside of the lock
+	protected static void release(List<Object> evicted){
+		if(evicted.isEmpty())
+			return;
+		for(Object obj: evicted){
+			if(obj instanceof PendingSpill)
+				obj = ((PendingSpill)obj).write();
+			if(obj != null)
+				MemoryFootprint.release(obj);
+		}
+		IJ.showStatus(evicted.size() + " cached object(s) evicted");
+	}
+	
+	/**
+	 * Trim cache to half its size whenever heap usage after garbage collection exceeds PRESSURE_THRESHOLD.
+	 */
+	protected static void installMemoryListener(){
+		try{
+			for(MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()){
+				if((pool.getType() == MemoryType.HEAP) && pool.isCollectionUsageThresholdSupported() && (pool.getUsage().getMax() > 0))
+					pool.setCollectionUsageThreshold((long)(pool.getUsage().getMax() * PRESSURE_THRESHOLD));
+			}
+			NotificationEmitter emitter = (NotificationEmitter)ManagementFactory.getMemoryMXBean();
+			emitter.addNotificationListener(new NotificationListener(){
+				@Override
+				public void handleNotification(Notification notification, Object handback){
+					if(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType()))
+						trim(getUsedBytes() / 2);
+				}
+			}, null, null);
+		}catch(Exception e){
+			// no memory monitoring, the budget still applies
+		}
 	}
 	
 	/**
@@ -157,7 +1020,7 @@ public class CVForgeCache {
 	 * @return true, if cache is emtpy.
 	 */
 	public static boolean isEmpty(){
-		return cache.isEmpty();
+		return size() == 0;
 	}
 	
 	/**
@@ -165,15 +1028,54 @@ public class CVForgeCache {
 	 * @param listener CacheListener to register.
 	 */
 	public static void addListener(CacheListener listener){
-		listeners.add(listener);
+		listeners.addIfAbsent(listener);
+	}
+	
+	/**
+	 * Unregister given listener.
+	 * @param listener CacheListener to remove.
+	 */
+	public static void removeListener(CacheListener listener){
+		listeners.remove(listener);
 	}
 	
 	/**
-	 * Notify all registered CacheListeners.
+	 * Queue change for delivery to the listeners, merging it with a pending change of the same key.
+	 * Delivery is scheduled on the event dispatch thread after COALESCE_DELAY.
+	 * @param event Change to deliver.
+	 */
+	protected static void record(CacheEvent event){
+		// listeners read the current state when registered, so nothing is lost
+		if(listeners.isEmpty())
+			return;
+		synchronized(pending){
+			CacheEvent earlier = pending.remove(event.getKey());
+			if(earlier != null)
+				event = earlier.merge(event);
+			if(event != null)
+				pending.put(event.getKey(), event);
+			if(!deliveryScheduled && !pending.isEmpty()){
+				deliveryScheduled = true;
+				Delivery.timer.restart();
+			}
+		}
+	}
+	
+	/**
+	 * Notify all registered CacheListeners of the pending changes.
+	 * Runs on the event dispatch thread.
 	 */
 	protected static void notifyListeners(){
+		List<CacheEvent> events;
+		synchronized(pending){
+			deliveryScheduled = false;
+			if(pending.isEmpty())
+				return;
+			events = Collections.unmodifiableList(new ArrayList<CacheEvent>(pending.values()));
+			pending.clear();
+		}
 		for(CacheListener cl: listeners){
-			cl.cacheChanged();	
+			cl.cacheChanged(events);	
 		}
 	}
 }
@@ -7,6 +7,9 @@ import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.*;
+import java.util.List;
+
+import ij.IJ;
 
 /**
  * Provide cache for objects.
@@ -16,6 +19,7 @@ public class CVForgeCacheFrame extends JDialog implements CacheListener {
 	protected JScrollPane scrollPane;
 	protected JPanel mainPanel; 	
 	protected JButton clearButton;
+	protected JLabel statsLabel;
 	
 	public CVForgeCacheFrame() {
         // window setup
@@ -43,6 +47,9 @@ public class CVForgeCacheFrame extends JDialog implements CacheListener {
         });
         add(clearButton, BorderLayout.SOUTH);
         
+        statsLabel = new JLabel();
+        add(statsLabel, BorderLayout.NORTH);
+        
         mainPanel = new JPanel();
         scrollPane = new JScrollPane();
         createCacheList();
@@ -60,21 +67,34 @@ public class CVForgeCacheFrame extends JDialog implements CacheListener {
 	// TODO empty cache label bug
 	public void createCacheList(){
 		mainPanel.removeAll();
-		if(CVForgeCache.isEmpty()){
+		Map<String, Object> entries = CVForgeCache.snapshot();
+		Map<String, SpillStore.Spilled> spilled = CVForgeCache.getSpilledEntries();
+		if(entries.isEmpty() && spilled.isEmpty()){
 		    mainPanel.setLayout(new BorderLayout());
 		    mainPanel.add(new JLabel("  no cached elements  "), BorderLayout.CENTER);
 		}else{
-		    GridLayout layout = new GridLayout(CVForgeCache.size(), 4);
+		    GridLayout layout = new GridLayout(entries.size() + spilled.size(), 6);
 		    mainPanel.setLayout(layout);
-		    for(Map.Entry<String, Object> entry: CVForgeCache.getEntries()){ 
-		    	final String key = entry.getKey();
-		    	String type = entry.getValue().getClass().getSimpleName();
-		    	String content = InputHelpers.limitLength(entry.getValue().toString());
-		    	JLabel elementType = new JLabel(type);
+		    ArrayList<String> keys = new ArrayList<String>(entries.keySet());
+		    keys.addAll(spilled.keySet());
+		    for(final String key: keys){
+		    	Class type;
+		    	String content;
+		    	if(entries.containsKey(key)){
+		    		type = entries.get(key).getClass();
+		    		content = InputHelpers.limitLength(entries.get(key).toString());
+		    	}else{
+		    		type = spilled.get(key).getType();
+		    		content = spilled.get(key).toString();
+		    	}
+		    	JLabel elementType = new JLabel(type.getSimpleName());
 		    	JLabel elementName = new JLabel(key);
 		    	JLabel elementContent = new JLabel(content);
 		        JButton elementEdit = new JButton("edit");
 		        JButton elementDelete = new JButton("remove");
+		        JButton elementShow = new JButton("show");
+		        elementShow.setEnabled(type.getName().equals(InputHelpers.CVMAT));
+		        final JCheckBox elementPin = new JCheckBox("pin", CVForgeCache.isPinned(key));
 		        
 		        //elementEdit.addActionListener(arg0);
 		        elementDelete.addActionListener(new ActionListener(){
@@ -83,23 +103,79 @@ public class CVForgeCacheFrame extends JDialog implements CacheListener {
 		        		CVForgeCache.remove(key);
 	        		}
 		        });
+		        elementShow.addActionListener(new ActionListener(){
+		        	@Override
+					public void actionPerformed(ActionEvent e) {
+		        		showEntry(key);
+	        		}
+		        });
+		        elementPin.addActionListener(new ActionListener(){
+		        	@Override
+					public void actionPerformed(ActionEvent e) {
+		        		if(elementPin.isSelected())
+		        			CVForgeCache.pin(key);
+		        		else
+		        			CVForgeCache.unpin(key);
+	        		}
+		        });
 		        
 		        mainPanel.add(elementType);
 		        mainPanel.add(elementName);
 		        mainPanel.add(elementContent);
 		        //mainPanel.add(elementEdit);
+		        mainPanel.add(elementShow);
+		        mainPanel.add(elementPin);
 		        mainPanel.add(elementDelete);
 		    }
 		}
+		updateStatistics();
 	    pack();
     }
 	
+	/**
+	 * Convert a cached Mat into an ImageJ image in the background and show it.
+	 * @param key Name of the cached Mat.
+	 */
+	public void showEntry(final String key){
+		new Thread(){
+			@Override
+			public void run(){
+				try{
+					Executer.showCached(key);
+				}catch(OutOfMemoryError e){
+					IJ.outOfMemory(CVForge.VERSION);
+				}catch(Exception e){
+					IJ.beep();
+					IJ.showMessage("CVForge Error", e.getMessage());
+				}
+			}
+		}.start();
+	}
+	
+	/**
+	 * Show memory usage and hit, miss and eviction counters of the cache.
+	 */
+	public void updateStatistics(){
+		long budget = CVForgeCache.getBudget();
+		String limit = (budget == Long.MAX_VALUE)? "unlimited" : toMB(budget) + " MB";
+		statsLabel.setText("  " + toMB(CVForgeCache.getUsedBytes()) + " MB of " + limit
+				+ ", on disk: " + toMB(CVForgeCache.getSpilledBytes()) + " MB"
+				+ ", hits: " + CVForgeCache.getHits()
+				+ ", misses: " + CVForgeCache.getMisses()
+				+ ", evictions: " + CVForgeCache.getEvictions());
+	}
+	
+	// bytes to MB, rounded to one decimal
+	protected static String toMB(long bytes){
+		return String.format("%.1f", bytes / (1024.0 * 1024.0));
+	}
+	
 	/**
 	 * Update GUI elements.
 	 * @see CacheListener
 	 */
 	@Override
-	public void cacheChanged(){
+	public void cacheChanged(List<CacheEvent> events){
 		createCacheList();	
 		setVisible(true);
 	}
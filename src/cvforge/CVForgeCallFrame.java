@@ -9,6 +9,7 @@ import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.ArrayList;
+import java.util.List;
 
 import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
@@ -29,6 +30,11 @@ public class CVForgeCallFrame extends JDialog implements CacheListener{
     protected JPanel elementPanel = new JPanel();
     protected JButton callButton = new JButton("call"); 
     
+    // stack mode: run method on every slice in range
+    protected JPanel stackPanel = new JPanel();
+    protected JCheckBox stackBox = new JCheckBox("process stack");
+    protected JTextField rangeField = new JTextField("all");
+    
     public CVForgeCallFrame() {
         // window setup
         addWindowListener(new WindowAdapter() {
@@ -44,7 +50,12 @@ public class CVForgeCallFrame extends JDialog implements CacheListener{
         int y = (d.height - getSize().height) / 2;
         this.setLayout(new BorderLayout());
         this.add(elementPanel, "Center");
-        this.add(callButton, "South");
+        
+        stackPanel.setLayout(new GridLayout(1, 3));
+        stackPanel.add(stackBox);
+        stackPanel.add(rangeField);
+        stackPanel.add(callButton);
+        this.add(stackPanel, "South");
 
         setLocation(x, y);
         setAlwaysOnTop(true);
@@ -100,6 +111,9 @@ public class CVForgeCallFrame extends JDialog implements CacheListener{
         	}
 			args += " arg" + i + "=" + arg;
     	}
+    	if(isStackMode()){
+    		args += " stack=" + rangeField.getText().trim().replace(" ", "");
+    	}
     	return args;
     }
     
@@ -113,10 +127,42 @@ public class CVForgeCallFrame extends JDialog implements CacheListener{
         for(int i=0; i<components.size(); ++i){
         	JComponent comp = components.get(i);
             Class classType = params[i].getType();
-    		extracted[i] = InputHelpers.createFromInput(comp, classType);
+    		extracted[i] = InputHelpers.createFromInput(comp, classType, isStackMode());
         }
         return extracted;
     }
+    
+    /**
+     * Check if the method is to be run on a range of slices.
+     * @return true, if stack mode is selected.
+     */
+    public boolean isStackMode(){
+    	return stackBox.isSelected();
+    }
+    
+    /**
+     * Check if the slice range addresses hyperstack dimensions.
+     * @return true, if the range is a hyperstack range like "c:1-2,t:5-".
+     */
+    public boolean isHyperstackRange(){
+    	return InputHelpers.isHyperstackRange(rangeField.getText());
+    }
+    
+    /**
+     * Get the hyperstack ranges for stack mode.
+     * @return Array with first and last positions of channels, slices and frames.
+     */
+    public int[] getHyperstackRange(){
+    	return InputHelpers.parseHyperstackRange(rangeField.getText());
+    }
+    
+    /**
+     * Get the slice range for stack mode.
+     * @return Array with first and last slice. The last slice is 0 if all remaining slices are to be processed.
+     */
+    public int[] getSliceRange(){
+    	return InputHelpers.parseSliceRange(rangeField.getText());
+    }
 
     /**
      * Get currently assigned method.
@@ -154,7 +200,21 @@ public class CVForgeCallFrame extends JDialog implements CacheListener{
     	callButton.addActionListener(listener);
     }
     
-	public void cacheChanged(){
-		createParameterList(activeMethod);
+    /**
+     * Add and remove cached objects offered by the parameter inputs.
+     * @see CacheListener
+     */
+    @Override
+	public void cacheChanged(List<CacheEvent> events){
+    	if(activeMethod == null)
+    		return;
+    	Parameter[] params = activeMethod.getParameters();
+    	for(int i=0; i<components.size(); ++i){
+    		Class type = params[i].getType();
+    		if(InputHelpers.isCacheInput(type))
+    			InputHelpers.updateCacheBox((JComboBox<String>)components.get(i), type, events);
+    		else if(type.getName().equals(InputHelpers.CVMAT))
+    			InputHelpers.updateMatBox((JComboBox<String>)components.get(i), type, events);
+    	}
 	}
 }
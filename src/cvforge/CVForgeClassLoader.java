@@ -17,6 +17,11 @@ public class CVForgeClassLoader extends URLClassLoader{
 
 	protected static final String PLUGINDIR = CVForge.PLUGINDIR;
 	
+	// allow concurrent class loading while scanning libraries
+	static {
+		ClassLoader.registerAsParallelCapable();
+	}
+	
 	/**
 	 * Initialize by loading imagej plugin dir. 
 	 */
@@ -12,6 +12,7 @@ import java.awt.event.WindowEvent;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Parameter;
 import java.util.*;
+import java.util.List;
 import java.util.Map.Entry;
 
 /**
@@ -32,7 +33,8 @@ public class CVForgeConstructorFrame extends JDialog implements ActionListener,
     protected JButton createButton = new JButton("create");
     
     // TODO ordering of set entries (SortedSet?)
-    protected HashMap<String, Class> classCache;
+    protected HashMap<String, String> classCache;
+    protected ClassLoader classLoader;
     
 	public CVForgeConstructorFrame() {
         // window setup
@@ -78,14 +80,17 @@ public class CVForgeConstructorFrame extends JDialog implements ActionListener,
 	 * Set the cache of available classes.
 	 * These classes will be displayed in the JComboBox at the Frame's top.
 	 * The cache will also be used to lookup class properties.
-	 * @param classes The new classes.
+	 * Classes are loaded once selected.
+	 * @param classes Mapping of simple class names to binary class names.
+	 * @param loader ClassLoader used to load the classes.
 	 */
-	public void setClassCache(HashMap<String, Class> classes){
+	public void setClassCache(HashMap<String, String> classes, ClassLoader loader){
         classCache = classes;
+        classLoader = loader;
         classBox.removeAll();
         
-		for(Entry<String, Class> entry: classCache.entrySet())
-			classBox.addItem(entry.getValue().getSimpleName());
+		for(Entry<String, String> entry: classCache.entrySet())
+			classBox.addItem(entry.getKey());
 	}
     
 	/**
@@ -173,12 +178,31 @@ public class CVForgeConstructorFrame extends JDialog implements ActionListener,
     @Override
 	public void actionPerformed(ActionEvent ev){
     	String className = (String)classBox.getSelectedItem();
-    	Class classType = classCache.get(className);
-    	createConstructorLists(classType);
+    	try{
+    		Class classType = Class.forName(classCache.get(className), false, classLoader);
+    		createConstructorLists(classType);
+    	}catch(Exception ex){IJ.showStatus(ex.toString());}
     }
 
-	public void cacheChanged(){
-		createConstructorLists(templateClass);
+	/**
+	 * Add and remove cached objects offered by the parameter inputs of all constructors.
+	 * @see CacheListener
+	 */
+	@Override
+	public void cacheChanged(List<CacheEvent> events){
+		if(constructors == null)
+			return;
+		for(int c=0; c<components.size(); ++c){
+			Parameter[] params = constructors[c].getParameters();
+			JComponent[] subComponents = components.get(c);
+			for(int i=0; i<subComponents.length; ++i){
+				Class type = params[i].getType();
+				if(InputHelpers.isCacheInput(type))
+					InputHelpers.updateCacheBox((JComboBox<String>)subComponents[i], type, events);
+				else if(type.getName().equals(InputHelpers.CVMAT))
+					InputHelpers.updateMatBox((JComboBox<String>)subComponents[i], type, events);
+			}
+		}
 	}
     
 }
@@ -20,6 +20,8 @@ import java.util.*;
 import ij.plugin.frame.*;
 import ij.*;
 
+import reflectiontools.ClassInspector;
+
 
 /**
  * Mainframe for library loading/ selection/ installation.
@@ -34,10 +36,15 @@ public class CVForgeFrame extends PlugInFrame implements ActionListener {
     protected CVForgeConstructorFrame conFrame;
     
     protected JTree libTree;
-    protected HashMap<String, Method> methodCache;
+    protected MethodIndex methodCache;
     protected JScrollPane libTreePane;
     protected MenuBar menuBar;
     
+    // active library loader, superseded loaders do not publish their results
+    protected volatile Loader loader;
+    // serializes library loading
+    protected final Object loadLock = new Object();
+    
     // input field for tree filtering
     protected JTextField textFieldFilter;
     protected JButton buttonFilter;
@@ -95,11 +102,10 @@ public class CVForgeFrame extends PlugInFrame implements ActionListener {
     }
 
     /**
-     * If there active lib found, load the tree and set up user interface.
+     * Show the library tree and set up user interface.
+     * The tree may still be populated afterwards.
      */
     public void loadLibraryTree(){
-        libTree = FORGE.getLibraryTree();
-        
         // keep GUI clean 
         if(libTreePane != null)
         	this.remove(libTreePane);
@@ -130,6 +136,8 @@ public class CVForgeFrame extends PlugInFrame implements ActionListener {
                     return;
 
                 if (!node.children().hasMoreElements()) {
+                    if (isLoading())
+                    	IJ.showStatus("library still loading, please wait");
                     Method m = methodCache.get(node.getUserObject());
                     if (m != null){
                         callFrame.createParameterList(m);
@@ -171,36 +179,101 @@ public class CVForgeFrame extends PlugInFrame implements ActionListener {
         this.setCursor(new Cursor(Cursor.DEFAULT_CURSOR));
     }
     
+    /**
+     * Open up file dialog and run the pipeline selected in JFileChooser.
+     * @see Pipeline
+     */
+    public void runPipeline(){
+    	JFileChooser chooser = new JFileChooser();
+    	int returnVal = chooser.showOpenDialog(null);
+        if (returnVal == JFileChooser.APPROVE_OPTION){
+        	new PipelineRunner(chooser.getSelectedFile().getPath());
+        }
+    }
+    
     /**
      * Switch to jar defined by path.
+     * The library is loaded in the background, its tree is filled as packages and classes are discovered.
+     * Method calls issued meanwhile wait for the library to be ready.
      * @param path Path to opencv jar file.
      */
     public void switchJar(String path){
     	IJ.showStatus("loading opencv library: " + path);
     	
-    	try{
-    		FORGE.loadOpenCV(path);
-    		FORGE.loadShards();
-    		
-	    	methodCache = FORGE.getMethodCache();
-	    	loadLibraryTree();
-	    	conFrame.setClassCache(FORGE.getClassCache());
-	    	IJ.showStatus("library loaded: " + path);
-    	}catch(Exception e) {
-    		this.setSize(200, 300);
-			IJ.beep();
-			IJ.showStatus(e.toString());
-			if(FORGE.isVerbose()){
-				CharArrayWriter caw = new CharArrayWriter();
-				PrintWriter pw = new PrintWriter(caw);
-				e.printStackTrace(pw);
-				IJ.log(caw.toString());
-			}
-		}
+    	FilteredTreeNode root = new FilteredTreeNode("root");
+    	libTree = new JTree(new FilteredTreeModel(root));
+    	libTree.setRootVisible(false);
+    	libTree.setShowsRootHandles(true);
+    	methodCache = new MethodIndex(null);
+    	loadLibraryTree();
     	
     	conFrame.setVisible(false);
     	callFrame.setVisible(false);
     	cacheFrame.setVisible(false);
+    	
+    	loader = new Loader(path, libTree);
+    	loader.start();
+    }
+    
+    /**
+     * Publish loaded library to the user interface.
+     * Called on the event dispatch thread once loading succeeded.
+     * @param path Path to opencv jar file.
+     */
+    protected void libraryLoaded(String path){
+    	methodCache = FORGE.getMethodCache();
+    	this.textFieldFilter.setEditable(!methodCache.isEmpty());
+    	conFrame.setClassCache(FORGE.getClassCache(), FORGE.getClassLoader());
+    	
+    	// fit window to populated tree if no size is stored
+    	Dimension winSize = FORGE.restoreWindowSize();
+    	if((winSize.width == 0) || (winSize.height == 0))
+    		this.pack();
+    	IJ.showStatus("library loaded: " + path);
+    }
+    
+    /**
+     * Report failed library loading.
+     * Called on the event dispatch thread.
+     * @param e Cause of failure.
+     */
+    protected void libraryFailed(Exception e){
+    	this.setSize(200, 300);
+		IJ.beep();
+		IJ.showStatus(e.toString());
+		if(FORGE.isVerbose()){
+			CharArrayWriter caw = new CharArrayWriter();
+			PrintWriter pw = new PrintWriter(caw);
+			e.printStackTrace(pw);
+			IJ.log(caw.toString());
+		}
+    }
+    
+    /**
+     * Wait until pending library loads have finished.
+     * Must not be called on the event dispatch thread.
+     * @return True if a library is ready for method calls.
+     */
+    public boolean awaitLibrary(){
+    	Loader l;
+    	while(((l = loader) != null) && l.isAlive()){
+    		try{
+    			l.join();
+    		}catch(InterruptedException e){
+    			Thread.currentThread().interrupt();
+    			return false;
+    		}
+    	}
+    	return Executer.ready();
+    }
+    
+    /**
+     * Check if library loading is in progress.
+     * @return True while a library is loaded.
+     */
+    public boolean isLoading(){
+    	Loader l = loader;
+    	return (l != null) && l.isAlive();
     }
     
     /**
@@ -264,6 +337,13 @@ public class CVForgeFrame extends PlugInFrame implements ActionListener {
         });
     	itemConstructor.setEnabled(FORGE.activeLib()!=null);
     	menuTools.add(itemConstructor);		
+    	
+    	MenuItem itemPipeline = new MenuItem("Run Pipeline...");
+    	itemPipeline.addActionListener(new ActionListener(){
+        	public void actionPerformed(ActionEvent e) {runPipeline();}
+        });
+    	itemPipeline.setEnabled(FORGE.activeLib()!=null);
+    	menuTools.add(itemPipeline);
         
     	menuTools.addSeparator();
     	
@@ -274,6 +354,15 @@ public class CVForgeFrame extends PlugInFrame implements ActionListener {
         	}
         });
         menuTools.add(itemVerbose);
+        
+        MenuItem itemDisplay = new MenuItem("Toggle result display");
+        itemDisplay.addActionListener(new ActionListener(){
+        	public void actionPerformed(ActionEvent e) {
+        		FORGE.setDisplayResults(!FORGE.isDisplayResults());
+        		IJ.showStatus("Mat results are " + (FORGE.isDisplayResults()? "shown" : "cached only"));
+        	}
+        });
+        menuTools.add(itemDisplay);
         menuBar.add(menuTools);
         
         MenuItem itemFind = new MenuItem("Find Method");
@@ -338,23 +427,18 @@ public class CVForgeFrame extends PlugInFrame implements ActionListener {
     
     /**
      * Lock all images for filtering.
+     * @see Executer#lockAllImages()
      */
     public static void lockAllImages(){
-    	for(String title: WindowManager.getImageTitles()){
-			ImagePlus imp = WindowManager.getImage(title);
-			imp.lock();	
-		}
+    	Executer.lockAllImages();
     }
     
     /**
      * Unlock and update all images.
+     * @see Executer#unlockAllImages()
      */
     public static void unlockAllImages(){
-    	for(String title: WindowManager.getImageTitles()){
-			ImagePlus imp = WindowManager.getImage(title);
-			imp.updateAndDraw();
-			imp.unlock();
-		}
+    	Executer.unlockAllImages();
     }
     
     /**
@@ -379,18 +463,43 @@ public class CVForgeFrame extends PlugInFrame implements ActionListener {
 		}
 	
 		public void run() {
+			// queue call until library is ready
+			if(isLoading())
+				IJ.showStatus("waiting for library...");
+			if(!awaitLibrary()){
+				IJ.beep();
+				IJ.showStatus("no OpenCV library loaded");
+				return;
+			}
+			Method active = callFrame.getActiveMethod();
+			if(!active.equals(FORGE.getMethodCache().get(ClassInspector.infoString(active)))){
+				IJ.beep();
+				IJ.showStatus("library changed, please select method again");
+				return;
+			}
+			
 			String cvmethod = callFrame.getActiveMethod().getName();
 			IJ.showStatus("running " + cvmethod + "...");
 			long startTime = System.currentTimeMillis();
 			setCursor(new Cursor(Cursor.WAIT_CURSOR));
 			lockAllImages();
+			CVForgeCache.beginLeases();
 			
 			try {
 				if(Recorder.record){
 					String methodArgs = callFrame.getMethodArgs();
+					if(!FORGE.isDisplayResults())
+						methodArgs += " nodisplay";
 					Recorder.record("run", "CVForge", methodArgs);		
 				}					
-				Executer.executeMethod(callFrame.getActiveMethod(), callFrame.extractParameters(), callFrame.getReturnName());
+				if(callFrame.isStackMode() && callFrame.isHyperstackRange()){
+					Executer.executeHyperstack(callFrame.getActiveMethod(), callFrame.extractParameters(), callFrame.getReturnName(), callFrame.getHyperstackRange(), FORGE.getStackThreads());
+				}else if(callFrame.isStackMode()){
+					int[] range = callFrame.getSliceRange();
+					Executer.executeStack(callFrame.getActiveMethod(), callFrame.extractParameters(), callFrame.getReturnName(), range[0], range[1], FORGE.getStackThreads());
+				}else{
+					Executer.executeMethod(callFrame.getActiveMethod(), callFrame.extractParameters(), callFrame.getReturnName(), FORGE.isDisplayResults());
+				}
 				IJ.showStatus((System.currentTimeMillis()-startTime)+" milliseconds");
 			} catch(OutOfMemoryError e) {
 				IJ.outOfMemory(CVForge.VERSION);
@@ -407,8 +516,109 @@ public class CVForgeFrame extends PlugInFrame implements ActionListener {
 					IJ.log(caw.toString());
 				}
 			}
+			CVForgeCache.endLeases();
 			unlockAllImages();
 			setCursor(new Cursor(Cursor.DEFAULT_CURSOR));
 		}
     }
+    
+    // non-blocking run of pipeline through thread
+    class PipelineRunner extends Thread {
+    	protected final String path;
+    	
+    	PipelineRunner(String path) {
+			super();
+			this.path = path;
+			setPriority(Math.max(getPriority()-2, MIN_PRIORITY));
+			start();
+		}
+    	
+    	public void run() {
+			if(!awaitLibrary()){
+				IJ.beep();
+				IJ.showStatus("no OpenCV library loaded");
+				return;
+			}
+			
+			IJ.showStatus("running pipeline " + path + "...");
+			long startTime = System.currentTimeMillis();
+			lockAllImages();
+			CVForgeCache.beginLeases();
+			try {
+				Pipeline pipeline = Pipeline.load(path);
+				pipeline.compile(FORGE.getMethodCache());
+				if(Recorder.record)
+					Recorder.record("run", "CVForge", "pipeline=[" + path + "]");
+				Executer.executePipeline(pipeline);
+				IJ.showStatus((System.currentTimeMillis()-startTime)+" milliseconds");
+			} catch(OutOfMemoryError e) {
+				IJ.outOfMemory(CVForge.VERSION);
+			} catch(Exception e) {
+				IJ.beep();
+				IJ.showMessage("CVForge Error", e.getMessage());
+				if(FORGE.isVerbose()){
+					CharArrayWriter caw = new CharArrayWriter();
+					PrintWriter pw = new PrintWriter(caw);
+					e.printStackTrace(pw);
+					IJ.log(caw.toString());
+				}
+			}
+			CVForgeCache.endLeases();
+			unlockAllImages();
+    	}
+    }
+    
+    // background loading of library, attaches tree nodes on the event dispatch thread
+    class Loader extends Thread {
+    	protected final String path;
+    	protected final JTree tree;
+    	
+    	Loader(String path, JTree tree){
+    		super("CVForge library loader");
+    		this.path = path;
+    		this.tree = tree;
+    		setDaemon(true);
+    	}
+    	
+    	public void run(){
+    		final FilteredTreeModel model = (FilteredTreeModel)tree.getModel();
+    		LibTreeBuilder.TreeSink sink = new LibTreeBuilder.TreeSink(){
+    			public void attach(final FilteredTreeNode parent, final FilteredTreeNode child){
+    				SwingUtilities.invokeLater(new Runnable(){
+    					public void run(){
+    						model.appendNodeInto(child, parent);
+    					}
+    				});
+    			}
+    		};
+    		
+    		// older loads finish first, loads superseded while waiting are skipped
+    		synchronized(loadLock){
+    			if(loader != this)
+    				return;
+    			
+    			Exception failure = null;
+    			try{
+    				FORGE.loadOpenCV(path, (FilteredTreeNode)model.getRoot(), sink);
+    				IJ.showStatus("loading shards...");
+    				FORGE.loadShards(sink);
+    			}catch(Exception e){
+    				failure = e;
+    			}
+    			IJ.showProgress(1.0);
+    			
+    			final Exception result = failure;
+    			SwingUtilities.invokeLater(new Runnable(){
+    				public void run(){
+    					if(loader != Loader.this)
+    						return;
+    					if(result == null)
+    						libraryLoaded(path);
+    					else
+    						libraryFailed(result);
+    				}
+    			});
+    		}
+    	}
+    }
 }
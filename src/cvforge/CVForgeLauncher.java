@@ -1,23 +1,22 @@
 package cvforge;
 
+import java.awt.GraphicsEnvironment;
 import java.io.CharArrayWriter;
 import java.io.PrintWriter;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Set;
 
 import ij.IJ;
 import ij.Macro;
-import ij.WindowManager;
+import ij.macro.Interpreter;
 import ij.plugin.PlugIn;
 
-import cvforge.CVForgeCache;
-
 /**
  * Launcher module creating either CVForgeFrame instance or setting up headless mode.
  * CVForgeFrame is created in normal use case. 
  * Headless mode directly acts on submitted arguments and is used for macros.
+ * It only loads CVForge, the method index and Executer, so it runs under java.awt.headless=true.
  * In both cases a OpenCV is loaded and methods are created and cached.
  */
 public class CVForgeLauncher implements PlugIn{
@@ -25,9 +24,23 @@ public class CVForgeLauncher implements PlugIn{
 	// macro parameters
 	protected String methodName;
 	protected String[] methodArgs;
+	// slice range for stack mode, null if only the current slice is processed
+	protected int[] sliceRange;
+	// hyperstack ranges for stack mode, null if no dimensions are addressed
+	protected int[] hyperstackRange;
+	// show Mat results, disabled by "nodisplay" and in batch mode
+	protected boolean display;
 	
 	// reference to CVForge object
 	public static CVForgeFrame CVFORGEFRAME;
+	// library for macro calls made before the frame was opened, no Swing components involved
+	protected static CVForge HEADLESSFORGE;
+	
+	// compiled calls by shape, valid for the state of planIndex given by planModCount
+	protected static final HashMap<String, CallPlan> PLANS = new HashMap<String, CallPlan>();
+	protected static final int MAXPLANS = 1024;
+	protected static MethodIndex planIndex;
+	protected static int planModCount;
 	
 	/**
 	 * Inherited from PlugIn interface.
@@ -36,129 +49,216 @@ public class CVForgeLauncher implements PlugIn{
 		String ops = Macro.getOptions();
 		
 		// launch forge
-		if(CVFORGEFRAME == null){
-			CVFORGEFRAME = (CVForgeFrame)IJ.runPlugIn(CVForgeFrame.class.getName(), "");
+		if(ops == null){
+			if(GraphicsEnvironment.isHeadless()){
+				IJ.log(CVForge.VERSION + ": no user interface in headless mode, use macro options instead");
+				return;
+			}
+			if(CVFORGEFRAME == null){
+				CVFORGEFRAME = (CVForgeFrame)IJ.runPlugIn(CVForgeFrame.class.getName(), "");
+			}
+			CVFORGEFRAME.setVisible(true);
+			return;
+		}
+		
+		// library is loaded in the background by the frame, or right here if there is none
+		CVForge forge = getForge();
+		if(forge == null){
+			IJ.showMessage("CVForge Error", "No OpenCV library loaded");
+			return;
+		}
+		
+		// replay pipeline file
+		String pipelinePath = Macro.getValue(ops, "pipeline", null);
+		if(pipelinePath != null){
+			runPipeline(forge, pipelinePath);
+			return;
 		}
 		
 		// extract arguments
-		if(ops != null){
-			String[] args = extractArgs(ops);
-			methodName = args[0];
-			methodArgs = new String[args.length-1];
-			for(int i=1; i<args.length; ++i){
-				methodArgs[i-1] = args[i];
-			}	
-		}else{
-			CVFORGEFRAME.setVisible(true);
+		String[] args = extractArgs(ops);
+		methodName = args[0];
+		methodArgs = new String[args.length-1];
+		for(int i=1; i<args.length; ++i){
+			methodArgs[i-1] = args[i];
+		}	
+		
+		// call filter
+		CallPlan plan = getPlan(forge, methodName, methodArgs);
+		if(plan == null){
+			IJ.showMessage("CVForge Error", "Method " + methodName + " with " + methodArgs.length + " arguments not found");
+			return;
 		}
+		Method method = plan.getMethod();
 		
-		// if arguments exist, call filter
-		if((methodName != null) && (methodArgs != null)){			
-			Method method = getMethod(methodName, methodArgs);
-			Object[] args = convertArguments(method, methodArgs);
-			
-			long startTime = System.currentTimeMillis();
-			IJ.showStatus("running " + methodName + "...");
-			CVForgeFrame.lockAllImages();
-			try{
-				Executer.executeMethod(method, args, method.getReturnType().getName());
-				IJ.showStatus((System.currentTimeMillis()-startTime)+" milliseconds");
-			} catch(OutOfMemoryError e) {
-				IJ.outOfMemory(CVForge.VERSION);
-			} catch(Exception e) {
-				IJ.beep();
-				IJ.showStatus(e.toString());
-				e.printStackTrace();
-				CharArrayWriter caw = new CharArrayWriter();
-				PrintWriter pw = new PrintWriter(caw);
-				e.printStackTrace(pw);
-				IJ.log(caw.toString());
+		long startTime = System.currentTimeMillis();
+		IJ.showStatus("running " + methodName + "...");
+		Executer.lockAllImages();
+		// cached arguments stay valid until the call ends
+		CVForgeCache.beginLeases();
+		try{
+			Object[] callArgs = plan.convert(methodArgs, sliceRange != null);
+			if(hyperstackRange != null){
+				Executer.executeHyperstack(method, callArgs, method.getReturnType().getName(), hyperstackRange, forge.getStackThreads());
+			}else if(sliceRange != null){
+				Executer.executeStack(method, callArgs, method.getReturnType().getName(), sliceRange[0], sliceRange[1], forge.getStackThreads());
+			}else{
+				Executer.executeMethod(method, callArgs, method.getReturnType().getName(), display);
 			}
-			CVForgeFrame.unlockAllImages();
+			IJ.showStatus((System.currentTimeMillis()-startTime)+" milliseconds");
+		} catch(OutOfMemoryError e) {
+			IJ.outOfMemory(CVForge.VERSION);
+		} catch(Exception e) {
+			IJ.beep();
+			IJ.showStatus(e.toString());
+			e.printStackTrace();
+			CharArrayWriter caw = new CharArrayWriter();
+			PrintWriter pw = new PrintWriter(caw);
+			e.printStackTrace(pw);
+			IJ.log(caw.toString());
+		}
+		CVForgeCache.endLeases();
+		Executer.unlockAllImages();
+	}
+	
+	/**
+	 * Get the library for macro calls.
+	 * Uses the library of CVForgeFrame if it has been opened, otherwise loads the active library once
+	 * without any user interface. This keeps macros working under java.awt.headless=true.
+	 * @return CVForge ready for method calls, null if no library could be loaded.
+	 */
+	protected static CVForge getForge(){
+		if(CVFORGEFRAME != null){
+			// the frame has reinitialized Executer with its own library
+			HEADLESSFORGE = null;
+			return CVFORGEFRAME.awaitLibrary()? CVForgeFrame.FORGE : null;
 		}
 		
+		synchronized(CVForgeLauncher.class){
+			if(HEADLESSFORGE == null){
+				IJ.showStatus("initializing CVForge...");
+				CVForge forge = new CVForge();
+				try{
+					forge.loadLibrary();
+				}catch(Exception e){
+					IJ.log(e.toString());
+				}
+				HEADLESSFORGE = forge;
+			}
+		}
+		return Executer.ready()? HEADLESSFORGE : null;
 	}
 	
 	/**
-	 * Get method corresponding to name and argument signature.
+	 * Load, compile and run a pipeline file.
+	 * @param forge Library to compile against.
+	 * @param path Path to pipeline file.
+	 * @see Pipeline
+	 */
+	protected void runPipeline(CVForge forge, String path){
+		long startTime = System.currentTimeMillis();
+		IJ.showStatus("running pipeline " + path + "...");
+		Executer.lockAllImages();
+		CVForgeCache.beginLeases();
+		try{
+			Pipeline pipeline = Pipeline.load(path);
+			pipeline.compile(forge.getMethodCache());
+			Executer.executePipeline(pipeline);
+			IJ.showStatus((System.currentTimeMillis()-startTime)+" milliseconds");
+		} catch(OutOfMemoryError e) {
+			IJ.outOfMemory(CVForge.VERSION);
+		} catch(Exception e) {
+			IJ.beep();
+			IJ.showStatus(e.toString());
+			CharArrayWriter caw = new CharArrayWriter();
+			PrintWriter pw = new PrintWriter(caw);
+			e.printStackTrace(pw);
+			IJ.log(caw.toString());
+		}
+		CVForgeCache.endLeases();
+		Executer.unlockAllImages();
+	}
+	
+	/**
+	 * Get the compiled plan of a call, compiling it on first use of its shape.
+	 * Plans are dropped whenever the method index changes, e.g. when another library is loaded.
+	 * @param forge Library to search.
 	 * @param methodName Name of the method. 
-	 * @param methodArgs String representations of the argumetns.
-	 * @return
+	 * @param methodArgs String representations of the arguments.
+	 * @return Plan with method and argument converters, null if no method fits.
+	 * @see CallPlan
 	 */
-	protected Method getMethod(String methodName, String[] methodArgs){
-		Method res = null;
-		HashMap<String, Method> methodCache = CVFORGEFRAME.FORGE.methodCache; 
-		Set<String> keySet = methodCache.keySet();
-		
-		// find methods with matching names
-		ArrayList<Method> matches = new ArrayList<Method>();
-		for(String key: keySet){
-			if(key.contains(methodName)){
-				matches.add(methodCache.get(key));
+	protected static CallPlan getPlan(CVForge forge, String methodName, String[] methodArgs){
+		MethodIndex methodCache = forge.getMethodCache();
+		String shape = CallPlan.shape(methodName, methodArgs);
+		int modCount = methodCache.getModCount();
+		synchronized(PLANS){
+			if((methodCache != planIndex) || (modCount != planModCount)){
+				PLANS.clear();
+				planIndex = methodCache;
+				planModCount = modCount;
 			}
+			CallPlan plan = PLANS.get(shape);
+			if(plan != null)
+				return plan;
 		}
-
-		// choose method with matching parameter signature
-		for(Method m: matches){
-			if(m.getParameterCount() == methodArgs.length){
-				res = m;
+		
+		// only the chosen method is loaded
+		CallPlan plan = CallPlan.compile(methodCache, methodName, methodArgs);
+		if(plan == null)
+			return null;
+		synchronized(PLANS){
+			if((methodCache == planIndex) && (modCount == planModCount)){
+				if(PLANS.size() >= MAXPLANS)
+					PLANS.clear();
+				PLANS.put(plan.getShape(), plan);
 			}
 		}
-		return res;
+		return plan;
 	}
 	
 	/**
 	 * Returns arguments for method call as array.
 	 * First element of array is method name itself.
+	 * The optional "stack" argument is not returned but stored as slice range.
+	 * The optional "nodisplay" keyword keeps Mat results in the cache only, as does ImageJ's batch mode.
 	 * @param arg Argument string from which single arguments are extracted.
 	 * @return Arguments 
 	 */
 	protected String[] extractArgs(String arg){
-		String[] args = arg.split(" ");
-		String[] res = new String[args.length];
-		
-		for(int i=0; i<args.length; ++i){
-			String[] splits = args[i].split("=");
-			res[i] = splits[1];
-		}
+		ArrayList<String> res = new ArrayList<String>();
+		sliceRange = null;
+		hyperstackRange = null;
+		display = !Interpreter.isBatchMode();
 		
-		return res;
-	}
-
-	/**
-	 * TODO refac, CVCallFrame is doing something similar.
-	 * Convert the arguments in preparation for method call.
-	 * @param method Method to be called.
-	 * @param args Arguments to be converted to suitable method parameters.
-	 * @return Converted Objects for method call.
-	 */
-	protected Object[] convertArguments(Method method, String[] args){
-		Object[] conv = new Object[args.length];
-		
-		Class[] params = method.getParameterTypes();
-		for(int i=0; i<args.length; ++i){
-			String arg = args[i];
-			Class param = params[i];
-			if(param.isPrimitive()){
-				conv[i] = InputHelpers.stringToPrimitive(arg, param);
-			}else{
-				if(param.getName().equals(InputHelpers.CVMAT)){
-					if(arg.equals("[currentWindow]")){
-						arg = WindowManager.getCurrentWindow().getTitle();
-						conv[i] = WindowManager.getImage(arg).getProcessor();
-					}
-				}
-				// if object is cached, do lookup
-				if(arg.startsWith("[cache:")){
-					String key = arg.substring(7, arg.length()-2);
-					conv[i] = CVForgeCache.get(key);
-					if(conv[i] == null){
-						IJ.showMessage("CVForge Error", "Cache lookup for named object \"" + key + "\" failed!");
-					}
-				}
+		// single pass over "key=value" pairs, values keep any further '='
+		int length = arg.length();
+		for(int start=0, end; start<length; start=end+1){
+			end = arg.indexOf(' ', start);
+			if(end == -1)
+				end = length;
+			if(end == start)
+				continue;
+			String token = arg.substring(start, end);
+			if(token.equals("nodisplay")){
+				display = false;
+				continue;
 			}
+			int split = token.indexOf('=');
+			String key = (split == -1)? token : token.substring(0, split);
+			String value = (split == -1)? "" : token.substring(split+1);
+			if(key.equals("stack")){
+				boolean isHyperstack = ArgumentHelpers.isHyperstackRange(value);
+				if(isHyperstack)
+					hyperstackRange = ArgumentHelpers.parseHyperstackRange(value);
+				sliceRange = ArgumentHelpers.parseSliceRange(isHyperstack? "" : value);
+				continue;
+			}
+			if(split != -1)
+				res.add(value);
 		}
-		return conv;
+		
+		return res.toArray(new String[res.size()]);
 	}
 	
-}
+}
\ No newline at end of file
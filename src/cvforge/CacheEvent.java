@@ -0,0 +1,100 @@
+package cvforge;
+
+/**
+ * Change of a single CVForgeCache entry, delivered to CacheListeners.
+ * Changes of the same key within the coalescing window are merged into one event,
+ * e.g. an entry added and removed again yields no event at all.
+ */
+public class CacheEvent {
+
+	// kinds of change
+	public static final int ADDED = 0;
+	public static final int REMOVED = 1;
+	public static final int UPDATED = 2;
+
+	protected final int kind;
+	protected final String key;
+	protected final Class type;			// class of the new object, of the removed object for REMOVED
+	protected final Class previousType;	// class of the replaced object, null for ADDED
+
+	public CacheEvent(int kind, String key, Class type, Class previousType){
+		this.kind = kind;
+		this.key = key;
+		this.type = type;
+		this.previousType = previousType;
+	}
+
+	/**
+	 * Merge this event with a later event of the same key.
+	 * @param later Event following this one.
+	 * @return Combined event, null if the changes cancel out.
+	 */
+	public CacheEvent merge(CacheEvent later){
+		switch(kind){
+			case ADDED:
+				return (later.kind == REMOVED)? null : new CacheEvent(ADDED, key, later.type, null);
+			case REMOVED:
+				return (later.kind == REMOVED)? this : new CacheEvent(UPDATED, key, later.type, type);
+			default:
+				if(later.kind == REMOVED)
+					return new CacheEvent(REMOVED, key, previousType, null);
+				return new CacheEvent(UPDATED, key, later.type, previousType);
+		}
+	}
+
+	/**
+	 * Kind of change.
+	 * @return ADDED, REMOVED or UPDATED.
+	 */
+	public int getKind(){
+		return kind;
+	}
+
+	public String getKey(){
+		return key;
+	}
+
+	/**
+	 * Class of the cached object after the change, or of the removed object.
+	 * @return Object class.
+	 */
+	public Class getType(){
+		return type;
+	}
+
+	/**
+	 * Class of the replaced object of an UPDATED event.
+	 * @return Object class, null for ADDED and REMOVED.
+	 */
+	public Class getPreviousType(){
+		return previousType;
+	}
+
+	/**
+	 * Check if the key is no longer cached as an object of given type after this change.
+	 * @param classType Type of interest.
+	 * @return True if an object assignable to classType was removed or replaced by one of another type.
+	 */
+	public boolean removes(Class classType){
+		if(kind == REMOVED)
+			return classType.isAssignableFrom(type);
+		return (kind == UPDATED) && classType.isAssignableFrom(previousType) && !classType.isAssignableFrom(type);
+	}
+
+	/**
+	 * Check if the key is newly cached as an object of given type after this change.
+	 * @param classType Type of interest.
+	 * @return True if an object assignable to classType was added or replaced one of another type.
+	 */
+	public boolean adds(Class classType){
+		if(kind == ADDED)
+			return classType.isAssignableFrom(type);
+		return (kind == UPDATED) && classType.isAssignableFrom(type) && !classType.isAssignableFrom(previousType);
+	}
+
+	@Override
+	public String toString(){
+		String[] kinds = {"added", "removed", "updated"};
+		return kinds[kind] + " \"" + key + "\" (" + type.getSimpleName() + ")";
+	}
+}
@@ -1,5 +1,7 @@
 package cvforge;
 
+import java.util.List;
+
 /**
  * Interface for notifying classes depending on CVForgeCache.
  * Registers classes implementing this interface in CVForgeCache to make them aware of cache cahnges.
@@ -7,6 +9,9 @@ package cvforge;
 public interface CacheListener {
 	/**
 	 * Called when CVForgeCache experiences additions or removals of elements.
+	 * Changes are collected over a short period and delivered on the event dispatch thread,
+	 * so listeners may update their GUI elements directly.
+	 * @param events Changes since the last call, at most one per key, in order of their last change.
 	 */
-	public void cacheChanged();
+	public void cacheChanged(List<CacheEvent> events);
 }
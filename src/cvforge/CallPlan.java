@@ -0,0 +1,264 @@
+package cvforge;
+
+import java.lang.reflect.Method;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+
+import reflectiontools.MethodInfo;
+
+/**
+ * Compiled form of a macro call, i.e. the chosen method together with one converter per argument.
+ * Macro arguments are classified by shape(), so a plan can be reused for all calls of the same method
+ * whose arguments look alike, e.g. inside macro loops which only change numbers or image titles.
+ * Overloads are chosen by name, parameter count and the kinds of the arguments, without loading any class
+ * except the one of the chosen method. Arguments naming cached objects are also classified by the type of the object,
+ * so plans are not reused once a key is associated to an object of another type.
+ */
+public final class CallPlan {
+
+	// kinds of textual arguments, as used in shapes
+	protected static final char NUMBER = 'n';
+	protected static final char BOOLEAN = 'b';
+	protected static final char CACHEREF = 'c';
+	protected static final char CURRENTWINDOW = 'w';
+	protected static final char TEXT = 't';
+
+	// converters of arguments
+	protected static final int TOPRIMITIVE = 0;
+	protected static final int TOIMAGE = 1;
+	protected static final int TOCURRENTIMAGE = 2;
+	protected static final int TOCACHEREF = 3;
+	protected static final int TOCACHED = 4;
+
+	protected static final String CACHEPREFIX = "[cache:";
+	protected static final String CURRENTWINDOWARG = "[currentWindow]";
+	protected static final String MATDESC = "L" + ArgumentHelpers.CVMAT.replace('.', '/') + ";";
+	protected static final String STRINGDESC = "Ljava/lang/String;";
+
+	protected final String shape;
+	protected final Method method;
+	protected final Class[] params;
+	protected final int[] converters;
+
+	protected CallPlan(String shape, Method method, int[] converters){
+		this.shape = shape;
+		this.method = method;
+		this.params = method.getParameterTypes();
+		this.converters = converters;
+	}
+
+	/**
+	 * Classify macro arguments of a call.
+	 * Calls of equal shape are served by the same plan.
+	 * @param methodName Name of the method.
+	 * @param args String representations of the arguments.
+	 * @return Shape of the call, e.g. "medianBlur(ttn)" or "add(tc{org.opencv.core.Scalar}t)".
+	 */
+	public static String shape(String methodName, String[] args){
+		char[] kinds = new char[args.length];
+		Class[] types = new Class[args.length];
+		classify(args, kinds, types);
+		return shape(methodName, kinds, types);
+	}
+
+	/**
+	 * Choose the method for a call and resolve the converters of its arguments.
+	 * Among overloads of matching name and parameter count the one fitting the argument kinds best is taken,
+	 * names of images are preferably passed to Mat parameters. Ties are broken by the order of the index.
+	 * @param index Methods to choose from.
+	 * @param methodName Name of the method.
+	 * @param args String representations of the arguments.
+	 * @return Plan for calls of equal shape, null if no method fits.
+	 */
+	public static CallPlan compile(MethodIndex index, String methodName, String[] args){
+		char[] kinds = new char[args.length];
+		Class[] types = new Class[args.length];
+		classify(args, kinds, types);
+
+		String best = null;
+		int bestScore = -1;
+		for(String key: index.getOverloads(methodName, args.length)){
+			MethodInfo info = index.getInfo(key);
+			if((info == null) || !info.isStatic())
+				continue;
+			int score = 0;
+			for(int i=0; (i<kinds.length) && (score >= 0); ++i){
+				int s = score(info.getParameterType(i), kinds[i], types[i]);
+				score = (s < 0)? -1 : score + s;
+			}
+			if(score > bestScore){
+				best = key;
+				bestScore = score;
+			}
+		}
+		if(best == null)
+			return null;
+
+		Method method = index.get(best);
+		if(method == null)
+			return null;
+		Class[] params = method.getParameterTypes();
+		int[] converters = new int[params.length];
+		for(int i=0; i<params.length; ++i)
+			converters[i] = converter(params[i], kinds[i]);
+		return new CallPlan(shape(methodName, kinds, types), method, converters);
+	}
+
+	/**
+	 * Shape of the calls this plan was compiled for.
+	 * @return Shape as given by shape().
+	 * @see CallPlan#shape(String, String[])
+	 */
+	public String getShape(){
+		return shape;
+	}
+
+	public Method getMethod(){
+		return method;
+	}
+
+	/**
+	 * Convert the arguments of a call of this plan's shape.
+	 * Open images are looked up by title, cached objects by key, as done by the call frame.
+	 * @param args String representations of the arguments.
+	 * @param wholeStack Set true to pass whole images to Mat parameters, e.g. in stack mode.
+	 * @return Converted objects for method call.
+	 */
+	public Object[] convert(String[] args, boolean wholeStack){
+		Object[] conv = new Object[args.length];
+		for(int i=0; i<args.length; ++i){
+			String arg = args[i];
+			switch(converters[i]){
+				case TOPRIMITIVE:
+					conv[i] = ArgumentHelpers.stringToPrimitive(arg, params[i]);
+					break;
+				case TOCURRENTIMAGE:
+					// batch mode and headless macros have images without windows
+					ImagePlus current = WindowManager.getCurrentImage();
+					if(current == null)
+						throw new IllegalArgumentException("No current image for argument " + CURRENTWINDOWARG);
+					conv[i] = wholeStack? current : current.getProcessor();
+					break;
+				case TOIMAGE:
+					conv[i] = ArgumentHelpers.resolveImage(arg, wholeStack);
+					if(conv[i] == null)
+						IJ.showMessage("CVForge Error", "Image or cached Mat \"" + arg + "\" not found!");
+					break;
+				default:
+					// cached objects are named plainly or by a cache reference
+					String key = (converters[i] == TOCACHEREF)? cacheKey(arg) : arg;
+					conv[i] = CVForgeCache.get(key);
+					if(conv[i] == null)
+						IJ.showMessage("CVForge Error", "Cache lookup for named object \"" + key + "\" failed!");
+			}
+		}
+		return conv;
+	}
+
+	// classify arguments by kind and by type of the cached objects they name
+	protected static void classify(String[] args, char[] kinds, Class[] types){
+		for(int i=0; i<args.length; ++i){
+			kinds[i] = kind(args[i]);
+			if(kinds[i] == CACHEREF)
+				types[i] = CVForgeCache.getType(cacheKey(args[i]));
+			else if(kinds[i] == TEXT)
+				types[i] = CVForgeCache.getType(args[i]);
+		}
+	}
+
+	protected static String shape(String methodName, char[] kinds, Class[] types){
+		StringBuilder sb = new StringBuilder(methodName.length() + kinds.length + 2);
+		sb.append(methodName).append('(');
+		for(int i=0; i<kinds.length; ++i){
+			sb.append(kinds[i]);
+			if(types[i] != null)
+				sb.append('{').append(types[i].getName()).append('}');
+		}
+		return sb.append(')').toString();
+	}
+
+	// key of a cache reference "[cache:key]"
+	protected static String cacheKey(String arg){
+		return arg.substring(CACHEPREFIX.length(), arg.length()-1);
+	}
+
+	// kind of a textual argument
+	protected static char kind(String arg){
+		if(arg.isEmpty())
+			return TEXT;
+		if(arg.startsWith(CACHEPREFIX) && arg.endsWith("]"))
+			return CACHEREF;
+		if(arg.equals(CURRENTWINDOWARG))
+			return CURRENTWINDOW;
+		if(arg.equals("true") || arg.equals("false"))
+			return BOOLEAN;
+		char c = arg.charAt(0);
+		if(((c >= '0') && (c <= '9')) || (c == '-') || (c == '+') || (c == '.')){
+			try{
+				Double.parseDouble(arg);
+				return NUMBER;
+			}catch(NumberFormatException e){
+				// e.g. an image titled "1-blurred.tif"
+			}
+		}
+		return TEXT;
+	}
+
+	/**
+	 * Rate how well an argument fits a parameter.
+	 * @param desc Type descriptor of the parameter.
+	 * @param kind Kind of the argument.
+	 * @param type Class of the cached object named by the argument, null if it names none.
+	 * @return Score, higher is better. -1 if the argument cannot be converted.
+	 */
+	protected static int score(String desc, char kind, Class type){
+		if(desc.equals("Z"))
+			return (kind == BOOLEAN)? 2 : 0;
+		if(desc.length() == 1)
+			return (kind == NUMBER)? 2 : -1;
+		if(desc.equals(STRINGDESC))
+			return (kind == CACHEREF)? 0 : 1;
+		if(kind == CACHEREF){
+			if(type == null)
+				return 0;
+			return isAssignable(type, desc)? 2 : -1;
+		}
+		if(desc.equals(MATDESC)){
+			// names of cached objects of other types may still be image titles
+			if((kind == TEXT) && (type != null))
+				return isAssignable(type, desc)? 2 : 1;
+			return ((kind == NUMBER) || (kind == BOOLEAN))? 1 : 2;
+		}
+		if(kind != TEXT)
+			return 0;
+		if(type == null)
+			return 1;
+		return isAssignable(type, desc)? 2 : -1;
+	}
+
+	// check if objects of type can be passed to a parameter of given descriptor, without loading the parameter type
+	protected static boolean isAssignable(Class type, String desc){
+		String name = (desc.charAt(0) == 'L')? desc.substring(1, desc.length()-1).replace('/', '.') : desc.replace('/', '.');
+		for(Class c: CVForgeCache.assignableTypes.get(type)){
+			if(c.getName().equals(name))
+				return true;
+		}
+		return false;
+	}
+
+	// converter for an argument kind passed to a parameter
+	protected static int converter(Class param, char kind){
+		if(param.isPrimitive())
+			return TOPRIMITIVE;
+		// also for Strings, a cache reference names a cached String
+		if(kind == CACHEREF)
+			return TOCACHEREF;
+		if(param == String.class)
+			return TOPRIMITIVE;
+		if(param.getName().equals(ArgumentHelpers.CVMAT))
+			return (kind == CURRENTWINDOW)? TOCURRENTIMAGE : TOIMAGE;
+		return TOCACHED;
+	}
+}
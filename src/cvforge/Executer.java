@@ -1,25 +1,53 @@
 package cvforge;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.net.URLClassLoader;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
 import reflectiontools.JarInspector;
 
 // handle with care!
 public final class Executer {
 	
 	protected static final String SEP = CVForge.SEP;
-	protected static final Class[] SIG = {Method.class, Object[].class, String.class};
+	protected static final Class[] SIG = {Method.class, Object[].class, String.class, boolean.class};
+	protected static final Class[] SIGLEGACY = {Method.class, Object[].class, String.class};
+	protected static final Class[] SIGSTACK = {Method.class, Object[].class, String.class, int.class, int.class, int.class};
+	protected static final Class[] SIGHYPERSTACK = {Method.class, Object[].class, String.class, int[].class, int.class};
+	protected static final Class[] SIGPIPELINE = {Pipeline.class};
+	protected static final Class[] SIGSHOW = {String.class};
 	
 	protected static Class executer; 
 	protected static Method execute;
+	protected static Method executeStack;
+	protected static Method executeHyperstack;
+	protected static Method executePipeline;
+	protected static Method show;
+	
+	// exact-typed handles of the entry points above
+	protected static MethodHandle executeHandle;
+	protected static MethodHandle executeStackHandle;
+	protected static MethodHandle executeHyperstackHandle;
+	protected static MethodHandle executePipelineHandle;
+	protected static MethodHandle showHandle;
+	
+	// spread handles of called OpenCV methods, valid for the current class loader only
+	protected static ConcurrentHashMap<Method, MethodHandle> handleCache = new ConcurrentHashMap<Method, MethodHandle>();
+	protected static final MethodType SPREADTYPE = MethodType.methodType(Object.class, Object[].class);
 	
 	protected static URLClassLoader classLoader;
 	protected static ClassLoader systemLoader = ClassLoader.getSystemClassLoader();
 	
 	protected static final String EXECUTERNAME = "CVForgeExecuter";
+	protected static final String DISPATCHERNAME = "HyperstackDispatcher";
+	protected static final String PIPELINENAME = "PipelineExecuter";
 	protected static final String CONVERTERJAR = "CVForgeConversion.jar";
 	
 	
@@ -30,16 +58,36 @@ public final class Executer {
 	 * @throws Exception
 	 */
 	public static void initCVForgeExecuter(String cvPath, String dllPath, CVForgeClassLoader loader) throws Exception{		
+		// handles of the previous library must not survive a switch
+		classLoader = loader;
+		Class previous = executer;
+		executer = null;
+		handleCache.clear();
+		executeHandle = null;
+		executeStackHandle = null;
+		executeHyperstackHandle = null;
+		executePipelineHandle = null;
+		showHandle = null;
+		
 		final String path = CVForge.PLUGINDIR + CONVERTERJAR;
 		loader.addURL(path);
 		List<Class> classes = JarInspector.loadClassesFromJar(path, loader);
+		Class dispatcher = null;
+		Class pipelineExecuter = null;
 		for(Class c: classes){
 			if(c.getSimpleName().equals(EXECUTERNAME)){
 				executer = c;
 				IJ.register(c);
+			}else if(c.getSimpleName().equals(DISPATCHERNAME)){
+				dispatcher = c;
+			}else if(c.getSimpleName().equals(PIPELINENAME)){
+				pipelineExecuter = c;
 			}
 		}
 		
+		// native memory of the previous module would be unreachable after the switch
+		if((previous != null) && (previous != executer))
+			disposeCVForgeExecuter(previous);
 		if(executer == null)
 			throw new ClassNotFoundException("No Execution/Conversion module found.");
 		
@@ -47,8 +95,102 @@ public final class Executer {
 		init.setAccessible(true);
 		init.invoke(null, dllPath);
 	
-		execute = executer.getMethod("execute", SIG);
-		execute.setAccessible(true);
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		execute = findMethod(executer, "execute", SIG);
+		if(execute != null){
+			executeHandle = lookup.unreflect(execute);
+		}else{
+			// older modules always show their results, the display flag is ignored
+			execute = executer.getMethod("execute", SIGLEGACY);
+			execute.setAccessible(true);
+			executeHandle = MethodHandles.dropArguments(lookup.unreflect(execute), SIGLEGACY.length, boolean.class);
+		}
+		executeStack = findMethod(executer, "executeStack", SIGSTACK);
+		if(executeStack != null)
+			executeStackHandle = lookup.unreflect(executeStack);
+		
+		show = findMethod(executer, "show", SIGSHOW);
+		if(show != null){
+			// the ImagePlus is of no interest here
+			showHandle = lookup.unreflect(show).asType(MethodType.methodType(void.class, String.class));
+		}
+		
+		if(dispatcher != null){
+			executeHyperstack = dispatcher.getMethod("execute", SIGHYPERSTACK);
+			executeHyperstack.setAccessible(true);
+			executeHyperstackHandle = lookup.unreflect(executeHyperstack);
+		}
+		
+		if(pipelineExecuter != null){
+			executePipeline = pipelineExecuter.getMethod("execute", SIGPIPELINE);
+			executePipeline.setAccessible(true);
+			executePipelineHandle = lookup.unreflect(executePipeline);
+		}
+	}
+	
+	/**
+	 * Look up an entry point which older conversion modules may lack.
+	 * @param c Class of the module.
+	 * @param name Name of the method.
+	 * @param sig Parameter types.
+	 * @return Accessible method, null if not present.
+	 */
+	protected static Method findMethod(Class c, String name, Class[] sig){
+		try{
+			Method m = c.getMethod(name, sig);
+			m.setAccessible(true);
+			return m;
+		}catch(NoSuchMethodException e){
+			return null;
+		}
+	}
+	
+	/**
+	 * Get cached handle of given static method.
+	 * The handle takes all arguments as a single Object[] and returns the result as Object, null for void methods.
+	 * Handles are resolved once and cached until the next library switch.
+	 * @param m Static method to resolve.
+	 * @return Handle of type (Object[])Object.
+	 * @throws IllegalAccessException Thrown, if the method is not accessible.
+	 */
+	public static MethodHandle getMethodHandle(Method m) throws IllegalAccessException{
+		MethodHandle handle = handleCache.get(m);
+		if(handle == null){
+			handle = MethodHandles.lookup().unreflect(m).asFixedArity()
+					.asSpreader(Object[].class, m.getParameterCount())
+					.asType(SPREADTYPE);
+			handleCache.put(m, handle);
+		}
+		return handle;
+	}
+	
+	/**
+	 * Call given static method through its cached handle.
+	 * @param m Static method to call.
+	 * @param args Arguments for method.
+	 * @return Result of the call, null for void methods.
+	 * @throws Exception Thrown by the method itself, or if arguments do not match.
+	 */
+	public static Object invoke(Method m, Object[] args) throws Exception{
+		MethodHandle handle = getMethodHandle(m);
+		try{
+			return (Object)handle.invokeExact(args);
+		}catch(Throwable t){
+			throw rethrow(t);
+		}
+	}
+	
+	/**
+	 * Pass on Errors and Exceptions, wrap everything else.
+	 * @param t Throwable caught from a handle invocation.
+	 * @return Exception to throw.
+	 */
+	protected static Exception rethrow(Throwable t){
+		if(t instanceof Error)
+			throw (Error)t;
+		if(t instanceof Exception)
+			return (Exception)t;
+		return new Exception(t);
 	}
 	
 	/**
@@ -56,10 +198,136 @@ public final class Executer {
 	 * @param m Method to execute.
 	 * @param args Arguments for method.
 	 * @param cacheTarget Destination for cache. Only relevant if method has return type.
+	 * @param display Set true to show Mat results as ImageJ image. Otherwise they are only cached, see showCached().
 	 * @throws Exception Thrown, if execution fails.
 	 */
+	public static void executeMethod(Method m, Object[] args, String cacheTarget, boolean display) throws Exception{ 
+		try{
+			executeHandle.invokeExact(m, args, cacheTarget, display);
+		}catch(Throwable t){
+			throw rethrow(t);
+		}
+	}
+	
+	// overloaded, Mat results are shown.
 	public static void executeMethod(Method m, Object[] args, String cacheTarget) throws Exception{ 
-		execute.invoke(null, m, args, cacheTarget);
+		executeMethod(m, args, cacheTarget, true);
+	}
+	
+	/**
+	 * Convert a cached Mat into an ImageJ image and show it.
+	 * @param key Name of the cached Mat, used as image title.
+	 * @throws Exception Thrown, if no Mat is cached under key or conversion fails.
+	 */
+	public static void showCached(String key) throws Exception{
+		if(executer == null)
+			throw new ClassNotFoundException("No Execution/Conversion module loaded.");
+		if(showHandle == null)
+			throw new ClassNotFoundException("Conversion module does not support showing cached Mats.");
+		// the Mat must not be released by eviction while it is converted
+		CVForgeCache.beginLeases();
+		try{
+			showHandle.invokeExact(key);
+		}catch(Throwable t){
+			throw rethrow(t);
+		}finally{
+			CVForgeCache.endLeases();
+		}
+	}
+	
+	/**
+	 * Execute given OpenCV method on a range of slices.
+	 * ImagePlus arguments are replaced by the processor of each slice.
+	 * @param m Method to execute.
+	 * @param args Arguments for method.
+	 * @param cacheTarget Destination for cache. Only relevant if method has return type.
+	 * @param first First slice to process, starting at 1.
+	 * @param last Last slice to process. Values below 1 denote the last slice.
+	 * @param threads Number of worker threads. Values below 1 use all available processors.
+	 * @throws Exception Thrown, if execution fails.
+	 */
+	public static void executeStack(Method m, Object[] args, String cacheTarget, int first, int last, int threads) throws Exception{ 
+		if(executeStackHandle == null)
+			throw new ClassNotFoundException("Conversion module does not support stacks.");
+		try{
+			executeStackHandle.invokeExact(m, args, cacheTarget, first, last, threads);
+		}catch(Throwable t){
+			throw rethrow(t);
+		}
+	}
+	
+	/**
+	 * Execute given OpenCV method on every plane of the chosen hyperstack ranges.
+	 * ImagePlus arguments are replaced by the processor of each plane.
+	 * @param m Method to execute.
+	 * @param args Arguments for method.
+	 * @param cacheTarget Destination for cache. Only relevant if method has return type.
+	 * @param ranges First and last position of channels, slices and frames: {c0, c1, z0, z1, t0, t1}.
+	 * @param threads Number of worker threads. Values below 1 use all available processors.
+	 * @throws Exception Thrown, if execution fails.
+	 */
+	public static void executeHyperstack(Method m, Object[] args, String cacheTarget, int[] ranges, int threads) throws Exception{
+		if(executeHyperstackHandle == null)
+			throw new ClassNotFoundException("Conversion module does not support hyperstacks.");
+		try{
+			executeHyperstackHandle.invokeExact(m, args, cacheTarget, ranges, threads);
+		}catch(Throwable t){
+			throw rethrow(t);
+		}
+	}
+	
+	/**
+	 * Run all steps of a pipeline on native Mats.
+	 * ImageJ images are only converted at the inputs and outputs declared by the pipeline.
+	 * @param pipeline Pipeline compiled against the current method cache.
+	 * @throws Exception Thrown, if execution fails.
+	 */
+	public static void executePipeline(Pipeline pipeline) throws Exception{
+		if(executePipelineHandle == null)
+			throw new ClassNotFoundException("Conversion module does not support pipelines.");
+		try{
+			executePipelineHandle.invokeExact(pipeline);
+		}catch(Throwable t){
+			throw rethrow(t);
+		}
+	}
+	
+	/**
+	 * Let a CVForgeExecuter free its resources once it is replaced by another library.
+	 * Failures are logged only, as the module is abandoned anyway.
+	 * @param abandoned CVForgeExecuter class of the previous library.
+	 */
+	protected static void disposeCVForgeExecuter(Class abandoned){
+		try{
+			abandoned.getMethod("dispose").invoke(null);
+		}catch(NoSuchMethodException e){
+			// module of an older version
+		}catch(Exception e){
+			IJ.log("Unable to dispose " + EXECUTERNAME + ": " + e);
+		}
+	}
+	
+	/**
+	 * Lock all images for filtering.
+	 */
+	public static void lockAllImages(){
+		for(String title: WindowManager.getImageTitles()){
+			ImagePlus imp = WindowManager.getImage(title);
+			imp.lock();
+		}
+	}
+	
+	/**
+	 * Unlock and update all images.
+	 */
+	public static void unlockAllImages(){
+		for(String title: WindowManager.getImageTitles()){
+			ImagePlus imp = WindowManager.getImage(title);
+			// keeps MatMirrors of unchanged images valid
+			ImageStamps.expectUpdate(imp);
+			imp.updateAndDraw();
+			imp.unlock();
+		}
 	}
 	
 	/**
@@ -67,6 +335,6 @@ public final class Executer {
 	 * @return true, if CVForgeExecuter class and execute method loaded.
 	 */
 	public static boolean ready(){
-		return (executer != null) && (execute != null);
+		return (executer != null) && (executeHandle != null);
 	}
 }
@@ -1,5 +1,13 @@
 package cvforge;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
 import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.TreeNode;
 
@@ -59,11 +67,6 @@ public class FilteredTreeModel extends DefaultTreeModel {
 	 * @return Selected child of parent node.
 	 */
 	public Object getChild(Object parent, int index) {
-		if(filterIsActive()) {
-			if(parent instanceof FilteredTreeNode) {
-	    		return ((FilteredTreeNode)parent).getChildAt(index);
-		  	}
-		}
 		return ((TreeNode)parent).getChildAt(index);
 	}
 	
@@ -74,23 +77,81 @@ public class FilteredTreeModel extends DefaultTreeModel {
 	 * @return Number of children.
 	 */
 	public int getChildCount(Object parent) {
-		if(filterIsActive()) {
-			if(parent instanceof FilteredTreeModel) {
-				return ((FilteredTreeNode)parent).getChildCount();
-		  	}
-	  	}
   		return ((TreeNode)parent).getChildCount();
 	}
 	
 	/**
 	 * Set new String for filtering nodes.
 	 * Will be cast to lowercase!
+	 * Leaves are matched through a trigram index built on first use.
+	 * If the new filter contains the previous one, only the previous matches are checked again.
+	 * A node stays visible if its label contains the filter or if it has visible children, as FilteredTreeNode.setFilter() does.
 	 * @param filter 
 	 */
 	public void setFilter(String filter){
+		String previous = this.filter;
 		this.filter = filter.toLowerCase();
-		FilteredTreeNode top = (FilteredTreeNode)this.root;
-		top.setFilter(this.filter);
+		if(!(root instanceof FilteredTreeNode))
+			return;
+		
+		boolean rebuilt = false;
+		if(index == null){
+			index = new FilterIndex((FilteredTreeNode)root);
+			rebuilt = true;
+		}
+		boolean refine = !rebuilt && !previous.isEmpty() && this.filter.contains(previous);
+		index.apply(this.filter, refine);
+	}
+	
+	/**
+	 * Append node as last child of parent and notify listeners, e.g. while a library is loaded.
+	 * With an active filter, the new subtree is filtered before it is shown.
+	 * @param child New node.
+	 * @param parent Node of this model receiving the child.
+	 */
+	public void appendNodeInto(FilteredTreeNode child, FilteredTreeNode parent){
+		// insert() addresses all children, getChildCount() only the visible ones
+		parent.insert(child, parent.getRealChildCount());
+		
+		// ancestors may appear with their first matching descendant
+		FilteredTreeNode changed = null;
+		if(filterIsActive()){
+			filterSubtree(child);
+			for(FilteredTreeNode node=parent; node.getParent() != null; node=(FilteredTreeNode)node.getParent()){
+				if(node.setVisible((node.getChildCount() != 0) || node.getLabel().contains(filter)))
+					changed = node;
+			}
+		}
+		
+		// appending only reveals nodes, so the topmost revealed ancestor appears as inserted
+		FilteredTreeNode inserted = (changed != null)? changed : child;
+		FilteredTreeNode insertedParent = (FilteredTreeNode)inserted.getParent();
+		int visibleIndex = insertedParent.getIndex(inserted);
+		if(visibleIndex >= 0)
+			nodesWereInserted(insertedParent, new int[]{visibleIndex});
+		else
+			index = null;
+	}
+	
+	/**
+	 * Apply the current filter to a subtree which is not part of the index yet.
+	 * Lazy subtrees are filtered through their table.
+	 * @param node Root of subtree.
+	 */
+	protected void filterSubtree(FilteredTreeNode node){
+		if(node instanceof LazyTreeNode){
+			node.setFilter(filter);
+			return;
+		}
+		node.filter = filter;
+		int total = node.getRealChildCount();
+		if(total == 0){
+			node.setVisible(node.getLabel().contains(filter));
+			return;
+		}
+		for(int i=0; i<total; ++i)
+			filterSubtree(node.getRealChildAt(i));
+		node.setVisible((node.getChildCount() != 0) || node.getLabel().contains(filter));
 	}
 	
 	/**
@@ -100,5 +161,230 @@ public class FilteredTreeModel extends DefaultTreeModel {
 	protected boolean filterIsActive(){
 		return !filter.isEmpty();
 	}
+	
+	// index of filterable nodes, null if the tree changed since it was built
+	protected FilterIndex index;
+	
+	// structural changes invalidate the index
+	@Override
+	public void nodesWereInserted(TreeNode node, int[] childIndices) {
+		index = null;
+		super.nodesWereInserted(node, childIndices);
+	}
+	
+	@Override
+	public void nodesWereRemoved(TreeNode node, int[] childIndices, Object[] removedChildren) {
+		index = null;
+		super.nodesWereRemoved(node, childIndices, removedChildren);
+	}
+	
+	@Override
+	public void nodeStructureChanged(TreeNode node) {
+		index = null;
+		super.nodeStructureChanged(node);
+	}
+	
+	@Override
+	public void setRoot(TreeNode root) {
+		index = null;
+		super.setRoot(root);
+	}
+	
+	/**
+	 * Trigram index over the lowercase labels of all leaves of a tree.
+	 * Keeps the current matches, so narrowing a filter only rechecks them.
+	 * Subtrees of LazyTreeNode objects are indexed through their SignatureTable, without creating nodes.
+	 */
+	protected static class FilterIndex {
+		// leaves and their lowercase labels, ids are array positions
+		// ids of table signatures follow the leaf nodes and have no node
+		protected final FilteredTreeNode[] leaves;
+		protected final String[] labels;
+		// tables of lazy subtrees and the id of their first signature
+		protected final SignatureTable[] tables;
+		protected final int[] tableBase;
+		// inner nodes, children before parents
+		protected final FilteredTreeNode[] inner;
+		// leaf ids per trigram in ascending order
+		protected final HashMap<Long, int[]> postings = new HashMap<Long, int[]>();
+		// ids of leaves matching the current filter, null if all match
+		protected int[] matches;
+		
+		FilterIndex(FilteredTreeNode root){
+			ArrayList<FilteredTreeNode> leafList = new ArrayList<FilteredTreeNode>();
+			ArrayList<FilteredTreeNode> innerList = new ArrayList<FilteredTreeNode>();
+			ArrayList<SignatureTable> tableList = new ArrayList<SignatureTable>();
+			collect(root, leafList, innerList, tableList);
+			inner = innerList.toArray(new FilteredTreeNode[innerList.size()]);
+			tables = tableList.toArray(new SignatureTable[tableList.size()]);
+			tableBase = new int[tables.length];
+			
+			int total = leafList.size();
+			for(int t=0; t<tables.length; ++t){
+				tableBase[t] = total;
+				total += tables[t].getMethodCount();
+			}
+			leaves = leafList.toArray(new FilteredTreeNode[total]);
+			labels = new String[total];
+			for(int id=0; id<leafList.size(); ++id)
+				labels[id] = leaves[id].getLabel();
+			for(int t=0; t<tables.length; ++t)
+				for(int m=0; m<tables[t].getMethodCount(); ++m)
+					labels[tableBase[t]+m] = tables[t].getSignatureLabel(m);
+			
+			// postings store their length in the first element
+			HashSet<Long> seen = new HashSet<Long>();
+			for(int id=0; id<labels.length; ++id){
+				seen.clear();
+				for(int i=0; i+3<=labels[id].length(); ++i){
+					Long key = trigram(labels[id], i);
+					if(!seen.add(key))
+						continue;
+					int[] list = postings.get(key);
+					if(list == null){
+						list = new int[5];
+					}else if(list[0]+1 == list.length){
+						list = Arrays.copyOf(list, 2*list.length);
+					}
+					list[++list[0]] = id;
+					postings.put(key, list);
+				}
+			}
+			for(Map.Entry<Long, int[]> entry: postings.entrySet()){
+				int[] list = entry.getValue();
+				entry.setValue(Arrays.copyOfRange(list, 1, list[0]+1));
+			}
+		}
+		
+		// gather leaves and inner nodes in post-order, lazy subtrees by their table
+		protected static void collect(FilteredTreeNode node, ArrayList<FilteredTreeNode> leafList, ArrayList<FilteredTreeNode> innerList, ArrayList<SignatureTable> tableList){
+			if(node instanceof LazyTreeNode){
+				SignatureTable table = ((LazyTreeNode)node).getTable();
+				if(!tableList.contains(table))
+					tableList.add(table);
+				return;
+			}
+			
+			int total = node.getRealChildCount();
+			if(total == 0){
+				leafList.add(node);
+				return;
+			}
+			for(int i=0; i<total; ++i)
+				collect(node.getRealChildAt(i), leafList, innerList, tableList);
+			innerList.add(node);
+		}
+		
+		// pack three characters into key
+		protected static Long trigram(String s, int offset){
+			return ((long)s.charAt(offset) << 32) | ((long)s.charAt(offset+1) << 16) | s.charAt(offset+2);
+		}
+		
+		/**
+		 * Update visibility of all nodes for given filter.
+		 * @param filter Lowercase filter.
+		 * @param refine True if filter contains the filter applied before.
+		 */
+		void apply(String filter, boolean refine){
+			int[] previous = matches;
+			if(filter.isEmpty()){
+				matches = null;
+			}else{
+				int[] candidates = (refine && (previous != null))? previous : candidates(filter);
+				int count = 0;
+				int[] result = new int[(candidates == null)? labels.length : candidates.length];
+				for(int i=0; i<result.length; ++i){
+					int id = (candidates == null)? i : candidates[i];
+					if(labels[id].contains(filter))
+						result[count++] = id;
+				}
+				matches = Arrays.copyOf(result, count);
+			}
+			
+			// leaves, only previous matches can change when refining
+			if(refine && (previous != null)){
+				for(int id: previous)
+					if(leaves[id] != null)
+						leaves[id].setVisible(false);
+			}else{
+				boolean visible = (matches == null);
+				for(FilteredTreeNode leaf: leaves)
+					if(leaf != null)
+						leaf.setVisible(visible);
+			}
+			if(matches != null){
+				for(int id: matches)
+					if(leaves[id] != null)
+						leaves[id].setVisible(true);
+			}
+			
+			// lazy subtrees, matches of each table form a contiguous range
+			for(int t=0; t<tables.length; ++t){
+				int[] local = new int[0];
+				if(matches != null){
+					int from = lowerBound(matches, tableBase[t]);
+					int to = lowerBound(matches, tableBase[t]+tables[t].getMethodCount());
+					local = new int[to-from];
+					for(int i=from; i<to; ++i)
+						local[i-from] = matches[i]-tableBase[t];
+				}
+				tables[t].setFilter(filter, local, local.length);
+			}
+			
+			// inner nodes, children are handled before their parents
+			for(FilteredTreeNode node: inner){
+				node.filter = filter;
+				node.setVisible(filter.isEmpty() || (node.getChildCount() != 0) || node.getLabel().contains(filter));
+			}
+			for(FilteredTreeNode leaf: leaves)
+				if(leaf != null)
+					leaf.filter = filter;
+		}
+		
+		// first position in sorted array with value not below key
+		protected static int lowerBound(int[] sorted, int key){
+			int pos = Arrays.binarySearch(sorted, key);
+			return (pos < 0)? -pos-1 : pos;
+		}
+		
+		/**
+		 * Candidate leaves containing all trigrams of the filter.
+		 * @return Sorted leaf ids, null if the filter is too short for the index.
+		 */
+		protected int[] candidates(String filter){
+			if(filter.length() < 3)
+				return null;
+			
+			ArrayList<int[]> lists = new ArrayList<int[]>();
+			for(int i=0; i+3<=filter.length(); ++i){
+				int[] list = postings.get(trigram(filter, i));
+				if(list == null)
+					return new int[0];
+				lists.add(list);
+			}
+			
+			// intersect, starting with the shortest list
+			Collections.sort(lists, new Comparator<int[]>(){
+				public int compare(int[] a, int[] b){
+					return a.length - b.length;
+				}
+			});
+			int[] result = lists.get(0);
+			for(int l=1; l<lists.size() && result.length>0; ++l){
+				int[] other = lists.get(l);
+				int[] merged = new int[result.length];
+				int count = 0, j = 0;
+				for(int id: result){
+					while((j < other.length) && (other[j] < id))
+						++j;
+					if(j == other.length)
+						break;
+					if(other[j] == id)
+						merged[count++] = id;
+				}
+				result = Arrays.copyOf(merged, count);
+			}
+			return result;
+		}
+	}
 }
-	
\ No newline at end of file
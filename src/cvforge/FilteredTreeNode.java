@@ -1,13 +1,15 @@
 package cvforge;
 
-import java.util.Enumeration;
+import java.util.Arrays;
 
 import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.MutableTreeNode;
 import javax.swing.tree.TreeNode;
 
 /**
  * Filtered node. Checks if node (or its String representation) contains the filter term.
- * Only hides leaves. Overwrite determineVisibility() to alter this behavior.
+ * Nodes with visible children are always shown, all others only if they contain the filter term.
+ * Thus inner nodes whose children are all filtered are hidden as well. Overwrite determineVisibility() to alter this behavior.
  * UserObjects are cast to string before applying the filter.
  */
 public class FilteredTreeNode extends DefaultMutableTreeNode{
@@ -15,6 +17,10 @@ public class FilteredTreeNode extends DefaultMutableTreeNode{
 	protected String filter;
 	// internal visibility status
 	protected boolean visible;
+	// lowercase label, computed once
+	protected String label;
+	// visible children, null if outdated
+	protected FilteredTreeNode[] visibleChildren;
 	
 	/**
 	 * Construct empty node.
@@ -51,21 +57,10 @@ public class FilteredTreeNode extends DefaultMutableTreeNode{
 		if (children == null) {
 			throw new ArrayIndexOutOfBoundsException("node has no children");
 	    }
-
-	    int realIndex = -1;		// actual node index in child list
-	    int visibleIndex = -1;	// index of visible nodes
-	    Enumeration e = children.elements();
-	    while (e.hasMoreElements()) {
-    		FilteredTreeNode node = (FilteredTreeNode) e.nextElement();
-	    	if(node.isVisible()) {
-	    		visibleIndex++;
-	      	}
-	      	realIndex++;
-	      	if(visibleIndex == index) {
-	      		return (TreeNode) children.elementAt(realIndex);
-      		}
-	    }
-	    throw new ArrayIndexOutOfBoundsException("index unmatched");
+		FilteredTreeNode[] visibleNodes = getVisibleChildren();
+		if((index < 0) || (index >= visibleNodes.length))
+			throw new ArrayIndexOutOfBoundsException("index unmatched");
+		return visibleNodes[index];
 	}
 
 	/**
@@ -76,47 +71,171 @@ public class FilteredTreeNode extends DefaultMutableTreeNode{
 	    if(children == null) {
 	    	return 0;
 	    }
-	    int count = 0;
-	    Enumeration e = children.elements();
-	    while(e.hasMoreElements()) {
-	    	FilteredTreeNode node = (FilteredTreeNode)e.nextElement();
-	    	if (node.isVisible()) {
-	    		++count;
-	    	}
-	    }
-	    return count;
+	    return getVisibleChildren().length;
+	}
+	
+	/**
+	 * Get index of child among the visible children.
+	 * @param child Child node.
+	 * @return Index, -1 if child is not a visible child of this node.
+	 */
+	public int getIndex(TreeNode child) {
+		FilteredTreeNode[] visibleNodes = getVisibleChildren();
+		for(int i=0; i<visibleNodes.length; ++i)
+			if(visibleNodes[i] == child)
+				return i;
+		return -1;
+	}
+	
+	/**
+	 * Visible children, cached until a child is added, removed or changes its visibility.
+	 * @return Array of visible children.
+	 */
+	protected FilteredTreeNode[] getVisibleChildren(){
+		FilteredTreeNode[] visibleNodes = visibleChildren;
+		if(visibleNodes != null)
+			return visibleNodes;
+		
+		int count = 0;
+		int total = getRealChildCount();
+		FilteredTreeNode[] buffer = new FilteredTreeNode[total];
+		for(int i=0; i<total; ++i){
+			FilteredTreeNode node = (FilteredTreeNode)children.elementAt(i);
+			if(node.isVisible())
+				buffer[count++] = node;
+		}
+		visibleNodes = (count == total)? buffer : Arrays.copyOf(buffer, count);
+		visibleChildren = visibleNodes;
+		return visibleNodes;
+	}
+	
+	/**
+	 * Number of children, including invisible ones.
+	 * @return Number of children.
+	 */
+	public int getRealChildCount(){
+		return (children == null)? 0 : children.size();
+	}
+	
+	/**
+	 * Child at given index, including invisible ones.
+	 * @param index Index in list of all children.
+	 * @return Child node.
+	 */
+	public FilteredTreeNode getRealChildAt(int index){
+		return (FilteredTreeNode)children.elementAt(index);
+	}
+	
+	@Override
+	public void insert(MutableTreeNode newChild, int childIndex) {
+		// insert() addresses all children, not just the visible ones
+		super.insert(newChild, Math.min(childIndex, getRealChildCount()));
+		invalidate();
+	}
+	
+	/**
+	 * Remove child at given index.
+	 * @param childIndex Index among the visible children.
+	 */
+	@Override
+	public void remove(int childIndex) {
+		removeReal(getIndexOfReal(getChildAt(childIndex)));
+	}
+	
+	@Override
+	public void remove(MutableTreeNode aChild) {
+		int index = getIndexOfReal(aChild);
+		if(index < 0)
+			throw new IllegalArgumentException("argument is not a child");
+		removeReal(index);
+	}
+	
+	@Override
+	public void removeAllChildren() {
+		for(int i=getRealChildCount()-1; i>=0; --i)
+			removeReal(i);
+	}
+	
+	// remove child at index among all children
+	protected void removeReal(int index){
+		MutableTreeNode child = (MutableTreeNode)children.remove(index);
+		child.setParent(null);
+		invalidate();
+	}
+	
+	// index among all children
+	protected int getIndexOfReal(TreeNode child){
+		return (children == null)? -1 : children.indexOf(child);
+	}
+	
+	@Override
+	public void setUserObject(Object userObject) {
+		super.setUserObject(userObject);
+		label = null;
+	}
+	
+	/**
+	 * Drop cached visible children.
+	 */
+	protected void invalidate(){
+		visibleChildren = null;
 	}
 
 	/**
 	 * Sets String for filtering.
 	 * Iterates over children and sets their filter.
+	 * FilteredTreeModel.setFilter() uses an index instead and is much faster on large trees.
 	 * @param filter String for filtering node userObject.
 	 */
 	public void setFilter(String filter){
 		this.filter = filter;
-		Enumeration<TreeNode> e = this.children();
-		while(e.hasMoreElements()){
-			FilteredTreeNode node = (FilteredTreeNode)e.nextElement();
-			node.setFilter(filter);
-		}		
+		int total = getRealChildCount();
+		for(int i=0; i<total; ++i)
+			getRealChildAt(i).setFilter(filter);
+		invalidate();
 		determineVisibilty();
 	}
 
 	/**
 	 * Check if node is filtered and set visibility status.
+	 * Children must be filtered before, as isLeaf() only counts visible children.
 	 */
 	protected void determineVisibilty(){
 		if(!this.isLeaf() || filter.isEmpty()){
 			this.visible = true;
 			return;
 		}
-		String label = userObject.toString().toLowerCase();
-		visible = label.contains(filter);
+		visible = getLabel().contains(filter);
+	}
+	
+	/**
+	 * Set visibility, e.g. as determined by FilteredTreeModel.
+	 * The parent's cache of visible children is dropped if the visibility changes.
+	 * @param visible New visibility.
+	 * @return True if the visibility changed.
+	 */
+	protected boolean setVisible(boolean visible){
+		if(this.visible == visible)
+			return false;
+		this.visible = visible;
+		if(parent != null)
+			((FilteredTreeNode)parent).invalidate();
+		return true;
+	}
+	
+	/**
+	 * Lowercase String representation of the userObject, used for filtering.
+	 * @return Label of node.
+	 */
+	protected String getLabel(){
+		if(label == null)
+			label = String.valueOf(userObject).toLowerCase();
+		return label;
 	}
 	
 	/**
 	 * Check if node is supposed to be shown.
-	 * @return true, if node is not leaf, filter does not exist or filter string contained in object.
+	 * @return true, if node has visible children, filter does not exist or filter string contained in object.
 	 */
 	protected boolean isVisible() {	
 		return this.visible;
@@ -0,0 +1,156 @@
+package cvforge;
+
+import java.awt.EventQueue;
+import java.awt.GraphicsEnvironment;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.WindowManager;
+import ij.gui.ImageWindow;
+import ij.gui.StackWindow;
+
+/**
+ * Modification stamps of ImageJ images, maintained through ImageJ's ImageListener.
+ * Every update of a displayed image increases its stamp, except for the updates CVForge announces via expectUpdate().
+ * ImageJ only notifies about images shown in a window, so stamps are meaningless for images without window.
+ * Listeners added here are notified after the stamps have been updated.
+ */
+public final class ImageStamps implements ImageListener {
+
+	protected static final ImageStamps INSTANCE = new ImageStamps();
+	protected static final CopyOnWriteArrayList<ImageListener> listeners = new CopyOnWriteArrayList<ImageListener>();
+
+	// stamp per image ID, 0 if never updated
+	protected static final HashMap<Integer, Long> stamps = new HashMap<Integer, Long>();
+	// number of pending notifications caused by CVForge per image ID
+	protected static final HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+	protected static long counter = 0;
+
+	static{
+		ImagePlus.addImageListener(INSTANCE);
+	}
+
+	private ImageStamps(){}
+
+	/**
+	 * Get current modification stamp of an image.
+	 * Call flush() before to take pending notifications into account.
+	 * @param imp Image shown in a window.
+	 * @return Stamp, changes whenever the image is updated by someone other than CVForge.
+	 */
+	public static synchronized long getStamp(ImagePlus imp){
+		Long stamp = stamps.get(imp.getID());
+		return (stamp == null)? 0 : stamp;
+	}
+
+	/**
+	 * Announce an update of an image by CVForge, e.g. before calling updateAndDraw() on written images.
+	 * The notification following the update keeps the stamp unchanged.
+	 * @param imp Image about to be updated.
+	 */
+	public static synchronized void expectUpdate(ImagePlus imp){
+		// mirrors the conditions under which ImagePlus.updateAndDraw() notifies
+		ImageWindow win = imp.getWindow();
+		if((win == null) || ((imp.getStackSize() > 1) && !(win instanceof StackWindow)))
+			return;
+		Integer count = expected.get(imp.getID());
+		expected.put(imp.getID(), (count == null)? 1 : count+1);
+	}
+
+	/**
+	 * Wait until ImageJ delivered all pending notifications.
+	 * ImageJ notifies on the event dispatch thread, so updates made right before may not be reflected by getStamp() yet.
+	 * Does nothing on the event dispatch thread itself and in headless mode.
+	 */
+	public static void flush(){
+		if(GraphicsEnvironment.isHeadless() || EventQueue.isDispatchThread())
+			return;
+		try{
+			EventQueue.invokeAndWait(new Runnable(){
+				public void run(){}
+			});
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}catch(InvocationTargetException e){
+			// nothing was run
+		}
+	}
+
+	/**
+	 * Find the displayed image holding a pixel array, either as current processor or as slice of its stack.
+	 * Virtual stacks are not searched, as their slices are loaded on demand.
+	 * @param pixels Pixel array of an ImageProcessor.
+	 * @return Image shown in a window, null if none holds the pixels.
+	 */
+	public static ImagePlus findImage(Object pixels){
+		int[] ids = WindowManager.getIDList();
+		if((ids == null) || (pixels == null))
+			return null;
+		for(int id: ids){
+			ImagePlus imp = WindowManager.getImage(id);
+			if((imp == null) || (imp.getWindow() == null))
+				continue;
+			if(imp.getStackSize() == 1){
+				if(imp.getProcessor().getPixels() == pixels)
+					return imp;
+				continue;
+			}
+			ImageStack stack = imp.getStack();
+			if(stack.isVirtual())
+				continue;
+			Object[] slices = stack.getImageArray();
+			for(int s=0; s<stack.size(); ++s){
+				if(slices[s] == pixels)
+					return imp;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Register listener notified after stamps are updated.
+	 * @param listener ImageListener to add.
+	 */
+	public static void addListener(ImageListener listener){
+		listeners.addIfAbsent(listener);
+	}
+
+	public static void removeListener(ImageListener listener){
+		listeners.remove(listener);
+	}
+
+	@Override
+	public void imageOpened(ImagePlus imp){
+		for(ImageListener l: listeners)
+			l.imageOpened(imp);
+	}
+
+	@Override
+	public void imageClosed(ImagePlus imp){
+		synchronized(ImageStamps.class){
+			stamps.remove(imp.getID());
+			expected.remove(imp.getID());
+		}
+		for(ImageListener l: listeners)
+			l.imageClosed(imp);
+	}
+
+	@Override
+	public void imageUpdated(ImagePlus imp){
+		synchronized(ImageStamps.class){
+			Integer count = expected.get(imp.getID());
+			if(count == null)
+				stamps.put(imp.getID(), ++counter);
+			else if(count > 1)
+				expected.put(imp.getID(), count-1);
+			else
+				expected.remove(imp.getID());
+		}
+		for(ImageListener l: listeners)
+			l.imageUpdated(imp);
+	}
+}
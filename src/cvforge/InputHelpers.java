@@ -1,7 +1,9 @@
 package cvforge;
 
 import java.util.ArrayList;
+import java.util.List;
 
+import javax.swing.DefaultComboBoxModel;
 import javax.swing.JComboBox;
 import javax.swing.JComponent;
 import javax.swing.JTextField;
@@ -17,7 +19,7 @@ import ij.gui.Roi;
  */
 public class InputHelpers {
     // declarations for parameter recognition
-	protected static final String CVMAT = "org.opencv.core.Mat";
+	protected static final String CVMAT = ArgumentHelpers.CVMAT;
 	// TODO add more (yes its work, yes it need to be done))
 	protected static final String CVMATOFBYTE = "org.opencv.core.MatOfByte";
 	protected static final String CVKEYPOINT = "org.opencv.features2d.KeyPoint";
@@ -27,30 +29,10 @@ public class InputHelpers {
 	
 	/**
 	 * Convert String to given primitive class type (String included).
-	 * If conversion to primitive is not possible, return null.
-	 * @param src String to be converted
-	 * @param classType Class to which src is to be converted.
-	 * @return Converted Primitive/ String.
+	 * @see ArgumentHelpers#stringToPrimitive(String, Class)
 	 */
 	public static Object stringToPrimitive(String src, Class classType){
-		if(classType == Boolean.TYPE){
-			return Boolean.parseBoolean(src);
-		}else if(classType == Byte.TYPE){
-			return (byte)Float.parseFloat(src);
-		}else if(classType == Short.TYPE){
-			return (short)Float.parseFloat(src);
-		}else if(classType == Integer.TYPE){
-			return (int)Double.parseDouble(src);
-		}else if(classType == Long.TYPE){
-			return (long)Double.parseDouble(src);
-		}else if(classType == Float.TYPE){
-			return Float.parseFloat(src);
-		} else if(classType == Double.TYPE){
-			return Double.parseDouble(src);
-		} else if(classType == String.class){
-			return src;
-		}
-		return null;
+		return ArgumentHelpers.stringToPrimitive(src, classType);
 	}
 	
 	/**
@@ -87,6 +69,47 @@ public class InputHelpers {
     	return matBox;
     }
     
+    /**
+     * Create input ComboBox for ImageJ images and cached Mats.
+     * Cached Mats are listed after the open images, unless an image of the same title is open.
+     * @param matType Mat class of the parameter.
+     * @return JComboBox with image titles and cache keys.
+     */
+    public static JComboBox<String> createMatBox(Class matType){
+    	JComboBox<String> matBox = createMatBox();
+    	for(String key: CVForgeCache.getKeys(matType)){
+    		if(WindowManager.getImage(key) == null)
+    			matBox.addItem(key);
+    	}
+    	return matBox;
+    }
+    
+    /**
+     * Apply cache changes to a JComboBox created by createMatBox().
+     * Titles of open images are kept even if a cached Mat of the same name is removed.
+     * @param matBox JComboBox to update.
+     * @param matType Mat class the JComboBox was created for.
+     * @param events Cache changes, see CacheListener.
+     */
+    public static void updateMatBox(JComboBox<String> matBox, Class matType, List<CacheEvent> events){
+    	DefaultComboBoxModel<String> model = (DefaultComboBoxModel<String>)matBox.getModel();
+    	for(CacheEvent event: events){
+    		String key = event.getKey();
+    		if(event.removes(matType) && (WindowManager.getImage(key) == null))
+    			model.removeElement(key);
+    		else if(event.adds(matType) && (model.getIndexOf(key) == -1))
+    			model.addElement(key);
+    	}
+    }
+    
+    /**
+     * Look up the input of a Mat parameter by name.
+     * @see ArgumentHelpers#resolveImage(String, boolean)
+     */
+    public static Object resolveImage(String name, boolean wholeStack){
+    	return ArgumentHelpers.resolveImage(name, wholeStack);
+    }
+    
     // TODO unused
     /**
      * Create JComboBox for selecting ROIs created in ImageJ.
@@ -137,6 +160,37 @@ public class InputHelpers {
 		return CVForgeCache.createComboBox(classType);
 	}
 	
+	/**
+	 * Check if createInputElement() creates a JComboBox referring to the cache for given Class.
+	 * @param classType Parameter type.
+	 * @return true, if input is looked up in the cache.
+	 */
+	public static boolean isCacheInput(Class classType){
+		return !classType.isPrimitive() && !classType.getName().equals(CVMAT) && (classType != String.class);
+	}
+	
+	/**
+	 * Apply cache changes to a JComboBox created by createCacheBox().
+	 * New keys are inserted in sorted order, removed keys are taken out. The other items are left untouched.
+	 * @param cacheBox JComboBox to update.
+	 * @param classType Class the JComboBox was created for.
+	 * @param events Cache changes, see CacheListener.
+	 */
+	public static void updateCacheBox(JComboBox<String> cacheBox, Class classType, List<CacheEvent> events){
+		DefaultComboBoxModel<String> model = (DefaultComboBoxModel<String>)cacheBox.getModel();
+		for(CacheEvent event: events){
+			String key = event.getKey();
+			if(event.removes(classType)){
+				model.removeElement(key);
+			}else if(event.adds(classType) && (model.getIndexOf(key) == -1)){
+				int pos = 0;
+				while((pos < model.getSize()) && (model.getElementAt(pos).compareTo(key) < 0))
+					++pos;
+				model.insertElementAt(key, pos);
+			}
+		}
+	}
+	
 	/**
 	 * Creates a JComboBox containing the simplified names of given classes.
 	 * @param classes Classes to be used for JComboBox.
@@ -168,12 +222,12 @@ public class InputHelpers {
     			input = new JNumberField();        			
     		}
         }else{
-        	if(classType.getName().equals(CVMAT)){
-        		input = InputHelpers.createMatBox();
+        	if(isCacheInput(classType)){
+        		input = createCacheBox(classType);
         	}else if(classType == String.class){
         		input = new JTextField("");
         	}else{
-        		input = createCacheBox(classType);
+        		input = InputHelpers.createMatBox(classType);
         	}
     	}
 		return input;
@@ -193,6 +247,48 @@ public class InputHelpers {
 		return comp.toString();
 	}
 	
+	/**
+	 * Parse a slice range like "3-17" or "5".
+	 * @see ArgumentHelpers#parseSliceRange(String)
+	 */
+	public static int[] parseSliceRange(String range){
+		return ArgumentHelpers.parseSliceRange(range);
+	}
+	
+	/**
+	 * Check if a range String addresses hyperstack dimensions.
+	 * @see ArgumentHelpers#isHyperstackRange(String)
+	 */
+	public static boolean isHyperstackRange(String range){
+		return ArgumentHelpers.isHyperstackRange(range);
+	}
+	
+	/**
+	 * Parse a hyperstack range like "c:1-2,z:3,t:5-".
+	 * @see ArgumentHelpers#parseHyperstackRange(String)
+	 */
+	public static int[] parseHyperstackRange(String range){
+		return ArgumentHelpers.parseHyperstackRange(range);
+	}
+	
+	/**
+	 * Creates an Object of given Class from a component.
+	 * In stack mode, image inputs are resolved to their ImagePlus instead of the current processor.
+	 * @param comp JComponent to extract value from.
+	 * @param classType Class to convert extracted value into.
+	 * @param wholeStack Set true to get the ImagePlus of image inputs.
+	 * @return Created Object.
+	 */
+	public static Object createFromInput(JComponent comp, Class classType, boolean wholeStack){
+		if(wholeStack && classType.getName().equals(CVMAT)){
+			Object converted = resolveImage(getText(comp), true);
+			if(converted == null)
+				IJ.showMessage("CVForge Error", "Image or cached Mat \"" + getText(comp) + "\" not found!");
+			return converted;
+		}
+		return createFromInput(comp, classType);
+	}
+	
 	/**
 	 * Creates an Object of given Class from a component.
 	 * Either converts text input into a String or a Primitive, or looks it up in the cache.
@@ -205,13 +301,15 @@ public class InputHelpers {
 		String className = classType.getName();
 		Object converted = null;
 		
-    	// TODO check before getting named image if the named image does not exist, IJ creates it (no good!)
 		if((classType.isPrimitive()) || (classType == String.class)){
     		converted = InputHelpers.stringToPrimitive(text, classType);
     	}else{
-    		// if corresponding window if input is image
+    		// corresponding window or cached Mat if input is image
     		if(className.equals(CVMAT)){
-        		converted = WindowManager.getImage(text).getProcessor(); 
+        		converted = resolveImage(text, false);
+        		if(converted == null){
+        			IJ.showMessage("CVForge Error", "Image or cached Mat \"" + text + "\" not found!");
+        		}
     		}else{
     			// if input is cached cache lookup
     			converted = CVForgeCache.get(text);
@@ -0,0 +1,129 @@
+package cvforge;
+
+import java.util.Enumeration;
+
+import javax.swing.tree.TreeNode;
+
+/**
+ * Package or class node of a library tree, backed by a SignatureTable.
+ * Children are created on first access, e.g. when the node is expanded in a JTree.
+ * Until then, leaf status and visibility are answered by the table.
+ */
+public class LazyTreeNode extends FilteredTreeNode {
+
+	// node kinds
+	public static final int PACKAGE = 0;
+	public static final int CLASS = 1;
+
+	protected final SignatureTable table;
+	protected final int kind;
+	protected final int index;		// package or class index in table
+	protected boolean materialized = false;
+
+	/**
+	 * Create node. Use SignatureTable.getPackageNode() and getClassNode() instead.
+	 * @param table Table backing the node.
+	 * @param kind PACKAGE or CLASS.
+	 * @param index Index of package or class in table.
+	 */
+	LazyTreeNode(SignatureTable table, int kind, int index){
+		super((kind == PACKAGE)? table.packages[index] : table.classes[index]);
+		this.table = table;
+		this.kind = kind;
+		this.index = index;
+		this.filter = table.getFilter();
+		this.visible = (kind == PACKAGE)? table.isPackageVisible(index) : table.isClassVisible(index);
+	}
+
+	/**
+	 * Create children from table, if not done yet.
+	 * Children get their visibility from the current filter of the table.
+	 */
+	protected void materialize(){
+		// table is not set yet while the super constructor runs
+		if(materialized || (table == null))
+			return;
+		materialized = true;
+
+		if(kind == PACKAGE){
+			for(int c=table.packageClassStart[index]; c<table.packageClassStart[index+1]; ++c)
+				super.insert(table.getClassNode(c), getRealChildCount());
+		}else{
+			for(int m=table.classMethodStart[index]; m<table.classMethodStart[index+1]; ++m){
+				FilteredTreeNode leaf = new FilteredTreeNode(table.signatures[m]);
+				leaf.filter = table.getFilter();
+				leaf.visible = table.isMethodVisible(m);
+				super.insert(leaf, getRealChildCount());
+			}
+		}
+	}
+
+	/**
+	 * Check if children have been created.
+	 * @return True if materialized.
+	 */
+	public boolean isMaterialized(){
+		return materialized;
+	}
+
+	public SignatureTable getTable(){
+		return table;
+	}
+
+	public int getKind(){
+		return kind;
+	}
+
+	/**
+	 * Check if node shows no children, without creating them.
+	 */
+	@Override
+	public boolean isLeaf(){
+		if(materialized || (table == null))
+			return super.isLeaf();
+		return table.getVisibleChildCount(kind, index) == 0;
+	}
+
+	@Override
+	protected FilteredTreeNode[] getVisibleChildren(){
+		materialize();
+		return super.getVisibleChildren();
+	}
+
+	@Override
+	public int getChildCount(){
+		materialize();
+		return super.getChildCount();
+	}
+
+	@Override
+	public int getRealChildCount(){
+		return materialized? super.getRealChildCount() : 0;
+	}
+
+	@Override
+	public Enumeration children(){
+		materialize();
+		return super.children();
+	}
+
+	@Override
+	public TreeNode getChildAt(int index){
+		materialize();
+		return super.getChildAt(index);
+	}
+
+	/**
+	 * Filter all nodes of the library through the table.
+	 * Children are not created.
+	 */
+	@Override
+	public void setFilter(String filter){
+		if(table == null){
+			// called by super constructor
+			super.setFilter(filter);
+			return;
+		}
+		table.setFilter(filter);
+	}
+}
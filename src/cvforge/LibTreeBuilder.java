@@ -3,6 +3,9 @@ package cvforge;
 import javax.swing.JTree;
 import javax.swing.tree.DefaultMutableTreeNode;
 
+import ij.IJ;
+
+import reflectiontools.ClassFileInfo;
 import reflectiontools.ClassInspector;
 import reflectiontools.JarInspector;
 
@@ -23,10 +26,22 @@ public class LibTreeBuilder {
 	 * @return JTree representing the library.
 	 */
     public static JTree generateLibTree(String path, ClassLoader loader, boolean shardsOnly) throws Exception{
+        return generateLibTree(path, JarInspector.loadClassesFromJar(path, loader), shardsOnly);
+    }
+    
+	/**
+	 * Generate a tree of methods from classes already loaded from the library of given path.
+	 * Methods are listed by subpackages and only included if they are public static void.
+	 * Each node of the tree contains the name of the method/ package/ class as a string. 
+	 * @param path Path to jar file, used for naming the root.
+	 * @param classes Classes of the jar, e.g. from JarInspector.loadClassesFromJar().
+	 * @param shard Restrict loading to shards if true.
+	 * @return JTree representing the library.
+	 */
+    public static JTree generateLibTree(String path, List<Class> classes, boolean shardsOnly){
         String rootName = getLibName(path);
         HashMap<String, FilteredTreeNode> cache = new HashMap<String, FilteredTreeNode>();
         FilteredTreeNode root = new FilteredTreeNode(rootName);        
-        List<Class> classes = JarInspector.loadClassesFromJar(path, loader);
         for(Class c: classes){
         	// skip non-shards if shardOnly-mode
         	if(shardsOnly){
@@ -70,6 +85,54 @@ public class LibTreeBuilder {
         return new JTree(new FilteredTreeModel(root));
     }
     
+	/**
+	 * Receives the nodes of a library tree while it is generated.
+	 * Nodes are handed over in order of discovery; a parent is always attached before its children.
+	 * A class node is complete, including its method nodes, when it is handed over.
+	 */
+	public interface TreeSink {
+		void attach(FilteredTreeNode parent, FilteredTreeNode child);
+	}
+
+	// sink adding nodes directly on the calling thread
+	public static final TreeSink DIRECT = new TreeSink(){
+		public void attach(FilteredTreeNode parent, FilteredTreeNode child){
+			parent.add(child);
+		}
+	};
+
+	/**
+	 * Generate a tree of methods from class metadata of the library of given path.
+	 * Equals generateLibTree(), but no class of the library is loaded.
+	 * Each node of the tree contains the name of the method/ package/ class as a string. 
+	 * @param path Path to jar file, used for naming the root.
+	 * @param classes Class metadata of the jar, e.g. from JarInspector.readClassInfos().
+	 * @param shard Restrict loading to shards if true.
+	 * @return JTree representing the library.
+	 */
+    public static JTree generateLibTreeFromIndex(String path, List<ClassFileInfo> classes, boolean shardsOnly){
+        FilteredTreeNode root = new FilteredTreeNode(getLibName(path));
+        populateLibTree(root, classes, shardsOnly, DIRECT);
+        return new JTree(new FilteredTreeModel(root));
+    }
+    
+	/**
+	 * Add package nodes of a library to a root node.
+	 * Package nodes are lazy: their class and method nodes are created from a SignatureTable once they are expanded.
+	 * Nodes are passed to the sink as soon as they are complete, so the tree can be shown while it is built.
+	 * @param root Root node of the library. Only modified through the sink.
+	 * @param classes Class metadata of the jar, e.g. from JarInspector.readClassInfos().
+	 * @param shard Restrict loading to shards if true.
+	 * @param sink Sink attaching nodes to their parents.
+	 */
+    public static void populateLibTree(FilteredTreeNode root, List<ClassFileInfo> classes, boolean shardsOnly, TreeSink sink){
+        SignatureTable table = new SignatureTable(classes, shardsOnly);
+        for(int p=0; p<table.getPackageCount(); ++p){
+        	IJ.showProgress(p+1, table.getPackageCount());
+        	sink.attach(root, table.getPackageNode(p));
+        }
+    }
+    
 	/**
 	 * Generate a tree of methods in library of given path. Do not load shards.
 	 * Methods are listed by subpackages and only included if they are public static void.
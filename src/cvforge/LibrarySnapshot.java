@@ -0,0 +1,244 @@
+package cvforge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import ij.IJ;
+
+import reflectiontools.ClassFileInfo;
+import reflectiontools.JarInspector;
+import reflectiontools.MethodInfo;
+
+/**
+ * Binary snapshot of the scanned libraries, stored next to the config file.
+ * Keeps the class metadata of each jar, from which method cache, constructable classes and library tree are derived.
+ * Entries are keyed by jar path, size, modification time and CRC32 of the content; a jar is rescanned only if its key changed.
+ */
+public class LibrarySnapshot {
+
+	public static final String SNAPSHOTFILE = "cvforge.snapshot";	// location of snapshot file
+
+	protected static final int MAGIC = 0x43564653;	// "CVFS"
+	protected static final int VERSION = 1;
+
+	// scanned jar with its key
+	protected static class Entry {
+		long size;
+		long modified;
+		long checksum;
+		List<ClassFileInfo> classes;
+	}
+
+	protected final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	protected boolean changed = false;
+
+	/**
+	 * Read snapshot from file.
+	 * A missing, outdated or corrupt file yields an empty snapshot.
+	 * @param path Path to snapshot file.
+	 * @return Restored snapshot.
+	 */
+	public static LibrarySnapshot load(String path){
+		LibrarySnapshot snapshot = new LibrarySnapshot();
+		File file = new File(path);
+		if(!file.isFile())
+			return snapshot;
+
+		try{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try{
+				if((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+					return snapshot;
+				int jars = in.readInt();
+				for(int i=0; i<jars; ++i){
+					String jarPath = in.readUTF();
+					Entry entry = new Entry();
+					entry.size = in.readLong();
+					entry.modified = in.readLong();
+					entry.checksum = in.readLong();
+					entry.classes = readClasses(in);
+					snapshot.entries.put(jarPath, entry);
+				}
+			}finally{
+				in.close();
+			}
+		}catch(Exception e){
+			snapshot.entries.clear();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Get class metadata of jar, restored from the snapshot if the jar is unchanged.
+	 * Changed or unknown jars are scanned and their metadata is put into the snapshot.
+	 * @param jarPath Path to jar.
+	 * @return Class metadata, like JarInspector.readClassInfos().
+	 */
+	public synchronized List<ClassFileInfo> readClassInfos(String jarPath) throws Exception{
+		File jar = new File(jarPath);
+		long size = jar.length();
+		long modified = jar.lastModified();
+		Entry entry = entries.get(jarPath);
+		// size and modification time are cheap to compare, the content is only read to confirm a match
+		long checksum = -1;
+		if((entry != null) && (entry.size == size) && (entry.modified == modified)){
+			checksum = checksum(jar);
+			if(entry.checksum == checksum)
+				return entry.classes;
+		}
+
+		entry = new Entry();
+		entry.size = size;
+		entry.modified = modified;
+		entry.checksum = (checksum < 0)? checksum(jar) : checksum;
+		entry.classes = JarInspector.readClassInfos(jarPath);
+		entries.put(jarPath, entry);
+		changed = true;
+		return entry.classes;
+	}
+
+	/**
+	 * Drop entries of jars which no longer exist.
+	 */
+	public synchronized void removeMissing(){
+		Iterator<String> it = entries.keySet().iterator();
+		while(it.hasNext()){
+			if(!new File(it.next()).isFile()){
+				it.remove();
+				changed = true;
+			}
+		}
+	}
+
+	/**
+	 * Check if the snapshot differs from the stored file.
+	 * @return True if jars were rescanned or dropped since loading.
+	 */
+	public synchronized boolean hasChanged(){
+		return changed;
+	}
+
+	/**
+	 * Write snapshot to file, if it has changed.
+	 * The snapshot is written to a temporary file first, which then replaces the old file.
+	 * @param path Path to snapshot file.
+	 */
+	public synchronized void save(String path){
+		if(!changed)
+			return;
+
+		File file = new File(path);
+		File temp = new File(path + ".tmp");
+		try{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(entries.size());
+				for(Map.Entry<String, Entry> e: entries.entrySet()){
+					Entry entry = e.getValue();
+					out.writeUTF(e.getKey());
+					out.writeLong(entry.size);
+					out.writeLong(entry.modified);
+					out.writeLong(entry.checksum);
+					writeClasses(out, entry.classes);
+				}
+			}finally{
+				out.close();
+			}
+			if(file.exists() && !file.delete())
+				throw new IOException("Unable to replace " + path);
+			if(!temp.renameTo(file))
+				throw new IOException("Unable to write " + path);
+			changed = false;
+		}catch(Exception e){
+			temp.delete();
+			IJ.log("Unable to save library snapshot: " + e);
+		}
+	}
+
+	/**
+	 * Write class metadata.
+	 * Method owners are not stored, they equal the listing class.
+	 * The declared methods are stored first, followed by the inherited ones.
+	 */
+	protected static void writeClasses(DataOutputStream out, List<ClassFileInfo> classes) throws IOException{
+		out.writeInt(classes.size());
+		for(ClassFileInfo c: classes){
+			out.writeUTF(c.getName());
+			out.writeUTF(c.getSimpleName());
+			out.writeUTF((c.getSuperName() == null)? "" : c.getSuperName());
+			out.writeShort(c.getInterfaces().length);
+			for(String inter: c.getInterfaces())
+				out.writeUTF(inter);
+			out.writeShort(c.getModifiers());
+			out.writeBoolean(c.isConstructable());
+
+			List<MethodInfo> methods = c.getMethods();
+			out.writeInt(c.getDeclaredMethods().size());
+			out.writeInt(methods.size());
+			for(MethodInfo m: methods){
+				out.writeUTF(m.getName());
+				out.writeUTF(m.getDescriptor());
+				out.writeShort(m.getModifiers());
+			}
+		}
+	}
+
+	// counterpart of writeClasses()
+	protected static List<ClassFileInfo> readClasses(DataInputStream in) throws IOException{
+		int count = in.readInt();
+		List<ClassFileInfo> classes = new ArrayList<ClassFileInfo>(count);
+		for(int i=0; i<count; ++i){
+			String name = in.readUTF();
+			String simpleName = in.readUTF();
+			String superName = in.readUTF();
+			String[] interfaces = new String[in.readUnsignedShort()];
+			for(int j=0; j<interfaces.length; ++j)
+				interfaces[j] = in.readUTF();
+			int modifiers = in.readUnsignedShort();
+			boolean constructable = in.readBoolean();
+
+			int declared = in.readInt();
+			int total = in.readInt();
+			List<MethodInfo> methods = new ArrayList<MethodInfo>(total);
+			for(int j=0; j<total; ++j)
+				methods.add(new MethodInfo(name, in.readUTF(), in.readUTF(), in.readUnsignedShort()));
+
+			classes.add(new ClassFileInfo(name, simpleName, superName.isEmpty()? null : superName, interfaces, modifiers, constructable, new ArrayList<MethodInfo>(methods.subList(0, declared)), methods));
+		}
+		return classes;
+	}
+
+	/**
+	 * Compute CRC32 of file content.
+	 * @param file File to check.
+	 * @return Checksum.
+	 */
+	protected static long checksum(File file) throws IOException{
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[1 << 16];
+		InputStream in = new FileInputStream(file);
+		try{
+			int read;
+			while((read = in.read(buffer)) > 0)
+				crc.update(buffer, 0, read);
+		}finally{
+			in.close();
+		}
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,154 @@
+package cvforge;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Collection;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Estimates the memory held by cached objects, including native memory of OpenCV Mats.
+ * The core plugin does not depend on OpenCV, so Mats are recognized by class name and accessed via reflection.
+ */
+public final class MemoryFootprint {
+
+	protected static final String MATNAME = "org.opencv.core.Mat";
+	// rough size of an object without payload
+	protected static final long OBJECTBYTES = 16;
+
+	protected static final Method[] NOMAT = new Method[0];
+	// total(), elemSize() and release() of Mat classes, NOMAT for other classes; does not keep class loaders alive
+	protected static final ClassValue<Method[]> matMethods = new ClassValue<Method[]>(){
+		@Override
+		protected Method[] computeValue(Class<?> type){
+			for(Class c=type; c!=null; c=c.getSuperclass()){
+				if(c.getName().equals(MATNAME)){
+					try{
+						return new Method[]{c.getMethod("total"), c.getMethod("elemSize"), c.getMethod("release")};
+					}catch(NoSuchMethodException e){
+						return NOMAT;
+					}
+				}
+			}
+			return NOMAT;
+		}
+	};
+
+	private MemoryFootprint(){}
+
+	/**
+	 * Estimate bytes held by object.
+	 * Mats are weighed by total() * elemSize(), arrays by length and component size, ImageProcessors by their pixels.
+	 * Arrays and Collections of Mats or arrays are weighed by their elements.
+	 * @param obj Object to weigh.
+	 * @return Size in bytes.
+	 */
+	public static long sizeOf(Object obj){
+		return sizeOf(obj, 2);
+	}
+
+	protected static long sizeOf(Object obj, int depth){
+		if(obj == null)
+			return 0;
+
+		Method[] mat = getMatMethods(obj.getClass());
+		if(mat != NOMAT){
+			try{
+				long total = (Long)mat[0].invoke(obj);
+				long elemSize = (Long)mat[1].invoke(obj);
+				return OBJECTBYTES + total * elemSize;
+			}catch(Exception e){
+				return OBJECTBYTES;
+			}
+		}
+
+		if(obj instanceof ImageProcessor){
+			ImageProcessor ip = (ImageProcessor)obj;
+			int bytes = (ip.getBitDepth() == 24)? 4 : Math.max(1, ip.getBitDepth() / 8);
+			return OBJECTBYTES + (long)ip.getPixelCount() * bytes;
+		}
+
+		Class type = obj.getClass();
+		if(type.isArray()){
+			int length = Array.getLength(obj);
+			Class component = type.getComponentType();
+			if(component.isPrimitive())
+				return OBJECTBYTES + length * primitiveSize(component);
+			long size = OBJECTBYTES + length * 4L;
+			if(depth > 0)
+				for(int i=0; i<length; ++i)
+					size += sizeOf(Array.get(obj, i), depth-1);
+			return size;
+		}
+
+		if((obj instanceof Collection) && (depth > 0)){
+			long size = OBJECTBYTES;
+			for(Object element: ((Collection)obj).toArray())
+				size += 4 + sizeOf(element, depth-1);
+			return size;
+		}
+
+		if(obj instanceof String)
+			return OBJECTBYTES + 2L * ((String)obj).length();
+		return OBJECTBYTES;
+	}
+
+	/**
+	 * Free native memory of Mats, including Mats held in arrays or Collections.
+	 * Other objects are left to the garbage collector.
+	 * @param obj Object to release.
+	 */
+	public static void release(Object obj){
+		release(obj, 2);
+	}
+
+	protected static void release(Object obj, int depth){
+		if(obj == null)
+			return;
+
+		Method[] mat = getMatMethods(obj.getClass());
+		if(mat != NOMAT){
+			try{
+				mat[2].invoke(obj);
+			}catch(Exception e){
+				// nothing to free
+			}
+			return;
+		}
+
+		if(depth == 0)
+			return;
+		if(obj instanceof Object[]){
+			for(Object element: (Object[])obj)
+				release(element, depth-1);
+		}else if(obj instanceof Collection){
+			for(Object element: ((Collection)obj).toArray())
+				release(element, depth-1);
+		}
+	}
+
+	/**
+	 * Check if object is an OpenCV Mat or one of its subclasses, e.g. MatOfPoint.
+	 * @param obj Object to check.
+	 * @return True if Mat.
+	 */
+	public static boolean isMat(Object obj){
+		return (obj != null) && (getMatMethods(obj.getClass()) != NOMAT);
+	}
+
+	// look up Mat methods of class, NOMAT if not a Mat
+	protected static Method[] getMatMethods(Class type){
+		return matMethods.get(type);
+	}
+
+	// size of primitive type in bytes
+	protected static long primitiveSize(Class type){
+		if((type == byte.class) || (type == boolean.class))
+			return 1;
+		if((type == short.class) || (type == char.class))
+			return 2;
+		if((type == int.class) || (type == float.class))
+			return 4;
+		return 8;
+	}
+}
@@ -0,0 +1,151 @@
+package cvforge;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ij.IJ;
+
+import reflectiontools.MethodInfo;
+
+/**
+ * Mapping of method signatures to methods of the loaded libraries.
+ * Built from class file metadata, so listing methods does not load any library class.
+ * The actual Method is resolved on the first get() of its key and kept afterwards.
+ * Keys are the signatures produced by ClassInspector.infoString().
+ * Signatures are additionally indexed by method name and parameter count for macro calls.
+ */
+public class MethodIndex {
+
+	protected final HashMap<String, MethodInfo> infos = new HashMap<String, MethodInfo>();
+	protected final HashMap<String, Method> resolved = new HashMap<String, Method>();
+	// signatures by name and parameter count, see overloadKey()
+	protected final HashMap<String, List<String>> overloads = new HashMap<String, List<String>>();
+	// incremented on every change, lets callers detect outdated derived data
+	protected int modCount = 0;
+	protected ClassLoader loader;
+
+	/**
+	 * Create empty index.
+	 * @param loader ClassLoader used to resolve methods.
+	 */
+	public MethodIndex(ClassLoader loader){
+		this.loader = loader;
+	}
+
+	/**
+	 * Add method metadata, replacing entries of equal signature.
+	 * @param methods Mapping of signatures to metadata, e.g. from JarInspector.generateMethodIndex().
+	 */
+	public synchronized void putAll(Map<String, MethodInfo> methods){
+		for(Map.Entry<String, MethodInfo> entry: methods.entrySet()){
+			MethodInfo info = entry.getValue();
+			if(infos.put(entry.getKey(), info) != null)
+				continue;
+			String overloadKey = overloadKey(info.getName(), info.getParameterCount());
+			List<String> keys = overloads.get(overloadKey);
+			if(keys == null){
+				keys = new ArrayList<String>(1);
+				overloads.put(overloadKey, keys);
+			}
+			keys.add(entry.getKey());
+		}
+		resolved.keySet().removeAll(methods.keySet());
+		++modCount;
+	}
+
+	/**
+	 * Get method of given signature, loading its class if necessary.
+	 * Resolution failures are logged and yield null.
+	 * @param key Method signature.
+	 * @return Resolved method, null if unknown or not resolvable.
+	 */
+	public synchronized Method get(Object key){
+		Method m = resolved.get(key);
+		if(m != null)
+			return m;
+
+		MethodInfo info = infos.get(key);
+		if(info == null)
+			return null;
+
+		try{
+			m = info.resolve(loader);
+		}catch(Exception e){
+			IJ.log("Unable to resolve " + info + ": " + e);
+			return null;
+		}catch(LinkageError e){
+			IJ.log("Unable to resolve " + info + ": " + e);
+			return null;
+		}
+		resolved.put((String)key, m);
+		return m;
+	}
+
+	/**
+	 * Get metadata of given signature without resolving the method.
+	 * @param key Method signature.
+	 * @return Metadata, null if unknown.
+	 */
+	public synchronized MethodInfo getInfo(Object key){
+		return infos.get(key);
+	}
+
+	/**
+	 * Signatures of all methods with given name and parameter count.
+	 * @param name Method name, e.g. "medianBlur".
+	 * @param arity Number of parameters.
+	 * @return Unmodifiable list of signatures in order of insertion, empty if there is none.
+	 */
+	public synchronized List<String> getOverloads(String name, int arity){
+		List<String> keys = overloads.get(overloadKey(name, arity));
+		if(keys == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableList(new ArrayList<String>(keys));
+	}
+
+	/**
+	 * Number of changes made to the index so far.
+	 * @return Modification count.
+	 */
+	public synchronized int getModCount(){
+		return modCount;
+	}
+
+	public synchronized boolean containsKey(Object key){
+		return infos.containsKey(key);
+	}
+
+	/**
+	 * All known signatures.
+	 * @return Unmodifiable view of the signatures.
+	 */
+	public synchronized Set<String> keySet(){
+		return Collections.unmodifiableSet(infos.keySet());
+	}
+
+	public synchronized int size(){
+		return infos.size();
+	}
+
+	public synchronized boolean isEmpty(){
+		return infos.isEmpty();
+	}
+
+	/**
+	 * Number of methods resolved so far.
+	 * @return Count of loaded methods.
+	 */
+	public synchronized int resolvedCount(){
+		return resolved.size();
+	}
+
+	// key of the overload index
+	protected static String overloadKey(String name, int arity){
+		return name + "/" + arity;
+	}
+}
@@ -0,0 +1,482 @@
+package cvforge;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.process.ImageProcessor;
+
+/**
+ * Sequence of OpenCV calls whose intermediate results stay in native Mats.
+ * ImageJ images are converted once at the declared inputs, results are converted back only at the declared outputs.
+ * Pipelines are stored as text, one declaration per line:
+ * <pre>
+ * # comment
+ * input $src [currentWindow]
+ * call void GaussianBlur(Mat, Mat, Size, double) $src $blur [cache:ksize] 2.0
+ * call double threshold(Mat, Mat, double, double, int) $blur $bin 128 255 0 -&gt; $level
+ * output $bin Thresholded
+ * cache $level level
+ * </pre>
+ * Methods are given by their signatures in CVForge.getMethodCache(), as shown in the library tree.
+ * Arguments are variables ($name), cached objects ([cache:key]), null, or literals for primitive and String parameters.
+ * A variable passed to a Mat parameter before it holds a value is assigned a new Mat, so OpenCV can use it as destination.
+ * Inputs are images given by title or [currentWindow]. Outputs without title write the variable back into its input image.
+ * Pipelines are executed by Executer.executePipeline() after compile().
+ */
+public class Pipeline {
+
+	public static final String FILEEXTENSION = ".cvp";
+	public static final String CURRENTWINDOW = "[currentWindow]";
+	protected static final String CACHEPREFIX = "[cache:";
+
+	/**
+	 * Variable of a pipeline, identified by its index in the slots of a run.
+	 */
+	public static final class Slot {
+		protected final int index;
+		protected final String name;
+
+		protected Slot(int index, String name){
+			this.index = index;
+			this.name = name;
+		}
+
+		public int getIndex(){
+			return index;
+		}
+
+		@Override
+		public String toString(){
+			return name;
+		}
+	}
+
+	// argument looked up in the cache when the pipeline runs
+	protected static final class CacheReference {
+		protected final String key;
+
+		protected CacheReference(String key){
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Image converted into a Mat variable when the pipeline starts.
+	 */
+	public static final class Input {
+		protected final String variable;
+		protected final String image;
+		protected Slot slot;
+
+		protected Input(String variable, String image){
+			this.variable = variable;
+			this.image = image;
+		}
+
+		public Slot getSlot(){
+			return slot;
+		}
+
+		/**
+		 * Get the processor of the input image.
+		 * @return ImageProcessor of the current slice.
+		 * @throws IllegalStateException If the image is not open.
+		 */
+		public ImageProcessor resolve(){
+			ImagePlus imp = image.equals(CURRENTWINDOW)? WindowManager.getCurrentImage() : WindowManager.getImage(image);
+			if(imp == null)
+				throw new IllegalStateException("Pipeline input image \"" + image + "\" not found");
+			return imp.getProcessor();
+		}
+	}
+
+	/**
+	 * Call of a single method.
+	 */
+	public static final class Step {
+		protected final String signature;
+		protected final String[] args;
+		protected final String result;		// variable receiving the return value, null if discarded
+		protected Method method;
+		protected Object[] arguments;		// Slots, CacheReferences and constants
+		protected Slot resultSlot;
+
+		protected Step(String signature, String[] args, String result){
+			this.signature = signature;
+			this.args = args;
+			this.result = result;
+		}
+
+		public Method getMethod(){
+			return method;
+		}
+
+		/**
+		 * Get arguments of the call, with cached objects looked up.
+		 * Variables are given as Slot objects to be replaced by the caller.
+		 * @return New array of arguments.
+		 * @throws IllegalStateException If a cached object is missing.
+		 */
+		public Object[] bindArguments(){
+			Object[] bound = arguments.clone();
+			for(int i=0; i<bound.length; ++i){
+				if(bound[i] instanceof CacheReference){
+					String key = ((CacheReference)bound[i]).key;
+					bound[i] = CVForgeCache.get(key);
+					if(bound[i] == null)
+						throw new IllegalStateException("Cache lookup for named object \"" + key + "\" failed");
+				}
+			}
+			return bound;
+		}
+
+		/**
+		 * Variable receiving the return value.
+		 * @return Slot, null if the return value is discarded.
+		 */
+		public Slot getResultSlot(){
+			return resultSlot;
+		}
+	}
+
+	/**
+	 * Variable converted back into ImageJ, or put into the cache, when the pipeline finishes.
+	 */
+	public static final class Output {
+		protected final String variable;
+		protected final String target;		// image title or cache key
+		protected final boolean cached;
+		protected Slot slot;
+
+		protected Output(String variable, String target, boolean cached){
+			this.variable = variable;
+			this.target = target;
+			this.cached = cached;
+		}
+
+		public Slot getSlot(){
+			return slot;
+		}
+
+		/**
+		 * Title of the output image, or the cache key.
+		 * @return Target name, null to write back into the input image of the variable.
+		 */
+		public String getTarget(){
+			return target;
+		}
+
+		/**
+		 * Check if the variable is put into the cache instead of being shown as image.
+		 * @return true for cache declarations.
+		 */
+		public boolean isCached(){
+			return cached;
+		}
+	}
+
+	protected final List<Input> inputs = new ArrayList<Input>();
+	protected final List<Step> steps = new ArrayList<Step>();
+	protected final List<Output> outputs = new ArrayList<Output>();
+	protected final LinkedHashMap<String, Slot> slots = new LinkedHashMap<String, Slot>();
+	protected boolean compiled = false;
+
+	/**
+	 * Declare an input image.
+	 * @param variable Variable receiving the image, e.g. "$src".
+	 * @param image Image title or CURRENTWINDOW.
+	 */
+	public void addInput(String variable, String image){
+		inputs.add(new Input(checkVariable(variable), image));
+		compiled = false;
+	}
+
+	/**
+	 * Append a method call.
+	 * @param signature Method signature as in CVForge.getMethodCache().
+	 * @param args Arguments: variables, cache references or literals.
+	 * @param result Variable receiving the return value, null to discard it.
+	 */
+	public void addStep(String signature, String[] args, String result){
+		steps.add(new Step(signature, args.clone(), (result == null)? null : checkVariable(result)));
+		compiled = false;
+	}
+
+	/**
+	 * Declare a variable to be shown as image when the pipeline finishes.
+	 * Variables holding no Mat are put into the cache under the title instead.
+	 * @param variable Variable to convert.
+	 * @param title Title of new image, null to write the Mat back into the input image of the variable.
+	 */
+	public void addOutput(String variable, String title){
+		outputs.add(new Output(checkVariable(variable), title, false));
+		compiled = false;
+	}
+
+	/**
+	 * Declare a variable to be put into CVForgeCache when the pipeline finishes.
+	 * Mats stay native, no ImageJ conversion takes place.
+	 * @param variable Variable to cache.
+	 * @param key Name for caching.
+	 */
+	public void addCached(String variable, String key){
+		outputs.add(new Output(checkVariable(variable), key, true));
+		compiled = false;
+	}
+
+	/**
+	 * Resolve methods, assign variables to slots and parse literals.
+	 * @param methodCache Methods to resolve signatures with, see CVForge.getMethodCache().
+	 * @throws IllegalArgumentException If a method is unknown or arguments do not match it.
+	 */
+	public void compile(MethodIndex methodCache){
+		slots.clear();
+		for(Input in: inputs)
+			in.slot = slot(in.variable);
+
+		for(int s=0; s<steps.size(); ++s){
+			Step step = steps.get(s);
+			String where = "Pipeline step " + (s+1) + " (" + step.signature + "): ";
+			Method m = methodCache.get(step.signature);
+			if(m == null)
+				throw new IllegalArgumentException(where + "method not found");
+			Class[] params = m.getParameterTypes();
+			if(params.length != step.args.length)
+				throw new IllegalArgumentException(where + params.length + " arguments expected, " + step.args.length + " given");
+
+			Object[] arguments = new Object[params.length];
+			for(int i=0; i<params.length; ++i)
+				arguments[i] = compileArgument(step.args[i], params[i], where);
+			step.method = m;
+			step.arguments = arguments;
+			step.resultSlot = (step.result == null)? null : slot(step.result);
+			if((step.resultSlot != null) && m.getReturnType().equals(Void.TYPE))
+				throw new IllegalArgumentException(where + "void method has no result for " + step.result);
+		}
+
+		for(Output out: outputs){
+			out.slot = slots.get(out.variable);
+			if(out.slot == null)
+				throw new IllegalArgumentException("Pipeline output " + out.variable + " is never assigned");
+		}
+		compiled = true;
+	}
+
+	// convert a single argument into a Slot, CacheReference or constant
+	protected Object compileArgument(String arg, Class param, String where){
+		if(arg.startsWith("$"))
+			return slot(arg);
+		if(arg.startsWith(CACHEPREFIX) && arg.endsWith("]"))
+			return new CacheReference(arg.substring(CACHEPREFIX.length(), arg.length()-1));
+		if(arg.equals("null") && !param.isPrimitive())
+			return null;
+		if(!param.isPrimitive() && (param != String.class))
+			throw new IllegalArgumentException(where + "argument \"" + arg + "\" for " + param.getSimpleName() + " must be a variable or cache reference");
+		try{
+			return ArgumentHelpers.stringToPrimitive(arg, param);
+		}catch(NumberFormatException e){
+			throw new IllegalArgumentException(where + "argument \"" + arg + "\" is no " + param.getSimpleName());
+		}
+	}
+
+	// get or create slot of variable
+	protected Slot slot(String variable){
+		Slot s = slots.get(variable);
+		if(s == null){
+			s = new Slot(slots.size(), variable);
+			slots.put(variable, s);
+		}
+		return s;
+	}
+
+	protected static String checkVariable(String variable){
+		if(!variable.startsWith("$") || (variable.length() < 2))
+			throw new IllegalArgumentException("Pipeline variables start with $: " + variable);
+		return variable;
+	}
+
+	public boolean isCompiled(){
+		return compiled;
+	}
+
+	/**
+	 * Number of variables, i.e. slots needed to run the pipeline.
+	 * @return Slot count.
+	 */
+	public int getSlotCount(){
+		return slots.size();
+	}
+
+	public List<Input> getInputs(){
+		return Collections.unmodifiableList(inputs);
+	}
+
+	public List<Step> getSteps(){
+		return Collections.unmodifiableList(steps);
+	}
+
+	public List<Output> getOutputs(){
+		return Collections.unmodifiableList(outputs);
+	}
+
+	/**
+	 * Parse pipeline from text.
+	 * @param text Pipeline declarations, see class description.
+	 * @return Parsed pipeline, not compiled yet.
+	 * @throws IllegalArgumentException If a line is malformed.
+	 */
+	public static Pipeline parse(String text){
+		Pipeline pipeline = new Pipeline();
+		BufferedReader reader = new BufferedReader(new StringReader(text));
+		try{
+			String line;
+			int number = 0;
+			while((line = reader.readLine()) != null){
+				++number;
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#"))
+					continue;
+				try{
+					pipeline.parseLine(line);
+				}catch(RuntimeException e){
+					throw new IllegalArgumentException("Pipeline line " + number + ": " + e.getMessage());
+				}
+			}
+		}catch(IOException e){
+			// cannot happen for Strings
+		}
+		return pipeline;
+	}
+
+	// parse a single declaration
+	protected void parseLine(String line){
+		int space = line.indexOf(' ');
+		String keyword = (space == -1)? line : line.substring(0, space);
+		String rest = (space == -1)? "" : line.substring(space+1).trim();
+
+		if(keyword.equals("call")){
+			int close = rest.indexOf(')');
+			if(close == -1)
+				throw new IllegalArgumentException("method signature expected");
+			List<String> tokens = tokenize(rest.substring(close+1));
+			String result = null;
+			int arrow = tokens.indexOf("->");
+			if(arrow != -1){
+				if(arrow != tokens.size()-2)
+					throw new IllegalArgumentException("single result variable expected after ->");
+				result = tokens.get(arrow+1);
+				tokens = tokens.subList(0, arrow);
+			}
+			addStep(rest.substring(0, close+1), tokens.toArray(new String[tokens.size()]), result);
+			return;
+		}
+
+		int split = rest.indexOf(' ');
+		String variable = (split == -1)? rest : rest.substring(0, split);
+		String target = (split == -1)? null : rest.substring(split+1).trim();
+		if(keyword.equals("input")){
+			addInput(variable, (target == null)? CURRENTWINDOW : target);
+		}else if(keyword.equals("output")){
+			addOutput(variable, target);
+		}else if(keyword.equals("cache")){
+			if(target == null)
+				throw new IllegalArgumentException("cache key expected");
+			addCached(variable, target);
+		}else{
+			throw new IllegalArgumentException("unknown declaration \"" + keyword + "\"");
+		}
+	}
+
+	// split at whitespace, keeping double-quoted tokens together
+	protected static List<String> tokenize(String text){
+		List<String> tokens = new ArrayList<String>();
+		int i = 0;
+		while(i < text.length()){
+			char c = text.charAt(i);
+			if(Character.isWhitespace(c)){
+				++i;
+			}else if(c == '"'){
+				int end = text.indexOf('"', i+1);
+				if(end == -1)
+					throw new IllegalArgumentException("unterminated quote");
+				tokens.add(text.substring(i+1, end));
+				i = end+1;
+			}else{
+				int end = i;
+				while((end < text.length()) && !Character.isWhitespace(text.charAt(end)))
+					++end;
+				tokens.add(text.substring(i, end));
+				i = end;
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Read pipeline from file.
+	 * @param path Path to pipeline file.
+	 * @return Parsed pipeline, not compiled yet.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public static Pipeline load(String path) throws IOException{
+		StringBuilder text = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try{
+			String line;
+			while((line = reader.readLine()) != null)
+				text.append(line).append('\n');
+		}finally{
+			reader.close();
+		}
+		return parse(text.toString());
+	}
+
+	/**
+	 * Write pipeline to file.
+	 * @param path Path to pipeline file.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void save(String path) throws IOException{
+		FileWriter writer = new FileWriter(path);
+		try{
+			writer.write(toString());
+		}finally{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Text representation, as read by parse().
+	 */
+	@Override
+	public String toString(){
+		StringBuilder text = new StringBuilder("# CVForge pipeline\n");
+		for(Input in: inputs)
+			text.append("input ").append(in.variable).append(' ').append(in.image).append('\n');
+		for(Step step: steps){
+			text.append("call ").append(step.signature);
+			for(String arg: step.args)
+				text.append(' ').append(((arg.indexOf(' ') != -1) || arg.isEmpty())? "\"" + arg + "\"" : arg);
+			if(step.result != null)
+				text.append(" -> ").append(step.result);
+			text.append('\n');
+		}
+		for(Output out: outputs){
+			text.append(out.cached? "cache " : "output ").append(out.variable);
+			if(out.target != null)
+				text.append(' ').append(out.target);
+			text.append('\n');
+		}
+		return text.toString();
+	}
+}
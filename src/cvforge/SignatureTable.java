@@ -0,0 +1,271 @@
+package cvforge;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import reflectiontools.ClassFileInfo;
+import reflectiontools.MethodInfo;
+
+/**
+ * Compact table of the packages, classes and public static method signatures of a library.
+ * Backs the LazyTreeNode objects of a library tree, so tree nodes are only created for what is browsed.
+ * Also holds the filter state of the library: which methods, classes and packages are visible.
+ * As for FilteredTreeNode, classes and packages are visible if they have visible children or contain the filter.
+ * Classes are grouped by package, methods by class; ranges are given by start arrays.
+ */
+public class SignatureTable {
+
+	protected final String[] packages;
+	protected final int[] packageClassStart;	// first class of package p, length packages+1
+	protected final String[] classes;			// simple names
+	protected final int[] classPackage;
+	protected final int[] classMethodStart;		// first method of class c, length classes+1
+	protected final String[] signatures;		// as ClassInspector.infoString()
+	protected final int[] methodClass;
+
+	// lowercase labels for filtering, created on first filter
+	protected String[] packageLabels;
+	protected String[] classLabels;
+	protected String[] signatureLabels;
+
+	// filter state, arrays are null while the filter is empty
+	protected String filter = "";
+	protected boolean[] methodVisible;
+	protected int[] classVisibleMethods;
+	protected boolean[] classVisible;
+	protected int[] packageVisibleClasses;
+
+	// materialized nodes, null if not created yet
+	protected final LazyTreeNode[] packageNodes;
+	protected final LazyTreeNode[] classNodes;
+
+	/**
+	 * Build table from class metadata.
+	 * Packages keep the order of their first class, classes and methods keep their order within packages.
+	 * Packages are listed even if none of their classes has public static methods.
+	 * @param infos Class metadata, e.g. from JarInspector.readClassInfos().
+	 * @param shardsOnly Only include classes implementing CVForgeShard.
+	 */
+	public SignatureTable(List<ClassFileInfo> infos, boolean shardsOnly){
+		LinkedHashMap<String, List<ClassFileInfo>> grouped = new LinkedHashMap<String, List<ClassFileInfo>>();
+		for(ClassFileInfo c: infos){
+			if(shardsOnly && !c.implementsInterface("CVForgeShard"))
+				continue;
+			List<ClassFileInfo> group = grouped.get(c.getPackageName());
+			if(group == null){
+				group = new ArrayList<ClassFileInfo>();
+				grouped.put(c.getPackageName(), group);
+			}
+			group.add(c);
+		}
+
+		List<String> classList = new ArrayList<String>();
+		List<Integer> classPackageList = new ArrayList<Integer>();
+		List<Integer> classStartList = new ArrayList<Integer>();
+		List<String> signatureList = new ArrayList<String>();
+		List<Integer> methodClassList = new ArrayList<Integer>();
+		packages = new String[grouped.size()];
+		packageClassStart = new int[grouped.size()+1];
+
+		int p = 0;
+		for(Map.Entry<String, List<ClassFileInfo>> entry: grouped.entrySet()){
+			packages[p] = entry.getKey();
+			packageClassStart[p] = classList.size();
+			for(ClassFileInfo c: entry.getValue()){
+				List<MethodInfo> methods = c.getStaticMethods();
+				if(methods.isEmpty())
+					continue;
+				classStartList.add(signatureList.size());
+				for(MethodInfo m: methods){
+					signatureList.add(m.infoString());
+					methodClassList.add(classList.size());
+				}
+				classList.add(c.getSimpleName());
+				classPackageList.add(p);
+			}
+			++p;
+		}
+		packageClassStart[p] = classList.size();
+
+		classes = classList.toArray(new String[classList.size()]);
+		signatures = signatureList.toArray(new String[signatureList.size()]);
+		classPackage = toArray(classPackageList);
+		classStartList.add(signatures.length);
+		classMethodStart = toArray(classStartList);
+		methodClass = toArray(methodClassList);
+
+		packageNodes = new LazyTreeNode[packages.length];
+		classNodes = new LazyTreeNode[classes.length];
+	}
+
+	/**
+	 * Create the node of a package, or return it if it already exists.
+	 * @param p Package index.
+	 * @return Lazy package node.
+	 */
+	public LazyTreeNode getPackageNode(int p){
+		if(packageNodes[p] == null)
+			packageNodes[p] = new LazyTreeNode(this, LazyTreeNode.PACKAGE, p);
+		return packageNodes[p];
+	}
+
+	/**
+	 * Create the node of a class, or return it if it already exists.
+	 * @param c Class index.
+	 * @return Lazy class node.
+	 */
+	public LazyTreeNode getClassNode(int c){
+		if(classNodes[c] == null)
+			classNodes[c] = new LazyTreeNode(this, LazyTreeNode.CLASS, c);
+		return classNodes[c];
+	}
+
+	public int getPackageCount(){
+		return packages.length;
+	}
+
+	public int getClassCount(){
+		return classes.length;
+	}
+
+	public int getMethodCount(){
+		return signatures.length;
+	}
+
+	/**
+	 * Lowercase signature of a method, used for filtering.
+	 * @param m Method index.
+	 * @return Label of method.
+	 */
+	public String getSignatureLabel(int m){
+		createLabels();
+		return signatureLabels[m];
+	}
+
+	// lowercase labels, only needed once filtering starts
+	protected void createLabels(){
+		if(signatureLabels != null)
+			return;
+		packageLabels = lowercase(packages);
+		classLabels = lowercase(classes);
+		signatureLabels = lowercase(signatures);
+	}
+
+	/**
+	 * Apply filter by checking all signatures.
+	 * @param filter Lowercase filter.
+	 */
+	public void setFilter(String filter){
+		if(filter.equals(this.filter))
+			return;
+		createLabels();
+		int count = 0;
+		int[] matches = new int[signatures.length];
+		for(int m=0; m<signatures.length; ++m)
+			if(signatureLabels[m].contains(filter))
+				matches[count++] = m;
+		setFilter(filter, matches, count);
+	}
+
+	/**
+	 * Apply filter with known matches, e.g. found by the index of FilteredTreeModel.
+	 * Updates the visibility of all materialized nodes of this table.
+	 * @param filter Lowercase filter.
+	 * @param matches Indices of matching methods in ascending order.
+	 * @param count Number of valid entries in matches.
+	 */
+	public void setFilter(String filter, int[] matches, int count){
+		createLabels();
+		this.filter = filter;
+		if(filter.isEmpty()){
+			methodVisible = null;
+			classVisibleMethods = null;
+			classVisible = null;
+			packageVisibleClasses = null;
+		}else{
+			methodVisible = new boolean[signatures.length];
+			classVisibleMethods = new int[classes.length];
+			classVisible = new boolean[classes.length];
+			packageVisibleClasses = new int[packages.length];
+			for(int i=0; i<count; ++i){
+				methodVisible[matches[i]] = true;
+				++classVisibleMethods[methodClass[matches[i]]];
+			}
+			for(int c=0; c<classes.length; ++c){
+				classVisible[c] = (classVisibleMethods[c] != 0) || classLabels[c].contains(filter);
+				if(classVisible[c])
+					++packageVisibleClasses[classPackage[c]];
+			}
+		}
+
+		// classes before packages, so packages see the new state of their children
+		for(int c=0; c<classes.length; ++c){
+			LazyTreeNode node = classNodes[c];
+			if(node == null)
+				continue;
+			node.filter = filter;
+			if(node.isMaterialized()){
+				for(int i=0; i<node.getRealChildCount(); ++i){
+					FilteredTreeNode leaf = node.getRealChildAt(i);
+					leaf.filter = filter;
+					leaf.setVisible(isMethodVisible(classMethodStart[c]+i));
+				}
+			}
+			node.setVisible(isClassVisible(c));
+		}
+		for(int p=0; p<packages.length; ++p){
+			LazyTreeNode node = packageNodes[p];
+			if(node == null)
+				continue;
+			node.filter = filter;
+			node.setVisible(isPackageVisible(p));
+		}
+	}
+
+	public String getFilter(){
+		return filter;
+	}
+
+	// visibility under current filter
+	public boolean isMethodVisible(int m){
+		return (methodVisible == null) || methodVisible[m];
+	}
+
+	public boolean isClassVisible(int c){
+		return (classVisible == null) || classVisible[c];
+	}
+
+	public boolean isPackageVisible(int p){
+		return (packageVisibleClasses == null) || (packageVisibleClasses[p] != 0) || packageLabels[p].contains(filter);
+	}
+
+	/**
+	 * Number of visible children of a node, without creating them.
+	 * @param kind LazyTreeNode.PACKAGE or LazyTreeNode.CLASS.
+	 * @param index Index of package or class.
+	 * @return Number of visible classes or methods.
+	 */
+	public int getVisibleChildCount(int kind, int index){
+		if(kind == LazyTreeNode.PACKAGE)
+			return (packageVisibleClasses == null)? packageClassStart[index+1]-packageClassStart[index] : packageVisibleClasses[index];
+		return (classVisibleMethods == null)? classMethodStart[index+1]-classMethodStart[index] : classVisibleMethods[index];
+	}
+
+	// lowercase copy of labels
+	protected static String[] lowercase(String[] labels){
+		String[] res = new String[labels.length];
+		for(int i=0; i<labels.length; ++i)
+			res[i] = labels[i].toLowerCase();
+		return res;
+	}
+
+	// unbox list
+	protected static int[] toArray(List<Integer> list){
+		int[] res = new int[list.size()];
+		for(int i=0; i<res.length; ++i)
+			res[i] = list.get(i);
+		return res;
+	}
+}
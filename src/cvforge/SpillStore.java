@@ -0,0 +1,318 @@
+package cvforge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Disk tier of CVForgeCache.
+ * Serializes large Mats and primitive arrays into memory-mapped files of a scratch directory and restores them on demand.
+ * Files are only valid within the running session: data is written in native byte order and removed on exit.
+ * Mats are accessed via reflection, as the core plugin does not depend on OpenCV.
+ */
+public class SpillStore {
+
+	// smallest object worth spilling
+	public static final long MIN_SPILL_BYTES = 1L << 20;
+
+	protected static final String MATNAME = "org.opencv.core.Mat";
+	// OpenCV depths as in CvType
+	protected static final int CV_8U = 0, CV_8S = 1, CV_16U = 2, CV_16S = 3, CV_32S = 4, CV_32F = 5, CV_64F = 6;
+
+	// files of all spilled objects, deleted by a single hook on exit
+	protected static final Set<File> files = ConcurrentHashMap.newKeySet();
+
+	static{
+		Runtime.getRuntime().addShutdownHook(new Thread("CVForge spill cleanup"){
+			@Override
+			public void run(){
+				for(File file: files)
+					file.delete();
+			}
+		});
+	}
+
+	/**
+	 * Metadata of a spilled object, kept in memory while the content is on disk.
+	 */
+	public static class Spilled {
+		protected final File file;
+		protected final Class type;		// class of spilled object
+		protected final long bytes;
+		protected final int length;		// array length, or rows of Mat
+		protected final int cols;		// columns of Mat
+		protected final int cvType;		// type of Mat
+
+		protected Spilled(File file, Class type, long bytes, int length, int cols, int cvType){
+			this.file = file;
+			this.type = type;
+			this.bytes = bytes;
+			this.length = length;
+			this.cols = cols;
+			this.cvType = cvType;
+		}
+
+		public Class getType(){
+			return type;
+		}
+
+		public long getBytes(){
+			return bytes;
+		}
+
+		@Override
+		public String toString(){
+			if(type.isArray())
+				return type.getComponentType().getSimpleName() + "[" + length + "] on disk";
+			return "Mat [" + length + "*" + cols + "] on disk";
+		}
+	}
+
+	protected final File directory;
+
+	/**
+	 * Create store. The directory is created on the first spill.
+	 * @param directory Scratch directory for spill files.
+	 */
+	public SpillStore(File directory){
+		this.directory = directory;
+	}
+
+	public File getDirectory(){
+		return directory;
+	}
+
+	/**
+	 * Check if object can be spilled: continuous Mats and primitive arrays of at least MIN_SPILL_BYTES.
+	 * Subclasses of Mat, e.g. MatOfPoint, are not spilled.
+	 * @param obj Object to check.
+	 * @param bytes Size of object, see MemoryFootprint.sizeOf().
+	 * @return True if spillable.
+	 */
+	public static boolean isSpillable(Object obj, long bytes){
+		if((obj == null) || (bytes < MIN_SPILL_BYTES) || (bytes > Integer.MAX_VALUE))
+			return false;
+		Class type = obj.getClass();
+		if(type.isArray())
+			return type.getComponentType().isPrimitive() && (type.getComponentType() != boolean.class);
+		if(!type.getName().equals(MATNAME))
+			return false;
+		try{
+			int depth = (Integer)type.getMethod("depth").invoke(obj);
+			return (Boolean)type.getMethod("isContinuous").invoke(obj) && (depth <= CV_64F);
+		}catch(Exception e){
+			return false;
+		}
+	}
+
+	/**
+	 * Write object into a new spill file.
+	 * The object itself is left untouched; release it afterwards to free its memory.
+	 * @param obj Spillable object, see isSpillable().
+	 * @return Metadata needed to restore the object.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public Spilled spill(Object obj) throws IOException{
+		Class type = obj.getClass();
+		int length, cols = 0, cvType = 0;
+		long bytes;
+		if(type.isArray()){
+			length = Array.getLength(obj);
+			bytes = length * MemoryFootprint.primitiveSize(type.getComponentType());
+		}else{
+			length = (Integer)invoke(obj, "rows");
+			cols = (Integer)invoke(obj, "cols");
+			cvType = (Integer)invoke(obj, "type");
+			bytes = (Long)invoke(obj, "total") * (Long)invoke(obj, "elemSize");
+		}
+
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create " + directory);
+		File file = File.createTempFile("cvforge", ".spill", directory);
+		files.add(file);
+		Spilled spilled = new Spilled(file, type, bytes, length, cols, cvType);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try{
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+			buffer.order(ByteOrder.nativeOrder());
+			if(type.isArray())
+				putArray(buffer, obj);
+			else
+				writeMat(buffer, obj, spilled);
+		}catch(IOException e){
+			raf.close();
+			files.remove(file);
+			file.delete();
+			throw e;
+		}catch(Exception e){
+			raf.close();
+			files.remove(file);
+			file.delete();
+			throw new IOException("Unable to spill " + type.getSimpleName(), e);
+		}
+		raf.close();
+		return spilled;
+	}
+
+	/**
+	 * Read spilled object back into memory with a single bulk copy and delete its file.
+	 * @param spilled Metadata returned by spill().
+	 * @return Restored object.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public static Object restore(Spilled spilled) throws IOException{
+		Object obj;
+		RandomAccessFile raf = new RandomAccessFile(spilled.file, "r");
+		try{
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, spilled.bytes);
+			buffer.order(ByteOrder.nativeOrder());
+			if(spilled.type.isArray())
+				obj = getArray(buffer, spilled.type.getComponentType(), spilled.length);
+			else
+				obj = readMat(buffer, spilled);
+		}catch(IOException e){
+			throw e;
+		}catch(Exception e){
+			throw new IOException("Unable to restore " + spilled.type.getSimpleName(), e);
+		}finally{
+			raf.close();
+		}
+		discard(spilled);
+		return obj;
+	}
+
+	/**
+	 * Delete the file of a spilled object.
+	 * If the file is still mapped and cannot be deleted, it is removed on exit.
+	 * @param spilled Metadata returned by spill().
+	 */
+	public static void discard(Spilled spilled){
+		files.remove(spilled.file);
+		if(!spilled.file.delete() && spilled.file.exists())
+			spilled.file.deleteOnExit();
+	}
+
+	// copy Mat into mapped buffer, wrapping the buffer directly if OpenCV supports it
+	protected static void writeMat(ByteBuffer buffer, Object mat, Spilled spilled) throws Exception{
+		Class type = mat.getClass();
+		Constructor wrapper = getBufferConstructor(type);
+		if(wrapper != null){
+			Object target = wrapper.newInstance(spilled.length, spilled.cols, spilled.cvType, buffer);
+			type.getMethod("copyTo", type).invoke(mat, target);
+			type.getMethod("release").invoke(target);
+			return;
+		}
+		Object data = Array.newInstance(componentOf(spilled.cvType), (int)(spilled.bytes / elemSizeOf(spilled.cvType)));
+		type.getMethod("get", int.class, int.class, data.getClass()).invoke(mat, 0, 0, data);
+		putArray(buffer, data);
+	}
+
+	// create Mat from mapped buffer
+	protected static Object readMat(ByteBuffer buffer, Spilled spilled) throws Exception{
+		Class type = spilled.type;
+		Constructor wrapper = getBufferConstructor(type);
+		if(wrapper != null){
+			Object source = wrapper.newInstance(spilled.length, spilled.cols, spilled.cvType, buffer);
+			Object mat = type.getMethod("clone").invoke(source);
+			type.getMethod("release").invoke(source);
+			return mat;
+		}
+		Object mat = type.getConstructor(int.class, int.class, int.class).newInstance(spilled.length, spilled.cols, spilled.cvType);
+		Object data = getArray(buffer, componentOf(spilled.cvType), (int)(spilled.bytes / elemSizeOf(spilled.cvType)));
+		type.getMethod("put", int.class, int.class, data.getClass()).invoke(mat, 0, 0, data);
+		return mat;
+	}
+
+	// Mat(rows, cols, type, ByteBuffer), not available in older OpenCV versions
+	protected static Constructor getBufferConstructor(Class type){
+		try{
+			return type.getConstructor(int.class, int.class, int.class, ByteBuffer.class);
+		}catch(NoSuchMethodException e){
+			return null;
+		}
+	}
+
+	// bulk copy of primitive array into buffer
+	protected static void putArray(ByteBuffer buffer, Object data){
+		if(data instanceof byte[])
+			buffer.put((byte[])data);
+		else if(data instanceof short[])
+			buffer.asShortBuffer().put((short[])data);
+		else if(data instanceof char[])
+			buffer.asCharBuffer().put((char[])data);
+		else if(data instanceof int[])
+			buffer.asIntBuffer().put((int[])data);
+		else if(data instanceof float[])
+			buffer.asFloatBuffer().put((float[])data);
+		else if(data instanceof long[])
+			buffer.asLongBuffer().put((long[])data);
+		else if(data instanceof double[])
+			buffer.asDoubleBuffer().put((double[])data);
+		else
+			throw new IllegalArgumentException("Unsupported type: " + data.getClass().getSimpleName());
+	}
+
+	// bulk copy of buffer into new primitive array
+	protected static Object getArray(ByteBuffer buffer, Class component, int length){
+		Object data = Array.newInstance(component, length);
+		if(component == byte.class)
+			buffer.get((byte[])data);
+		else if(component == short.class)
+			buffer.asShortBuffer().get((short[])data);
+		else if(component == char.class)
+			buffer.asCharBuffer().get((char[])data);
+		else if(component == int.class)
+			buffer.asIntBuffer().get((int[])data);
+		else if(component == float.class)
+			buffer.asFloatBuffer().get((float[])data);
+		else if(component == long.class)
+			buffer.asLongBuffer().get((long[])data);
+		else if(component == double.class)
+			buffer.asDoubleBuffer().get((double[])data);
+		else
+			throw new IllegalArgumentException("Unsupported type: " + component.getSimpleName());
+		return data;
+	}
+
+	// Java type holding elements of given Mat type
+	protected static Class componentOf(int cvType){
+		switch(cvType & 7){
+			case CV_8U:
+			case CV_8S:
+				return byte.class;
+			case CV_16U:
+			case CV_16S:
+				return short.class;
+			case CV_32S:
+				return int.class;
+			case CV_32F:
+				return float.class;
+			case CV_64F:
+				return double.class;
+			default:
+				throw new IllegalArgumentException("Unsupported Mat type: " + cvType);
+		}
+	}
+
+	// size of one array element for given Mat type
+	protected static long elemSizeOf(int cvType){
+		return MemoryFootprint.primitiveSize(componentOf(cvType));
+	}
+
+	protected static Object invoke(Object obj, String method) throws IOException{
+		try{
+			return obj.getClass().getMethod(method).invoke(obj);
+		}catch(Exception e){
+			throw new IOException("Unable to spill " + obj.getClass().getSimpleName(), e);
+		}
+	}
+}
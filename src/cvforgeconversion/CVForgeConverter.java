@@ -1,6 +1,7 @@
 package cvforgeconversion;
 
 import java.awt.Rectangle;
+import java.lang.reflect.Array;
 import ij.process.ImageProcessor;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
@@ -31,6 +32,11 @@ public final class CVForgeConverter{
 	protected static final int CV_32S = CvType.CV_32S;
 	protected static final int CV_32F = CvType.CV_32F;
 	
+	// reusable interleaved buffer for color conversion, one per thread
+	protected static final ThreadLocal<byte[]> colorBuffer = new ThreadLocal<byte[]>();
+	// largest buffer kept per thread (16 MB, about 2300x2300 pixels), larger images use a temporary buffer
+	protected static final int MAXCOLORBUFFER = 1 << 24;
+	
 	// get corresponding cvtype of imageprocessor
 	/*public static int toCvType(ImageProcessor ip){
 		final int channels = ip.getNChannels();
@@ -65,9 +71,23 @@ public final class CVForgeConverter{
      * @return Mat object with properties corresponding to the ImageProcessor.
      */
     public static Mat createCompatibleMat(ImageProcessor ip){
+		return createCompatibleMat(ip, true);
+    }
+    
+    /**
+     * Creates a Mat which has the same size and type as the ImageProcessor.
+     * Skipping initialization saves a full pass over the native buffer if it gets overwritten anyway, e.g. by ij2cv().
+     * @param ip ImageProcessor serving as a template for conversion.
+     * @param initialize Set true to zero the Mat. If false, the content is undefined.
+     * @return Mat object with properties corresponding to the ImageProcessor.
+     */
+    public static Mat createCompatibleMat(ImageProcessor ip, boolean initialize){
 		final int width = ip.getWidth();
 		final int height = ip.getHeight();
-		return Mat.zeros(height, width, toCvType(ip));
+		if(initialize)
+			return Mat.zeros(height, width, toCvType(ip));
+		else
+			return new Mat(height, width, toCvType(ip));
     }
     
     /**
@@ -141,6 +161,7 @@ public final class CVForgeConverter{
     /**
      * Convert ImageProcessor to Mat.
      * Resize and reformat Mat if necessary.
+     * Every element of cvmat is overwritten, so cvmat does not need to be initialized.
      * @param ip Input ImageProcessor.
      * @param cvmat Mat to which which ip data is loaded.
      * @throws RuntimeException In case that ImagePlus is of unknown or incompatible type.
@@ -162,37 +183,80 @@ public final class CVForgeConverter{
 			default: 
 				throw new RuntimeException("Unsupported image type: " + ip.getClass().getSimpleName());
 		}
-    	// TODO roi extraction fails! we dont get a submatrix!
-    	// extract ROI
-    	Rectangle ijRoi = ip.getRoi();
-		Rect roi = new Rect(ijRoi.x, ijRoi.y, ijRoi.width, ijRoi.height);
-		cvmat = new Mat(cvmat, roi);
+    }
+    
+    /**
+     * Convert the region of an ImageProcessor to Mat.
+     * Only the pixels inside the rectangle are copied, cvmat must have the size of the rectangle.
+     * Every element of cvmat is overwritten, so cvmat does not need to be initialized.
+     * @param ip Input ImageProcessor.
+     * @param cvmat Mat to which which the region is loaded.
+     * @param roi Region to copy, e.g. ip.getRoi().
+     * @throws RuntimeException In case that ImagePlus is of unknown or incompatible type.
+     */
+    public static void ij2cv(ImageProcessor ip, Mat cvmat, Rectangle roi){
+    	final int stride = ip.getWidth();
+    	if((roi.x == 0) && (roi.y == 0) && (roi.width == stride) && (roi.height == ip.getHeight())){
+    		ij2cv(ip, cvmat);
+    		return;
+    	}
+    	
+    	switch(ip.getBitDepth()){
+			case 8:
+			case 16:
+			case 32:
+				Object pixels = ip.getPixels();
+				Object block = Array.newInstance(pixels.getClass().getComponentType(), roi.width*roi.height);
+				for(int y=0; y<roi.height; ++y)
+					System.arraycopy(pixels, (roi.y+y)*stride+roi.x, block, y*roi.width, roi.width);
+				putBlock(cvmat, 0, block);
+				break;
+			case 24: 
+				toColorMat((ColorProcessor)ip, cvmat, roi);
+				break;
+			default: 
+				throw new RuntimeException("Unsupported image type: " + ip.getClass().getSimpleName());
+		}
     }
     
     /**
      * Convert Mat to ImageProcessor.
-     * Resize ImpageProcessor if necessary.
+     * Pixels of ip outside of the mask are left untouched.
      * @param cvmat Input Mat.
      * @param ip ImageProcessor in which to load cvmat.
      * @param offsetX x origin of offset.
      * @param offsetY y origin of offset.
+     * @param mask Mask of ip's roi as returned by ip.getMask(), null for rectangular regions.
      * @throws RuntimeException In case that Mat is of unknown or incompatible type.
      */
-    public static void cv2ij(Mat cvmat, ImageProcessor ip, int offsetX, int offsetY){		
+    public static void cv2ij(Mat cvmat, ImageProcessor ip, int offsetX, int offsetY, ImageProcessor mask){		
     	final int type = cvmat.type();
     	final int channels = cvmat.channels();
     	switch(channels){
 			case 1:
-				toGrayProcessor(cvmat, ip, offsetX, offsetY);
+				toGrayProcessor(cvmat, ip, offsetX, offsetY, mask);
 				break;
 			case 3:
-				toColorProcessor(cvmat, (ColorProcessor)ip, offsetX, offsetY);
+				toColorProcessor(cvmat, (ColorProcessor)ip, offsetX, offsetY, mask);
 				break;	
 			default:
 				throw new RuntimeException("Unsupported image type " + CvType.typeToString(type));
 		}
 	}
     
+    /**
+     * Convert Mat to ImageProcessor.
+     * Resize ImpageProcessor if necessary.
+     * @param cvmat Input Mat.
+     * @param ip ImageProcessor in which to load cvmat.
+     * @param offsetX x origin of offset.
+     * @param offsetY y origin of offset.
+     * @throws RuntimeException In case that Mat is of unknown or incompatible type.
+     */
+    public static void cv2ij(Mat cvmat, ImageProcessor ip, int offsetX, int offsetY){		
+    	cv2ij(cvmat, ip, offsetX, offsetY, null);
+	}
+    
     /**
      * Convert Mat to ImageProcessor.
      * Resize ImpageProcessor if necessary.
@@ -206,16 +270,75 @@ public final class CVForgeConverter{
         
     /**
      * Helper for conversion of ColorProcessor to Mat.
-     * Data layouts are different which is why we need to manually iterate over the underlying arrays.
+     * Data layouts are different which is why the packed RGB ints are unpacked into an interleaved BGR buffer.
+     * The buffer is handed to the Mat in a single put.
+     * Falls back to per-pixel transfer if cvmat is no continuous CV_8UC3 Mat of matching size.
+     * @param ip ColorProcessor to convert.
+     * @param cvmat converted Mat
+     * @param roi Region of ip to convert.
+     */
+    protected static void toColorMat(ColorProcessor ip, Mat cvmat, Rectangle roi){
+    	if(!cvmat.isContinuous() || (cvmat.type() != CV_8UC3) || (cvmat.cols() != roi.width) || (cvmat.rows() != roi.height)){
+    		toColorMatPerPixel(ip, cvmat, roi);
+    		return;
+    	}
+    	
+    	final int stride = ip.getWidth();
+    	final int[] pixels = (int[])ip.getPixels();
+    	final byte[] bgr = getColorBuffer(3*roi.width*roi.height);
+    	int j = 0;
+    	for(int y=0; y<roi.height; ++y){
+    		final int src = (roi.y+y)*stride + roi.x;
+    		for(int x=0; x<roi.width; ++x, j+=3){
+    			final int pix = pixels[src+x];
+    			bgr[j] = (byte)pix;
+    			bgr[j+1] = (byte)(pix >> 8);
+    			bgr[j+2] = (byte)(pix >> 16);
+    		}
+    	}
+    	cvmat.put(0, 0, bgr);
+    }
+    
+    /**
+     * Overloaded method, converts the entire ColorProcessor.
      * @param ip ColorProcessor to convert.
      * @param cvmat converted Mat
      */
     protected static void toColorMat(ColorProcessor ip, Mat cvmat){
+    	toColorMat(ip, cvmat, new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+    }
+    
+    /**
+     * Fetch the interleaved byte buffer of the calling thread.
+     * The buffer only grows, so it is reused for all images up to the largest one converted so far.
+     * Mat.put() and Mat.get() stop at the end of the Mat, so the surplus is not transferred.
+     * Sizes above MAXCOLORBUFFER get a temporary buffer, so pool threads do not keep huge arrays alive.
+     * @param size Required length of buffer, a multiple of 3.
+     * @return Buffer of at least the requested length, a multiple of 3.
+     */
+    protected static byte[] getColorBuffer(int size){
+    	if(size > MAXCOLORBUFFER)
+    		return new byte[size];
+    	byte[] buffer = colorBuffer.get();
+    	if((buffer == null) || (buffer.length < size)){
+    		buffer = new byte[size];
+    		colorBuffer.set(buffer);
+    	}
+    	return buffer;
+    }
+    
+    /**
+     * Fallback for conversion of ColorProcessor to Mat.
+     * Transfers pixel by pixel, which is slow but works for arbitrary Mats.
+     * @param ip ColorProcessor to convert.
+     * @param cvmat converted Mat
+     * @param roi Region of ip to convert.
+     */
+    protected static void toColorMatPerPixel(ColorProcessor ip, Mat cvmat, Rectangle roi){
     	final int width = ip.getWidth();
-    	final int height = ip.getHeight();
-    	for(int y=0; y<height; ++y){
-    		for(int x=0; x<width; ++x){
-				int pix = ip.get(y*width+x);
+    	for(int y=0; y<roi.height; ++y){
+    		for(int x=0; x<roi.width; ++x){
+				int pix = ip.get((y+roi.y)*width+x+roi.x);
 				int r = (pix & 0xff0000) >> 16;
 				int g = (pix & 0xff00) >> 8;
 				int b = (pix & 0xff);
@@ -228,16 +351,142 @@ public final class CVForgeConverter{
 	/**
 	 * Conversion method for generic gray-value ImageProcessors.
 	 * Covers special case if cvmat is actually a submatrix of ip.
+	 * If the Mat depth matches the processor type, whole rows are copied straight into the pixel array.
+	 * Other combinations fall back to per-pixel transfer.
+     * @param cvmat Mat to convert.
+     * @param ip converted ImageProcessor
+     * @param offsetX offset for copying data
+     * @param offsetY offset for copying data
+     * @param mask Mask relative to offset, null if all pixels are to be copied.
+     */
+    protected static void toGrayProcessor(Mat cvmat, ImageProcessor ip, int offsetX, int offsetY, ImageProcessor mask){
+    	final int depth = cvmat.depth();
+    	final Object pixels = ip.getPixels();
+    	final boolean bulk = ((depth == CV_8U) && (pixels instanceof byte[]))
+    			|| ((depth == CV_16U) && (pixels instanceof short[]))
+    			|| ((depth == CV_32F) && (pixels instanceof float[]));
+    	if(!bulk){
+    		toGrayProcessorPerPixel(cvmat, ip, offsetX, offsetY, mask);
+    		return;
+    	}
+    	
+    	final int width = Math.min(cvmat.width(), ip.getWidth()-offsetX);
+    	final int height = Math.min(cvmat.height(), ip.getHeight()-offsetY);
+    	if((width <= 0) || (height <= 0))
+    		return;
+    	
+    	final int stride = ip.getWidth();
+    	if((mask == null) && cvmat.isContinuous() && (cvmat.width() == stride) && (width == stride)){
+    		// full rows: the whole block is contiguous on both sides
+    		if((offsetY == 0) && (height == ip.getHeight())){
+    			getBlock(cvmat, 0, pixels);
+    		}else{
+    			Object block = Array.newInstance(pixels.getClass().getComponentType(), width*height);
+    			getBlock(cvmat, 0, block);
+    			System.arraycopy(block, 0, pixels, offsetY*stride, width*height);
+    		}
+    		return;
+    	}
+    	
+    	Object row = Array.newInstance(pixels.getClass().getComponentType(), width);
+    	for(int y=0; y<height; ++y){
+    		getBlock(cvmat, y, row);
+    		if(mask == null)
+    			System.arraycopy(row, 0, pixels, (y+offsetY)*stride+offsetX, width);
+    		else
+    			copyMasked(row, pixels, (y+offsetY)*stride+offsetX, (byte[])mask.getPixels(), y*mask.getWidth(), width);
+    	}
+    }
+    
+    /**
+     * Overloaded method without mask.
      * @param cvmat Mat to convert.
      * @param ip converted ImageProcessor
      * @param offsetX offset for copying data
      * @param offsetY offset for copying data
      */
     protected static void toGrayProcessor(Mat cvmat, ImageProcessor ip, int offsetX, int offsetY){
+    	toGrayProcessor(cvmat, ip, offsetX, offsetY, null);
+    }
+    
+    /**
+     * Copy a row into a pixel array, skipping all elements outside of the mask.
+     * @param row Source row; byte[], short[] or float[].
+     * @param pixels Target pixel array of same type as row.
+     * @param pixelPos Start position in pixels.
+     * @param mask Mask pixels, non-zero values denote pixels inside of the mask.
+     * @param maskPos Start position in mask.
+     * @param length Number of elements to copy.
+     */
+    protected static void copyMasked(Object row, Object pixels, int pixelPos, byte[] mask, int maskPos, int length){
+    	if(row instanceof byte[]){
+    		byte[] src = (byte[])row, dst = (byte[])pixels;
+    		for(int x=0; x<length; ++x)
+    			if(mask[maskPos+x] != 0) dst[pixelPos+x] = src[x];
+    	}else if(row instanceof short[]){
+    		short[] src = (short[])row, dst = (short[])pixels;
+    		for(int x=0; x<length; ++x)
+    			if(mask[maskPos+x] != 0) dst[pixelPos+x] = src[x];
+    	}else if(row instanceof float[]){
+    		float[] src = (float[])row, dst = (float[])pixels;
+    		for(int x=0; x<length; ++x)
+    			if(mask[maskPos+x] != 0) dst[pixelPos+x] = src[x];
+    	}else{
+    		throw new RuntimeException("Unsupported buffer type " + row.getClass().getSimpleName());
+    	}
+    }
+    
+    /**
+     * Typed bulk read from a Mat, starting at the first column of the given row.
+     * Reads as many elements as fit into buffer.
+     * @param cvmat Mat to read from.
+     * @param row Row to start reading.
+     * @param buffer Target array; byte[], short[] or float[].
+     */
+    protected static void getBlock(Mat cvmat, int row, Object buffer){
+    	if(buffer instanceof byte[])
+    		cvmat.get(row, 0, (byte[])buffer);
+    	else if(buffer instanceof short[])
+    		cvmat.get(row, 0, (short[])buffer);
+    	else if(buffer instanceof float[])
+    		cvmat.get(row, 0, (float[])buffer);
+    	else
+    		throw new RuntimeException("Unsupported buffer type " + buffer.getClass().getSimpleName());
+    }
+    
+    /**
+     * Typed bulk write into a Mat, starting at the first column of the given row.
+     * @param cvmat Mat to write to.
+     * @param row Row to start writing.
+     * @param buffer Source array; byte[], short[] or float[].
+     */
+    protected static void putBlock(Mat cvmat, int row, Object buffer){
+    	if(buffer instanceof byte[])
+    		cvmat.put(row, 0, (byte[])buffer);
+    	else if(buffer instanceof short[])
+    		cvmat.put(row, 0, (short[])buffer);
+    	else if(buffer instanceof float[])
+    		cvmat.put(row, 0, (float[])buffer);
+    	else
+    		throw new RuntimeException("Unsupported buffer type " + buffer.getClass().getSimpleName());
+    }
+    
+    /**
+     * Fallback conversion method for gray-value ImageProcessors whose type does not match the Mat depth.
+     * Transfers pixel by pixel and is therefore slow.
+     * @param cvmat Mat to convert.
+     * @param ip converted ImageProcessor
+     * @param offsetX offset for copying data
+     * @param offsetY offset for copying data
+     * @param mask Mask relative to offset, null if all pixels are to be copied.
+     */
+    protected static void toGrayProcessorPerPixel(Mat cvmat, ImageProcessor ip, int offsetX, int offsetY, ImageProcessor mask){
     	final int width = cvmat.width();
     	final int height = cvmat.height();
     	for(int y=0; y<height; ++y){
     		for(int x=0; x<width; ++x){
+    			if((mask != null) && (mask.getPixel(x, y) == 0))
+    				continue;
     			double[] pix = cvmat.get(y, x);
     			int[] conv = {(int)pix[0], (int)pix[0], (int)pix[0]};
 				ip.putPixel(x+offsetX, y+offsetY, conv);
@@ -258,18 +507,78 @@ public final class CVForgeConverter{
     
     /**
      * Helper for conversion of Mat to ColorProcessor.
-     * Data layouts are different which is why we need to manually iterate over the underlying arrays.
+     * Data layouts are different which is why interleaved BGR rows are read in bulk and packed into the int pixels.
      * Offset values define are to be used if cvmat is actually a submatrix.
      * @param cvmat Mat to convert.
      * @param ip converted ColorProcessor
      * @param offsetX offset for copying data
      * @param offsetY offset for copying data
+     * @param mask Mask relative to offset, null if all pixels are to be copied.
+     */
+    protected static void toColorProcessor(Mat cvmat, ColorProcessor ip, int offsetX, int offsetY, ImageProcessor mask){
+    	if(cvmat.type() != CV_8UC3){
+    		toColorProcessorPerPixel(cvmat, ip, offsetX, offsetY, mask);
+    		return;
+    	}
+    	
+    	final int width = Math.min(cvmat.width(), ip.getWidth()-offsetX);
+    	final int height = Math.min(cvmat.height(), ip.getHeight()-offsetY);
+    	if((width <= 0) || (height <= 0))
+    		return;
+    	
+    	final int stride = ip.getWidth();
+    	final int[] pixels = (int[])ip.getPixels();
+    	final byte[] maskPixels = (mask == null)? null : (byte[])mask.getPixels();
+    	final boolean fullRows = cvmat.isContinuous() && (cvmat.width() == width);
+    	// rows are read one by one, a larger buffer would let get() continue into the following rows
+    	final byte[] bgr = fullRows? getColorBuffer(3*width*height) : new byte[3*width];
+    	if(fullRows)
+    		cvmat.get(0, 0, bgr);
+    	
+    	for(int y=0; y<height; ++y){
+    		int j = fullRows? 3*y*width : 0;
+    		if(!fullRows)
+    			cvmat.get(y, 0, bgr);
+    		int dst = (y+offsetY)*stride + offsetX;
+    		int m = (mask == null)? 0 : y*mask.getWidth();
+    		for(int x=0; x<width; ++x, j+=3){
+    			if((maskPixels != null) && (maskPixels[m+x] == 0))
+    				continue;
+    			int r = bgr[j+2] & 0xff;
+    			int g = bgr[j+1] & 0xff;
+    			int b = bgr[j] & 0xff;
+    			pixels[dst+x] = (r<<16)|(g<<8)|b;
+    		}
+    	}
+    }
+    
+    /**
+     * Overloaded method without mask.
+     * @param cvmat Mat to convert.
+     * @param ip converted ColorProcessor
+     * @param offsetX offset for copying data
+     * @param offsetY offset for copying data
      */
     protected static void toColorProcessor(Mat cvmat, ColorProcessor ip, int offsetX, int offsetY){
+    	toColorProcessor(cvmat, ip, offsetX, offsetY, null);
+    }
+    
+    /**
+     * Fallback for conversion of Mat to ColorProcessor.
+     * Transfers pixel by pixel, which is slow but works for Mats of any 3-channel type.
+     * @param cvmat Mat to convert.
+     * @param ip converted ColorProcessor
+     * @param offsetX offset for copying data
+     * @param offsetY offset for copying data
+     * @param mask Mask relative to offset, null if all pixels are to be copied.
+     */
+    protected static void toColorProcessorPerPixel(Mat cvmat, ColorProcessor ip, int offsetX, int offsetY, ImageProcessor mask){
     	final int width = cvmat.width();
     	final int height = cvmat.height();
     	for(int y=0; y<height; ++y){
     		for(int x=0; x<width; ++x){
+    			if((mask != null) && (mask.getPixel(x, y) == 0))
+    				continue;
     			double[] data = cvmat.get(y, x);    				
 				int r = (int)data[2];
 				int g = (int)data[1];
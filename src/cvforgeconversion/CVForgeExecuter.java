@@ -2,14 +2,25 @@ package cvforgeconversion;
 
 import java.lang.reflect.Method;
 import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
 import ij.process.ImageProcessor;
 
 import org.opencv.core.Mat;
-import org.opencv.core.Rect;
 
 import cvforge.CVForgeCache;
+import cvforge.Executer;
 
 /**
  * Execution module for OpenCV methods.
@@ -27,55 +38,350 @@ public final class CVForgeExecuter {
 		System.load(path);
 	}
 	
+	/**
+	 * Call this method by reflection before the library is switched.
+	 * Frees native memory held by this module, so nothing outlives its ClassLoader.
+	 */
+	public static void dispose(){
+		MatMirror.dispose();
+		MatPool.clear();
+		synchronized(stackPools){
+			for(ForkJoinPool pool: stackPools.values())
+				pool.shutdown();
+			stackPools.clear();
+		}
+	}
+	
+	// worker pools for stack execution by parallelism, kept as running calls may still use them
+	protected static final HashMap<Integer, ForkJoinPool> stackPools = new HashMap<Integer, ForkJoinPool>();
+	
 	/**
 	 * Call this method by reflection.
+	 * Mats created for ImageProcessor arguments are taken from MatPool and handed back once the call finishes.
+	 * Results are cached as they are. Mat results are converted into an ImagePlus only if display is set,
+	 * otherwise the conversion is deferred until show() is called for the cache entry.
 	 * @param m Method to be called.
 	 * @param args Arguments for method.
 	 * @param cacheTarget Name to be used for caching. If empty String is given, the call result will not be added to CVForgeCache. 
+	 * @param display Set true to show Mat results as ImageJ image right away.
 	 * @throws Exception Exception thrown in case of invocation failure.
 	 */
+	public static void execute(Method m, Object[] args, String cacheTarget, boolean display) throws Exception {
+		Object callResult = invoke(m, args);
+		// add to cache if new object was created
+		if((!cacheTarget.isEmpty()) && (callResult != null)){
+			CVForgeCache.add(cacheTarget, callResult);
+			if(display && (callResult instanceof Mat))
+				show((Mat)callResult, cacheTarget);
+		}
+	}
+	
+	// overloaded, Mat results are shown.
 	public static void execute(Method m, Object[] args, String cacheTarget) throws Exception {
-		// conversion from imagej to opencv
-		Object[] argsConv = new Object[args.length];
-		for(int i=0; i<args.length; ++i){
-			if(args[i] instanceof ImageProcessor){
-				Mat cvmat = CVForgeConverter.createCompatibleMat((ImageProcessor)args[i]);
-				ImageProcessor ip = (ImageProcessor)args[i];
-				CVForgeConverter.ij2cv(ip, cvmat);
-				
-				// extract region of interest
-				Rectangle roi = ip.getRoi();
-				Mat cvsubmat = new Mat(cvmat, new Rect(roi.x, roi.y, roi.width, roi.height));
-				argsConv[i] = cvsubmat;
-			}else{
-				argsConv[i] = args[i];
+		execute(m, args, cacheTarget, true);
+	}
+	
+	/**
+	 * Call this method by reflection to convert a cached Mat into an ImageJ image and show it.
+	 * The Mat stays in the cache, the image is an independent copy.
+	 * @param cacheKey Name of the cached Mat, also used as image title.
+	 * @return Shown ImagePlus.
+	 * @throws IllegalArgumentException If no Mat is cached under the given name.
+	 */
+	public static ImagePlus show(String cacheKey){
+		Object cached = CVForgeCache.get(cacheKey);
+		if(!(cached instanceof Mat))
+			throw new IllegalArgumentException("No Mat cached as \"" + cacheKey + "\"");
+		return show((Mat)cached, cacheKey);
+	}
+	
+	/**
+	 * Convert Mat into a new ImageJ image and show it.
+	 * @param cvmat Mat to convert.
+	 * @param title Title of the image.
+	 * @return Shown ImagePlus.
+	 */
+	protected static ImagePlus show(Mat cvmat, String title){
+		ImageProcessor ip = CVForgeConverter.createCompatibleProcessor(cvmat);
+		CVForgeConverter.cv2ij(cvmat, ip);
+		ImagePlus image = new ImagePlus(title, ip);
+		image.show();
+		return image;
+	}
+	
+	/**
+	 * Call this method by reflection to process a range of slices.
+	 * Every ImagePlus argument is replaced by the processor of the current slice, using the ROI of the ImagePlus.
+	 * Slices are processed in parallel and written back one by one.
+	 * Each worker converts its slice in its own Mats taken from MatPool.
+	 * Mat results are collected in a new stack which is shown under the name cacheTarget.
+	 * Other results are cached as array under cacheTarget, one element per slice.
+	 * @param m Method to be called.
+	 * @param args Arguments for method. ImagePlus arguments must have equal stack sizes.
+	 * @param cacheTarget Name to be used for caching. If empty String is given, the call results are discarded.
+	 * @param first First slice to process, starting at 1.
+	 * @param last Last slice to process. Values below 1 denote the last slice of the stack.
+	 * @param threads Number of worker threads. Values below 1 use all available processors.
+	 * @throws Exception Exception thrown in case of invocation failure.
+	 */
+	public static void executeStack(final Method m, final Object[] args, String cacheTarget, int first, int last, int threads) throws Exception {
+		int slices = -1;
+		for(Object arg: args){
+			if(arg instanceof ImagePlus){
+				checkStack((ImagePlus)arg);
+				int size = ((ImagePlus)arg).getStackSize();
+				if((slices != -1) && (slices != size))
+					throw new IllegalArgumentException("Stack sizes of input images do not match");
+				slices = size;
 			}
 		}
-		// method execution
-		Object callResult = m.invoke(null, argsConv);
-		// show result and add to cache if new object was created
-		if((!cacheTarget.isEmpty()) && (callResult != null)){
-			if(callResult instanceof Mat){
-				ImageProcessor ip = CVForgeConverter.createCompatibleProcessor((Mat)callResult);
-				CVForgeConverter.cv2ij((Mat)callResult, ip);
-				ImagePlus image = new ImagePlus(cacheTarget, ip);
-				image.show();
+		// no stacks given, fall back to ordinary execution
+		if(slices == -1){
+			execute(m, args, cacheTarget);
+			return;
+		}
+		
+		final int from = Math.max(1, first);
+		final int to = ((last < 1) || (last > slices))? slices : last;
+		if(from > to)
+			throw new IllegalArgumentException("Invalid slice range " + first + "-" + last);
+		
+		// rois and masks are shared read-only by all workers
+		final Rectangle[] rois = new Rectangle[args.length];
+		final ImageProcessor[] masks = new ImageProcessor[args.length];
+		collectRois(args, rois, masks);
+		
+		final int total = to-from+1;
+		final Object[] results = new Object[total];
+		final AtomicInteger done = new AtomicInteger();
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(total);
+		for(int s=from; s<=to; ++s){
+			final int slice = s;
+			tasks.add(new Callable<Object>(){
+				public Object call() throws Exception{
+					Object callResult = invoke(m, sliceArguments(args, slice, rois, masks));
+					results[slice-from] = toProcessor(callResult);
+					IJ.showProgress(done.incrementAndGet(), total);
+					return null;
+				}
+			});
+		}
+		
+		runTasks(tasks, threads);
+		IJ.showProgress(1.0);
+		
+		if(cacheTarget.isEmpty() || (results[0] == null))
+			return;
+		
+		if(results[0] instanceof ImageProcessor){
+			ImageProcessor template = (ImageProcessor)results[0];
+			ImageStack resultStack = new ImageStack(template.getWidth(), template.getHeight());
+			for(int i=0; i<total; ++i)
+				resultStack.addSlice("" + (from+i), (ImageProcessor)results[i]);
+			ImagePlus image = new ImagePlus(cacheTarget, resultStack);
+			image.show();
+		}else{
+			CVForgeCache.add(cacheTarget, results);
+		}
+	}
+	
+	/**
+	 * Check if the slices of an image can be processed in place.
+	 * Virtual stacks hand out copies of their slices, so results written into them would be lost.
+	 * @param imp ImagePlus argument.
+	 * @throws IllegalArgumentException If imp is a virtual stack.
+	 */
+	protected static void checkStack(ImagePlus imp){
+		if(imp.getStack().isVirtual())
+			throw new IllegalArgumentException("Virtual stack \"" + imp.getTitle() + "\" is not supported, duplicate it first");
+	}
+	
+	/**
+	 * Run tasks on the worker pool and wait until all of them are finished.
+	 * @param tasks Tasks to run.
+	 * @param threads Number of worker threads. Values below 1 use all available processors.
+	 * @throws Exception First failure of a task.
+	 */
+	protected static void runTasks(List<Callable<Object>> tasks, int threads) throws Exception {
+		// propagate first failure
+		for(Future<Object> f: getStackPool(threads).invokeAll(tasks)){
+			try{
+				f.get();
+			}catch(ExecutionException e){
+				Throwable cause = e.getCause();
+				// exceptions of worker threads are rethrown as copies wrapping the original
+				if((cause != null) && (cause.getCause() != null) && (cause.getClass() == cause.getCause().getClass()))
+					cause = cause.getCause();
+				throw (cause instanceof Exception)? (Exception)cause : e;
+			}
+		}
+	}
+	
+	/**
+	 * Fetch the rectangle and mask of the ROI of each ImagePlus argument.
+	 * @param args Arguments for method.
+	 * @param rois Array receiving the ROI bounds, null entries if no area ROI is set.
+	 * @param masks Array receiving the ROI masks, null entries for rectangular ROIs.
+	 */
+	protected static void collectRois(Object[] args, Rectangle[] rois, ImageProcessor[] masks){
+		for(int i=0; i<args.length; ++i){
+			if(args[i] instanceof ImagePlus){
+				Roi roi = ((ImagePlus)args[i]).getRoi();
+				if((roi != null) && roi.isArea()){
+					rois[i] = roi.getBounds();
+					masks[i] = roi.getMask();
+				}
 			}
-			CVForgeCache.add(cacheTarget, callResult);
 		}
-		// backconversion from opencv to imagej		
+	}
+	
+	/**
+	 * Replace every ImagePlus argument by the processor of the given stack position.
+	 * @param args Arguments for method.
+	 * @param index Stack index, starting at 1.
+	 * @param rois ROI bounds as fetched by collectRois().
+	 * @param masks ROI masks as fetched by collectRois().
+	 * @return Arguments for a single call.
+	 */
+	protected static Object[] sliceArguments(Object[] args, int index, Rectangle[] rois, ImageProcessor[] masks){
+		Object[] sliceArgs = new Object[args.length];
 		for(int i=0; i<args.length; ++i){
-			if(argsConv[i] instanceof Mat){
-				Mat cvmat = CVForgeConverter.createCompatibleMat((ImageProcessor)args[i]);
-				
-				ImageProcessor ip = (ImageProcessor)args[i];
-				CVForgeConverter.cv2ij((Mat)argsConv[i], (ImageProcessor)args[i], ip.getRoi().x, ip.getRoi().y);
-				argsConv[i] = cvmat;
-				// free matrix memory
-				//cvmat.release();
+			if(args[i] instanceof ImagePlus){
+				ImageProcessor ip = ((ImagePlus)args[i]).getStack().getProcessor(index);
+				if(rois[i] != null){
+					ip.setRoi(rois[i]);
+					ip.setMask(masks[i]);
+				}
+				sliceArgs[i] = ip;
 			}else{
-				argsConv[i] = args[i];
+				sliceArgs[i] = args[i];
+			}
+		}
+		return sliceArgs;
+	}
+	
+	/**
+	 * Convert Mat results of slice-wise calls to ImageProcessors.
+	 * Only ImageJ pixels are kept to avoid pinning native memory of all slices.
+	 * @param callResult Result of a call.
+	 * @return ImageProcessor if callResult is a Mat, callResult else.
+	 */
+	protected static Object toProcessor(Object callResult){
+		if(!(callResult instanceof Mat))
+			return callResult;
+		
+		Mat cvmat = (Mat)callResult;
+		ImageProcessor ip = CVForgeConverter.createCompatibleProcessor(cvmat);
+		CVForgeConverter.cv2ij(cvmat, ip);
+		cvmat.release();
+		return ip;
+	}
+	
+	/**
+	 * Get the worker pool for stack execution.
+	 * One pool is kept per requested parallelism, so calls running with another thread count are not affected.
+	 * @param threads Number of worker threads. Values below 1 use all available processors.
+	 * @return ForkJoinPool with requested parallelism.
+	 */
+	protected static ForkJoinPool getStackPool(int threads){
+		final int parallelism = (threads < 1)? Runtime.getRuntime().availableProcessors() : threads;
+		synchronized(stackPools){
+			ForkJoinPool pool = stackPools.get(parallelism);
+			if(pool == null){
+				pool = new ForkJoinPool(parallelism);
+				stackPools.put(parallelism, pool);
+			}
+			return pool;
+		}
+	}
+	
+	/**
+	 * Convert the arguments, invoke the method and convert the ImageProcessor arguments back.
+	 * Mats created for ImageProcessor arguments are taken from MatMirror if the image is unchanged since an earlier call,
+	 * from MatPool otherwise, and handed back once the call finishes.
+	 * @param m Method to be called.
+	 * @param args Arguments for method.
+	 * @return Result of the call, null for void methods.
+	 * @throws Exception Exception thrown in case of invocation failure.
+	 */
+	protected static Object invoke(Method m, Object[] args) throws Exception {
+		Object[] argsConv = new Object[args.length];
+		Mat[] pooled = new Mat[args.length];
+		Mat[] mirrored = new Mat[args.length];
+		boolean written = false;
+		try{
+			// conversion from imagej to opencv
+			for(int i=0; i<args.length; ++i){
+				if(args[i] instanceof ImageProcessor){
+					// only transfer the region of interest
+					ImageProcessor ip = (ImageProcessor)args[i];
+					Rectangle roi = ip.getRoi();
+					// images passed more than once get separate copies, as before
+					Mat cvmat = isAliased(args, i)? null : MatMirror.acquire(ip, roi);
+					if(cvmat != null){
+						mirrored[i] = cvmat;
+					}else{
+						// ij2cv overwrites the whole buffer, so skip initialization
+						cvmat = MatPool.acquire(roi.height, roi.width, CVForgeConverter.toCvType(ip), false);
+						pooled[i] = cvmat;
+						CVForgeConverter.ij2cv(ip, cvmat, roi);
+					}
+					argsConv[i] = cvmat;
+				}else{
+					argsConv[i] = args[i];
+				}
 			}
+			// method execution through cached handle
+			Object callResult = Executer.invoke(m, argsConv);
+			// pooled buffers and mirrors are reused after the call, so never hand them out
+			for(int i=0; i<args.length; ++i){
+				if((callResult != null) && ((callResult == pooled[i]) || (callResult == mirrored[i]))){
+					callResult = ((Mat)callResult).clone();
+					break;
+				}
+			}
+			// backconversion from opencv to imagej		
+			for(int i=0; i<args.length; ++i){
+				Mat cvmat = (pooled[i] != null)? pooled[i] : mirrored[i];
+				if(cvmat != null){
+					// pixels outside of non-rectangular rois stay untouched
+					ImageProcessor ip = (ImageProcessor)args[i];
+					Rectangle roi = ip.getRoi();
+					CVForgeConverter.cv2ij(cvmat, ip, roi.x, roi.y, ip.getMask());
+				}
+			}
+			written = true;
+			return callResult;
+		}finally{
+			// free matrix memory
+			for(int i=0; i<args.length; ++i){
+				if(pooled[i] != null){
+					MatPool.release(pooled[i]);
+				}else if(mirrored[i] != null){
+					// with a mask, pixels outside of it now differ from the mirror,
+					// calls like resize(src, src, ...) reallocate it, so only the overlap was written back
+					ImageProcessor ip = (ImageProcessor)args[i];
+					Rectangle roi = ip.getRoi();
+					Mat cvmat = mirrored[i];
+					boolean intact = (cvmat.rows() == roi.height) && (cvmat.cols() == roi.width) && (cvmat.type() == CVForgeConverter.toCvType(ip));
+					MatMirror.release(ip, cvmat, written && intact && (ip.getMask() == null));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Check if the pixels of an ImageProcessor argument are passed in another argument as well.
+	 * @param args Arguments for method.
+	 * @param index Index of ImageProcessor argument.
+	 * @return true, if another ImageProcessor argument shares its pixels.
+	 */
+	protected static boolean isAliased(Object[] args, int index){
+		Object pixels = ((ImageProcessor)args[index]).getPixels();
+		for(int i=0; i<args.length; ++i){
+			if((i != index) && (args[i] instanceof ImageProcessor) && (((ImageProcessor)args[i]).getPixels() == pixels))
+				return true;
 		}
+		return false;
 	}
 }
@@ -0,0 +1,172 @@
+package cvforgeconversion;
+
+import java.awt.Rectangle;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import cvforge.CVForgeCache;
+
+/**
+ * Dispatcher for running OpenCV methods over hyperstacks.
+ * Iterates over chosen channel, slice and frame ranges and calls the method once per plane through CVForgeExecuter.
+ * Work is split along the outermost dimension with more than one position, inner dimensions are processed sequentially by each worker.
+ * Planes are converted one at a time, the hyperstack is never converted into a single Mat.
+ */
+public final class HyperstackDispatcher {
+
+	// dimension indices
+	public static final int C = 0;
+	public static final int Z = 1;
+	public static final int T = 2;
+
+	/**
+	 * Call method for every plane of the chosen hyperstack ranges.
+	 * Every ImagePlus argument is replaced by its plane at the current position, using the ROI of the ImagePlus.
+	 * Mat results are streamed into an output hyperstack with the shape of the processed ranges, which is shown under the name cacheTarget.
+	 * Other results are cached as array under cacheTarget, ordered like ImageJ stacks (channels fastest, then slices, then frames).
+	 * @param m Method to be called.
+	 * @param args Arguments for method. ImagePlus arguments must have equal dimensions.
+	 * @param cacheTarget Name to be used for caching. If empty String is given, the call results are discarded.
+	 * @param ranges First and last position of each dimension: {c0, c1, z0, z1, t0, t1}, starting at 1. Last positions below 1 denote the end of the dimension.
+	 * @param threads Number of worker threads. Values below 1 use all available processors.
+	 * @throws Exception Exception thrown in case of invocation failure.
+	 */
+	public static void execute(final Method m, final Object[] args, final String cacheTarget, int[] ranges, int threads) throws Exception {
+		ImagePlus template = null;
+		for(Object arg: args){
+			if(arg instanceof ImagePlus){
+				ImagePlus imp = (ImagePlus)arg;
+				CVForgeExecuter.checkStack(imp);
+				if(template == null){
+					template = imp;
+				}else if((imp.getNChannels() != template.getNChannels()) || (imp.getNSlices() != template.getNSlices()) || (imp.getNFrames() != template.getNFrames())){
+					throw new IllegalArgumentException("Dimensions of input hyperstacks do not match");
+				}
+			}
+		}
+		// no stacks given, fall back to ordinary execution
+		if(template == null){
+			CVForgeExecuter.execute(m, args, cacheTarget);
+			return;
+		}
+
+		final int[] sizes = {template.getNChannels(), template.getNSlices(), template.getNFrames()};
+		final int[] from = new int[3];
+		final int[] counts = new int[3];
+		for(int d=0; d<3; ++d){
+			from[d] = Math.max(1, ranges[2*d]);
+			int to = ((ranges[2*d+1] < 1) || (ranges[2*d+1] > sizes[d]))? sizes[d] : ranges[2*d+1];
+			counts[d] = to-from[d]+1;
+			if(counts[d] < 1)
+				throw new IllegalArgumentException("Invalid range " + ranges[2*d] + "-" + ranges[2*d+1] + " for dimension " + "CZT".charAt(d));
+		}
+
+		// parallelise over outermost dimension that is actually iterated
+		final int outer = (counts[T] > 1)? T : (counts[Z] > 1)? Z : C;
+		final int total = counts[C]*counts[Z]*counts[T];
+		final boolean collect = !cacheTarget.isEmpty();
+		final Object[] results = new Object[total];
+		final ImageStack[] output = new ImageStack[1];
+		// bit depth of the output stack and number of planes written to it, guarded by output
+		final int[] planes = new int[2];
+		final AtomicInteger done = new AtomicInteger();
+
+		// rois and masks are shared read-only by all workers
+		final Rectangle[] rois = new Rectangle[args.length];
+		final ImageProcessor[] masks = new ImageProcessor[args.length];
+		CVForgeExecuter.collectRois(args, rois, masks);
+
+		final ImagePlus layout = template;
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(counts[outer]);
+		for(int o=0; o<counts[outer]; ++o){
+			final int outerPos = o;
+			tasks.add(new Callable<Object>(){
+				public Object call() throws Exception{
+					int[] pos = new int[3];
+					int[] inner = new int[3];
+					inner[outer] = 1;
+					for(int d=0; d<3; ++d)
+						if(d != outer) inner[d] = counts[d];
+
+					for(int t=0; t<inner[T]; ++t){
+						for(int z=0; z<inner[Z]; ++z){
+							for(int c=0; c<inner[C]; ++c){
+								pos[C] = c; pos[Z] = z; pos[T] = t;
+								pos[outer] = outerPos;
+
+								int index = layout.getStackIndex(from[C]+pos[C], from[Z]+pos[Z], from[T]+pos[T]);
+								Object callResult = CVForgeExecuter.invoke(m, CVForgeExecuter.sliceArguments(args, index, rois, masks));
+								if(collect){
+									int target = (pos[T]*counts[Z] + pos[Z])*counts[C] + pos[C];
+									store(output, planes, results, target, total, CVForgeExecuter.toProcessor(callResult));
+								}
+								IJ.showProgress(done.incrementAndGet(), total);
+							}
+						}
+					}
+					return null;
+				}
+			});
+		}
+
+		CVForgeExecuter.runTasks(tasks, threads);
+		IJ.showProgress(1.0);
+
+		if(!collect)
+			return;
+
+		if(output[0] != null){
+			if(planes[1] != total)
+				throw new IllegalArgumentException("Method returned images for some planes only");
+			ImagePlus image = new ImagePlus(cacheTarget, output[0]);
+			image.setDimensions(counts[C], counts[Z], counts[T]);
+			if(total > 1)
+				image.setOpenAsHyperStack(true);
+			image.show();
+			return;
+		}
+		for(Object result: results){
+			if(result != null){
+				CVForgeCache.add(cacheTarget, results);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Store the result of a single plane.
+	 * ImageProcessors are written into the output stack, which is created on the first processor.
+	 * @param output Holder of the output stack.
+	 * @param planes Bit depth of the output stack and number of planes written to it.
+	 * @param results Holder of other results.
+	 * @param target Position in output, starting at 0.
+	 * @param total Number of planes.
+	 * @param result Result of the call.
+	 * @throws IllegalArgumentException If the processor differs in size or type from the ones stored before.
+	 */
+	protected static void store(ImageStack[] output, int[] planes, Object[] results, int target, int total, Object result){
+		if(!(result instanceof ImageProcessor)){
+			results[target] = result;
+			return;
+		}
+
+		ImageProcessor ip = (ImageProcessor)result;
+		synchronized(output){
+			if(output[0] == null){
+				output[0] = new ImageStack(ip.getWidth(), ip.getHeight(), total);
+				planes[0] = ip.getBitDepth();
+			}else if((ip.getWidth() != output[0].getWidth()) || (ip.getHeight() != output[0].getHeight()) || (ip.getBitDepth() != planes[0])){
+				throw new IllegalArgumentException("Result of plane " + (target+1) + " differs in size or type from the other planes");
+			}
+			output[0].setPixels(ip.getPixels(), target+1);
+			++planes[1];
+		}
+	}
+}
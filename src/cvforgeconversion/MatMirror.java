@@ -0,0 +1,278 @@
+package cvforgeconversion;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import org.opencv.core.Mat;
+
+import cvforge.ImageStamps;
+
+/**
+ * Cache of converted Mats for unchanged ImageJ images.
+ * A mirror is kept per pixel array, i.e. per image and slice, together with the ROI, the snapshot
+ * and the modification stamp of the image at conversion time. It is reused as long as all of them are unchanged.
+ * Only images shown in a window are mirrored, since ImageJ does not report updates of other images.
+ * Mirrors are freed in least recently used order once the byte budget is exceeded, and when their window closes.
+ * Mirrors taken via acquire() must be handed back via release() once the call using them finishes.
+ * Before the library is switched, dispose() frees all mirrors and detaches from ImageStamps, so the old ClassLoader can be collected.
+ */
+public final class MatMirror {
+
+	// default upper bound of native memory held by mirrors
+	public static final long DEFAULT_MAX_MIRROR_BYTES = 512L << 20;
+
+	protected static final class Mirror {
+		protected final Object pixels;
+		protected final int imageID;
+		protected final long stamp;
+		protected final Rectangle roi;
+		protected final Object snapshot;
+		protected final Mat cvmat;
+		protected final long bytes;
+		protected boolean inUse;
+
+		protected Mirror(Object pixels, int imageID, long stamp, Rectangle roi, Object snapshot, Mat cvmat){
+			this.pixels = pixels;
+			this.imageID = imageID;
+			this.stamp = stamp;
+			this.roi = roi;
+			this.snapshot = snapshot;
+			this.cvmat = cvmat;
+			this.bytes = MatPool.byteSize(cvmat);
+		}
+	}
+
+	// mirrors by pixel array in access order, arrays are compared by identity
+	protected static final LinkedHashMap<Object, Mirror> mirrors = new LinkedHashMap<Object, Mirror>(16, 0.75f, true);
+
+	protected static long maxMirrorBytes = DEFAULT_MAX_MIRROR_BYTES;
+	protected static long mirrorBytes = 0;
+	protected static long hits = 0;
+	protected static long misses = 0;
+
+	// drops mirrors of closed and changed images
+	protected static final ImageListener listener = new ImageListener(){
+		public void imageOpened(ImagePlus imp){}
+
+		public void imageClosed(ImagePlus imp){
+			discard(imp.getID(), -1);
+		}
+
+		public void imageUpdated(ImagePlus imp){
+			discard(imp.getID(), ImageStamps.getStamp(imp));
+		}
+	};
+
+	static{
+		ImageStamps.addListener(listener);
+	}
+
+	/**
+	 * Get the Mat of the region of an ImageProcessor, converting it only if no valid mirror exists.
+	 * The Mat is reserved for the caller until release() and may be modified by it.
+	 * @param ip ImageProcessor to convert.
+	 * @param roi Region to convert, e.g. ip.getRoi().
+	 * @return Mat holding the region, null if the image cannot be mirrored or its mirror is in use.
+	 */
+	public static Mat acquire(ImageProcessor ip, Rectangle roi){
+		Object pixels = ip.getPixels();
+		ImagePlus imp = ImageStamps.findImage(pixels);
+		if(imp == null)
+			return null;
+
+		ImageStamps.flush();
+		final long stamp = ImageStamps.getStamp(imp);
+		final int type = CVForgeConverter.toCvType(ip);
+		Mirror mirror;
+		ArrayList<Mat> freed = new ArrayList<Mat>();
+		synchronized(MatMirror.class){
+			mirror = mirrors.get(pixels);
+			if(mirror != null){
+				if(mirror.inUse)
+					return null;
+				if((mirror.stamp == stamp) && (mirror.imageID == imp.getID()) && mirror.roi.equals(roi)
+						&& (mirror.snapshot == ip.getSnapshotPixels()) && (mirror.cvmat.type() == type)
+						&& (mirror.cvmat.rows() == roi.height) && (mirror.cvmat.cols() == roi.width)){
+					++hits;
+					mirror.inUse = true;
+					return mirror.cvmat;
+				}
+				remove(mirror, freed);
+			}
+			++misses;
+
+			long bytes = (long)roi.width * roi.height * (ip.getBitDepth() == 24? 3 : ip.getBitDepth()/8);
+			if(bytes > maxMirrorBytes){
+				free(freed);
+				return null;
+			}
+			// reserve entry before converting, so concurrent callers fall back to pooled Mats
+			mirror = new Mirror(pixels, imp.getID(), stamp, new Rectangle(roi), ip.getSnapshotPixels(), new Mat(roi.height, roi.width, type));
+			mirror.inUse = true;
+			mirrors.put(pixels, mirror);
+			mirrorBytes += mirror.bytes;
+			trim(freed);
+		}
+		free(freed);
+
+		try{
+			CVForgeConverter.ij2cv(ip, mirror.cvmat, roi);
+		}catch(RuntimeException e){
+			release(ip, mirror.cvmat, false);
+			throw e;
+		}
+		return mirror.cvmat;
+	}
+
+	/**
+	 * Hand a Mat obtained from acquire() back.
+	 * @param ip ImageProcessor the Mat was acquired for.
+	 * @param cvmat Mat returned by acquire().
+	 * @param valid Set true if the pixels of ip inside the ROI equal the Mat, e.g. after writing it back without mask.
+	 */
+	public static void release(ImageProcessor ip, Mat cvmat, boolean valid){
+		ArrayList<Mat> freed = new ArrayList<Mat>();
+		synchronized(MatMirror.class){
+			Mirror mirror = mirrors.get(ip.getPixels());
+			if((mirror == null) || (mirror.cvmat != cvmat)){
+				// discarded while in use
+				freed.add(cvmat);
+			}else{
+				mirror.inUse = false;
+				if(!valid)
+					remove(mirror, freed);
+			}
+			trim(freed);
+		}
+		free(freed);
+	}
+
+	/**
+	 * Drop the mirror of a pixel array, e.g. after writing into it.
+	 * @param pixels Pixel array of an ImageProcessor.
+	 */
+	public static void invalidate(Object pixels){
+		ArrayList<Mat> freed = new ArrayList<Mat>();
+		synchronized(MatMirror.class){
+			Mirror mirror = mirrors.get(pixels);
+			if(mirror != null)
+				remove(mirror, freed);
+		}
+		free(freed);
+	}
+
+	/**
+	 * Free all mirrors.
+	 * Mirrors currently in use are freed on release().
+	 */
+	public static void clear(){
+		ArrayList<Mat> freed = new ArrayList<Mat>();
+		synchronized(MatMirror.class){
+			for(Mirror mirror: new ArrayList<Mirror>(mirrors.values()))
+				remove(mirror, freed);
+		}
+		free(freed);
+	}
+
+	/**
+	 * Free all mirrors and stop listening to image updates.
+	 * Mirroring is disabled afterwards, acquire() returns null.
+	 * Called when the ClassLoader of this class is abandoned.
+	 */
+	public static void dispose(){
+		ImageStamps.removeListener(listener);
+		setMaxMirrorBytes(0);
+		clear();
+	}
+
+	/**
+	 * Set the upper bound of native memory kept by mirrors.
+	 * Shrinks the cache immediately if necessary.
+	 * @param bytes Byte budget for mirrors. Enter 0 to disable mirroring.
+	 */
+	public static void setMaxMirrorBytes(long bytes){
+		ArrayList<Mat> freed = new ArrayList<Mat>();
+		synchronized(MatMirror.class){
+			maxMirrorBytes = Math.max(0, bytes);
+			trim(freed);
+		}
+		free(freed);
+	}
+
+	public static synchronized long getMaxMirrorBytes(){
+		return maxMirrorBytes;
+	}
+
+	/**
+	 * Get native memory held by mirrors.
+	 * @return Native bytes of mirrored Mats.
+	 */
+	public static synchronized long getMirrorBytes(){
+		return mirrorBytes;
+	}
+
+	public static synchronized int getMirrorCount(){
+		return mirrors.size();
+	}
+
+	/**
+	 * Number of conversions saved by reusing mirrors.
+	 * @return Hit count.
+	 */
+	public static synchronized long getHits(){
+		return hits;
+	}
+
+	/**
+	 * Number of conversions of images which could be mirrored.
+	 * @return Miss count.
+	 */
+	public static synchronized long getMisses(){
+		return misses;
+	}
+
+	// drop mirrors of an image, all if stamp is -1, otherwise only outdated ones
+	protected static void discard(int imageID, long stamp){
+		ArrayList<Mat> freed = new ArrayList<Mat>();
+		synchronized(MatMirror.class){
+			for(Mirror mirror: new ArrayList<Mirror>(mirrors.values())){
+				if((mirror.imageID == imageID) && ((stamp == -1) || (mirror.stamp != stamp)))
+					remove(mirror, freed);
+			}
+		}
+		free(freed);
+	}
+
+	// evict least recently used mirrors not in use until within budget, caller holds lock
+	protected static void trim(ArrayList<Mat> freed){
+		Iterator<Mirror> it = mirrors.values().iterator();
+		while((mirrorBytes > maxMirrorBytes) && it.hasNext()){
+			Mirror mirror = it.next();
+			if(mirror.inUse)
+				continue;
+			it.remove();
+			mirrorBytes -= mirror.bytes;
+			freed.add(mirror.cvmat);
+		}
+	}
+
+	// take mirror out of the cache, its Mat is freed now or on release() if in use, caller holds lock
+	protected static void remove(Mirror mirror, ArrayList<Mat> freed){
+		mirrors.remove(mirror.pixels);
+		mirrorBytes -= mirror.bytes;
+		if(!mirror.inUse)
+			freed.add(mirror.cvmat);
+	}
+
+	// release native memory outside of the lock
+	protected static void free(ArrayList<Mat> freed){
+		for(Mat cvmat: freed)
+			cvmat.release();
+	}
+}
@@ -0,0 +1,180 @@
+package cvforgeconversion;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+/**
+ * Pool of native Mat buffers, keyed by rows, columns and type.
+ * Mats taken from the pool via acquire() must be handed back via release() once the call using them finishes.
+ * Returned buffers are kept for reuse until the pool exceeds its byte budget, in which case they are freed immediately.
+ * This keeps native memory deterministic instead of waiting for the GC to finalize Mats.
+ */
+public final class MatPool {
+
+	// default upper bound of native memory held by idle pooled Mats
+	public static final long DEFAULT_MAX_POOLED_BYTES = 256L << 20;
+
+	// idle Mats per key
+	protected static final HashMap<String, ArrayDeque<Mat>> pool = new HashMap<String, ArrayDeque<Mat>>();
+
+	protected static long maxPooledBytes = DEFAULT_MAX_POOLED_BYTES;
+	// native bytes held by idle Mats in the pool
+	protected static long pooledBytes = 0;
+	// native bytes of Mats handed out and not yet returned
+	protected static long liveBytes = 0;
+	// number of idle Mats in the pool
+	protected static int pooledCount = 0;
+
+	/**
+	 * Get a zero-initialized Mat of given size and type.
+	 * Reuses a pooled buffer if one is available.
+	 * @param rows Number of rows.
+	 * @param cols Number of columns.
+	 * @param type OpenCV type of Mat.
+	 * @return Mat of requested size and type. Must be returned by release().
+	 */
+	public static Mat acquire(int rows, int cols, int type){
+		return acquire(rows, cols, type, true);
+	}
+
+	/**
+	 * Get a Mat of given size and type.
+	 * Reuses a pooled buffer if one is available.
+	 * Skip initialization only if the caller overwrites every element, e.g. by CVForgeConverter.ij2cv().
+	 * @param rows Number of rows.
+	 * @param cols Number of columns.
+	 * @param type OpenCV type of Mat.
+	 * @param initialize Set true to zero the Mat. If false, the content is undefined.
+	 * @return Mat of requested size and type. Must be returned by release().
+	 */
+	public static Mat acquire(int rows, int cols, int type, boolean initialize){
+		Mat cvmat = take(rows, cols, type);
+		if(cvmat == null){
+			cvmat = initialize? Mat.zeros(rows, cols, type) : new Mat(rows, cols, type);
+		}else if(initialize){
+			cvmat.setTo(Scalar.all(0));
+		}
+		synchronized(MatPool.class){
+			liveBytes += byteSize(cvmat);
+		}
+		return cvmat;
+	}
+
+	/**
+	 * Hand a Mat back to the pool.
+	 * The Mat must not be used by the caller afterwards.
+	 * If the pool budget is exceeded, the native buffer is freed right away.
+	 * @param cvmat Mat obtained from acquire().
+	 */
+	public static void release(Mat cvmat){
+		if(cvmat == null)
+			return;
+
+		final long bytes = byteSize(cvmat);
+		synchronized(MatPool.class){
+			liveBytes = Math.max(0, liveBytes - bytes);
+			if(!cvmat.empty() && (pooledBytes + bytes <= maxPooledBytes)){
+				String key = key(cvmat.rows(), cvmat.cols(), cvmat.type());
+				ArrayDeque<Mat> idle = pool.get(key);
+				if(idle == null){
+					idle = new ArrayDeque<Mat>();
+					pool.put(key, idle);
+				}
+				idle.push(cvmat);
+				pooledBytes += bytes;
+				++pooledCount;
+				return;
+			}
+		}
+		cvmat.release();
+	}
+
+	/**
+	 * Free all idle Mats in the pool.
+	 * Mats currently in use are not affected.
+	 */
+	public static synchronized void clear(){
+		for(ArrayDeque<Mat> idle: pool.values()){
+			for(Mat cvmat: idle)
+				cvmat.release();
+		}
+		pool.clear();
+		pooledBytes = 0;
+		pooledCount = 0;
+	}
+
+	/**
+	 * Set the upper bound of native memory kept by idle Mats.
+	 * Shrinks the pool immediately if necessary.
+	 * @param bytes Byte budget for idle Mats. Enter 0 to disable pooling.
+	 */
+	public static synchronized void setMaxPooledBytes(long bytes){
+		maxPooledBytes = Math.max(0, bytes);
+		if(pooledBytes > maxPooledBytes)
+			clear();
+	}
+
+	/**
+	 * Get the byte budget of the pool.
+	 * @return Maximum number of native bytes kept by idle Mats.
+	 */
+	public static synchronized long getMaxPooledBytes(){
+		return maxPooledBytes;
+	}
+
+	/**
+	 * Get number of idle Mats in the pool.
+	 * @return Number of pooled Mats.
+	 */
+	public static synchronized int getPoolSize(){
+		return pooledCount;
+	}
+
+	/**
+	 * Get native memory held by idle Mats in the pool.
+	 * @return Native bytes of pooled Mats.
+	 */
+	public static synchronized long getPooledBytes(){
+		return pooledBytes;
+	}
+
+	/**
+	 * Get native memory of Mats handed out by the pool and not returned yet.
+	 * @return Native bytes of Mats in use.
+	 */
+	public static synchronized long getLiveBytes(){
+		return liveBytes;
+	}
+
+	/**
+	 * Compute the size of the native buffer of a Mat.
+	 * @param cvmat Mat to measure.
+	 * @return Size in bytes.
+	 */
+	public static long byteSize(Mat cvmat){
+		return cvmat.total() * cvmat.elemSize();
+	}
+
+	/**
+	 * Take an idle Mat of given properties out of the pool.
+	 * @return Pooled Mat, null if none available.
+	 */
+	protected static synchronized Mat take(int rows, int cols, int type){
+		ArrayDeque<Mat> idle = pool.get(key(rows, cols, type));
+		if((idle == null) || idle.isEmpty())
+			return null;
+
+		Mat cvmat = idle.pop();
+		pooledBytes -= byteSize(cvmat);
+		--pooledCount;
+		return cvmat;
+	}
+
+	// pool key of given Mat properties
+	protected static String key(int rows, int cols, int type){
+		return rows + "x" + cols + ":" + type;
+	}
+}
@@ -0,0 +1,146 @@
+package cvforgeconversion;
+
+import java.awt.Rectangle;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import org.opencv.core.Mat;
+
+import cvforge.CVForgeCache;
+import cvforge.Executer;
+import cvforge.Pipeline;
+
+/**
+ * Execution module for pipelines.
+ * Runs the steps of a compiled Pipeline back to back on native Mats.
+ * Input images are converted once when the pipeline starts, outputs are converted when it finishes.
+ * All intermediate Mats which are not output or cached are released afterwards.
+ */
+public final class PipelineExecuter {
+
+	/**
+	 * Call this method by reflection.
+	 * @param pipeline Compiled pipeline.
+	 * @throws Exception Exception thrown in case of invocation failure.
+	 */
+	public static void execute(Pipeline pipeline) throws Exception {
+		if(!pipeline.isCompiled())
+			throw new IllegalStateException("Pipeline is not compiled");
+
+		Object[] slots = new Object[pipeline.getSlotCount()];
+		ImageProcessor[] sources = new ImageProcessor[slots.length];
+		List<Mat> pooled = new ArrayList<Mat>();
+		// objects handed out to ImageJ or the cache, must not be released
+		IdentityHashMap<Object, Boolean> kept = new IdentityHashMap<Object, Boolean>();
+		try{
+			// conversion from imagej to opencv, once per input
+			for(Pipeline.Input in: pipeline.getInputs()){
+				ImageProcessor ip = in.resolve();
+				Rectangle roi = ip.getRoi();
+				Mat cvmat = MatPool.acquire(roi.height, roi.width, CVForgeConverter.toCvType(ip), false);
+				pooled.add(cvmat);
+				// copying a mirror of an unchanged image is cheaper than converting it again
+				Mat mirror = MatMirror.acquire(ip, roi);
+				if(mirror != null){
+					mirror.copyTo(cvmat);
+					MatMirror.release(ip, mirror, true);
+				}else{
+					CVForgeConverter.ij2cv(ip, cvmat, roi);
+				}
+				slots[in.getSlot().getIndex()] = cvmat;
+				sources[in.getSlot().getIndex()] = ip;
+			}
+
+			for(Pipeline.Step step: pipeline.getSteps())
+				run(step, slots);
+
+			for(Pipeline.Output out: pipeline.getOutputs()){
+				int slot = out.getSlot().getIndex();
+				Object value = slots[slot];
+				if(out.isCached()){
+					// pooled buffers are recycled, so never hand them out
+					if(pooled.contains(value))
+						value = ((Mat)value).clone();
+					CVForgeCache.add(out.getTarget(), value);
+					kept.put(value, Boolean.TRUE);
+				}else if(value instanceof Mat){
+					show((Mat)value, out.getTarget(), sources[slot]);
+				}else if(value != null){
+					CVForgeCache.add(out.getTarget(), value);
+					kept.put(value, Boolean.TRUE);
+				}
+			}
+		}finally{
+			release(slots, pooled, kept);
+		}
+	}
+
+	/**
+	 * Invoke a single step on the current slots.
+	 * Unassigned variables passed to Mat parameters receive a new Mat of the parameter type.
+	 * @param step Compiled step.
+	 * @param slots Values of the pipeline variables.
+	 * @throws Exception Exception thrown in case of invocation failure.
+	 */
+	protected static void run(Pipeline.Step step, Object[] slots) throws Exception {
+		Method m = step.getMethod();
+		Class[] params = m.getParameterTypes();
+		Object[] args = step.bindArguments();
+		for(int i=0; i<args.length; ++i){
+			if(!(args[i] instanceof Pipeline.Slot))
+				continue;
+			Pipeline.Slot slot = (Pipeline.Slot)args[i];
+			if(slots[slot.getIndex()] == null){
+				if(!Mat.class.isAssignableFrom(params[i]))
+					throw new IllegalStateException("Pipeline variable " + slot + " used before assignment in " + m.getName());
+				slots[slot.getIndex()] = params[i].getConstructor().newInstance();
+			}
+			args[i] = slots[slot.getIndex()];
+		}
+
+		Object callResult = Executer.invoke(m, args);
+		if(step.getResultSlot() != null)
+			slots[step.getResultSlot().getIndex()] = callResult;
+	}
+
+	/**
+	 * Convert Mat into ImageJ.
+	 * @param cvmat Mat to convert.
+	 * @param title Title of new image, null to write back into source.
+	 * @param source Input image of the variable, null if it is no input.
+	 */
+	protected static void show(Mat cvmat, String title, ImageProcessor source){
+		if(title == null){
+			if(source == null)
+				throw new IllegalStateException("Pipeline output without title must be an input variable");
+			// pixels outside of non-rectangular rois stay untouched
+			Rectangle roi = source.getRoi();
+			CVForgeConverter.cv2ij(cvmat, source, roi.x, roi.y, source.getMask());
+			MatMirror.invalidate(source.getPixels());
+			return;
+		}
+		ImageProcessor ip = CVForgeConverter.createCompatibleProcessor(cvmat);
+		CVForgeConverter.cv2ij(cvmat, ip);
+		new ImagePlus(title, ip).show();
+	}
+
+	// free all Mats of the run which were not handed out
+	protected static void release(Object[] slots, List<Mat> pooled, IdentityHashMap<Object, Boolean> kept){
+		IdentityHashMap<Object, Boolean> released = new IdentityHashMap<Object, Boolean>();
+		for(Mat cvmat: pooled){
+			released.put(cvmat, Boolean.TRUE);
+			MatPool.release(cvmat);
+		}
+		for(Object value: slots){
+			if((value instanceof Mat) && !kept.containsKey(value) && !released.containsKey(value)){
+				released.put(value, Boolean.TRUE);
+				((Mat)value).release();
+			}
+		}
+	}
+}
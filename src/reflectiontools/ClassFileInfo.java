@@ -0,0 +1,137 @@
+package reflectiontools;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class metadata read from a class file.
+ * Holds what is needed to list a class and its methods without loading it.
+ * @see ClassFileReader
+ */
+public class ClassFileInfo {
+
+	protected final String name;			// binary name, e.g. org.opencv.core.Mat
+	protected final String simpleName;		// as Class.getSimpleName()
+	protected final String superName;		// binary name of superclass, null for java.lang.Object
+	protected final String[] interfaces;	// binary names of implemented interfaces
+	protected final int modifiers;
+	protected final boolean constructable;	// true if a public constructor exists
+
+	// public methods declared by this class
+	protected final List<MethodInfo> declaredMethods;
+	// public methods including those inherited from known superclasses, see JarInspector.readClassInfos()
+	protected List<MethodInfo> methods;
+
+	public ClassFileInfo(String name, String simpleName, String superName, String[] interfaces, int modifiers, boolean constructable, List<MethodInfo> declaredMethods){
+		this.name = name;
+		this.simpleName = simpleName;
+		this.superName = superName;
+		this.interfaces = interfaces;
+		this.modifiers = modifiers;
+		this.constructable = constructable;
+		this.declaredMethods = declaredMethods;
+		this.methods = declaredMethods;
+	}
+
+	/**
+	 * Create class metadata with inheritance already resolved, e.g. when restoring stored metadata.
+	 * @param methods Public methods including inherited ones, see getMethods().
+	 */
+	public ClassFileInfo(String name, String simpleName, String superName, String[] interfaces, int modifiers, boolean constructable, List<MethodInfo> declaredMethods, List<MethodInfo> methods){
+		this(name, simpleName, superName, interfaces, modifiers, constructable, declaredMethods);
+		this.methods = methods;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public String getSimpleName(){
+		return simpleName;
+	}
+
+	/**
+	 * Package name of class.
+	 * @return Package name, empty String for default package.
+	 */
+	public String getPackageName(){
+		int dot = name.lastIndexOf('.');
+		return (dot < 0)? "" : name.substring(0, dot);
+	}
+
+	public String getSuperName(){
+		return superName;
+	}
+
+	public String[] getInterfaces(){
+		return interfaces;
+	}
+
+	public int getModifiers(){
+		return modifiers;
+	}
+
+	// check if class is an interface
+	public boolean isInterface(){
+		return Modifier.isInterface(modifiers);
+	}
+
+	/**
+	 * Check if class declares a public constructor, like Class.getConstructors().length != 0.
+	 * @return True if class has public constructor.
+	 */
+	public boolean isConstructable(){
+		return constructable;
+	}
+
+	/**
+	 * Check if class implements interface of given simple name.
+	 * Only directly implemented interfaces are considered, like Class.getInterfaces().
+	 * @param interfaceName Simple name of interface.
+	 * @return True if implemented.
+	 */
+	public boolean implementsInterface(String interfaceName){
+		for(String inter: interfaces){
+			String simple = inter.substring(Math.max(inter.lastIndexOf('.'), inter.lastIndexOf('$'))+1);
+			if(simple.equals(interfaceName))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Public methods declared by this class.
+	 * @return List of methods.
+	 */
+	public List<MethodInfo> getDeclaredMethods(){
+		return declaredMethods;
+	}
+
+	/**
+	 * Public methods of this class, including methods inherited from superclasses of the same jar.
+	 * Corresponds to Class.getMethods(), except for members of classes outside the jar.
+	 * @return List of methods.
+	 */
+	public List<MethodInfo> getMethods(){
+		return methods;
+	}
+
+	/**
+	 * Public static methods of this class, including inherited ones.
+	 * These are the methods callable by CVForge.
+	 * @return List of methods.
+	 */
+	public List<MethodInfo> getStaticMethods(){
+		List<MethodInfo> res = new ArrayList<MethodInfo>();
+		for(MethodInfo m: methods)
+			if(m.isStatic())
+				res.add(m);
+		return res;
+	}
+
+	@Override
+	public String toString(){
+		return name;
+	}
+}
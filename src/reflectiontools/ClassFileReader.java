@@ -0,0 +1,170 @@
+package reflectiontools;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reflection toolkit.
+ * Minimal class file parser. Reads constant pool, class header and method table without loading the class.
+ * Fields and all attributes except InnerClasses are skipped.
+ * @see <a href="https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html">JVM specification, chapter 4</a>
+ */
+public final class ClassFileReader {
+
+	protected static final int MAGIC = 0xCAFEBABE;
+
+	// constant pool tags
+	protected static final int UTF8 = 1;
+	protected static final int INTEGER = 3;
+	protected static final int FLOAT = 4;
+	protected static final int LONG = 5;
+	protected static final int DOUBLE = 6;
+	protected static final int CLASS = 7;
+	protected static final int STRING = 8;
+	protected static final int FIELDREF = 9;
+	protected static final int METHODREF = 10;
+	protected static final int INTERFACEMETHODREF = 11;
+	protected static final int NAMEANDTYPE = 12;
+	protected static final int METHODHANDLE = 15;
+	protected static final int METHODTYPE = 16;
+	protected static final int DYNAMIC = 17;
+	protected static final int INVOKEDYNAMIC = 18;
+	protected static final int MODULE = 19;
+	protected static final int PACKAGE = 20;
+
+	/**
+	 * Parse class file.
+	 * Only public methods are kept, constructors and static initializers are not listed as methods.
+	 * @param in Stream positioned at the start of the class file. Not closed by this method.
+	 * @return Metadata of the class.
+	 * @throws IOException If the stream is not a valid class file.
+	 */
+	public static ClassFileInfo read(InputStream in) throws IOException{
+		DataInputStream data = new DataInputStream(in);
+		if(data.readInt() != MAGIC)
+			throw new IOException("Not a class file");
+		data.readUnsignedShort();	// minor version
+		data.readUnsignedShort();	// major version
+
+		// constant pool, only utf8 strings and class references are kept
+		int poolSize = data.readUnsignedShort();
+		String[] utf8 = new String[poolSize];
+		int[] classRefs = new int[poolSize];
+		for(int i=1; i<poolSize; ++i){
+			int tag = data.readUnsignedByte();
+			switch(tag){
+				case UTF8:
+					utf8[i] = data.readUTF();
+					break;
+				case CLASS:
+					classRefs[i] = data.readUnsignedShort();
+					break;
+				case STRING: case METHODTYPE: case MODULE: case PACKAGE:
+					skip(data, 2);
+					break;
+				case METHODHANDLE:
+					skip(data, 3);
+					break;
+				case INTEGER: case FLOAT: case FIELDREF: case METHODREF: case INTERFACEMETHODREF:
+				case NAMEANDTYPE: case DYNAMIC: case INVOKEDYNAMIC:
+					skip(data, 4);
+					break;
+				case LONG: case DOUBLE:
+					// 8 byte constants take two pool entries
+					skip(data, 8);
+					++i;
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag " + tag);
+			}
+		}
+
+		int modifiers = data.readUnsignedShort();
+		int thisClass = data.readUnsignedShort();
+		int superClass = data.readUnsignedShort();
+		String name = className(utf8, classRefs, thisClass);
+		String superName = (superClass == 0)? null : className(utf8, classRefs, superClass);
+
+		String[] interfaces = new String[data.readUnsignedShort()];
+		for(int i=0; i<interfaces.length; ++i)
+			interfaces[i] = className(utf8, classRefs, data.readUnsignedShort());
+
+		// fields
+		int fieldCount = data.readUnsignedShort();
+		for(int i=0; i<fieldCount; ++i){
+			skip(data, 6);
+			skipAttributes(data);
+		}
+
+		// methods
+		boolean constructable = false;
+		List<MethodInfo> methods = new ArrayList<MethodInfo>();
+		int methodCount = data.readUnsignedShort();
+		for(int i=0; i<methodCount; ++i){
+			int access = data.readUnsignedShort();
+			String methodName = utf8[data.readUnsignedShort()];
+			String descriptor = utf8[data.readUnsignedShort()];
+			skipAttributes(data);
+
+			if(!Modifier.isPublic(access))
+				continue;
+			if(methodName.equals("<init>"))
+				constructable = true;
+			else if(!methodName.equals("<clinit>"))
+				methods.add(new MethodInfo(name, methodName, descriptor, access));
+		}
+
+		// class attributes, InnerClasses determines the simple name of nested classes
+		String simpleName = name.substring(Math.max(name.lastIndexOf('.'), name.lastIndexOf('$'))+1);
+		int attributeCount = data.readUnsignedShort();
+		for(int i=0; i<attributeCount; ++i){
+			String attributeName = utf8[data.readUnsignedShort()];
+			int length = data.readInt();
+			if(!"InnerClasses".equals(attributeName)){
+				skip(data, length);
+				continue;
+			}
+			int classes = data.readUnsignedShort();
+			for(int j=0; j<classes; ++j){
+				int inner = data.readUnsignedShort();
+				data.readUnsignedShort();	// outer class
+				int innerName = data.readUnsignedShort();
+				data.readUnsignedShort();	// inner class flags
+				if(inner == thisClass)
+					simpleName = (innerName == 0)? "" : utf8[innerName];
+			}
+		}
+
+		return new ClassFileInfo(name, simpleName, superName, interfaces, modifiers, constructable, methods);
+	}
+
+	// resolve class reference to binary name
+	protected static String className(String[] utf8, int[] classRefs, int index){
+		return utf8[classRefs[index]].replace('/', '.');
+	}
+
+	// skip attribute table
+	protected static void skipAttributes(DataInputStream data) throws IOException{
+		int count = data.readUnsignedShort();
+		for(int i=0; i<count; ++i){
+			data.readUnsignedShort();
+			skip(data, data.readInt());
+		}
+	}
+
+	// skip exactly n bytes
+	protected static void skip(DataInputStream data, int n) throws IOException{
+		while(n > 0){
+			int skipped = data.skipBytes(n);
+			if(skipped <= 0){
+				data.readByte();
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+}
@@ -1,11 +1,18 @@
 package reflectiontools;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.*;
 
 /**
@@ -14,6 +21,9 @@ import java.util.jar.*;
   */
 public class JarInspector {
 
+    // minimum share of classes per loading thread
+    protected static final int MINCLASSESPERTHREAD = 64;
+
     // filter for jar files
     public final static class JarFilter implements FileFilter{
         public boolean accept(File file){
@@ -111,15 +121,15 @@ public class JarInspector {
     
     /**
      * Loads classes from designated jar file. Allows use of custom ClassLoader.
+     * The jar is read once; classes are loaded in parallel, which only pays off if the ClassLoader is parallel capable.
      * @param path Path to jar.
      * @param baseLoader Base ClassLoader to be used for loading. 
-     * @return ArrayList containing loaded classes.
+     * @return ArrayList containing loaded classes in order of their jar entries.
      */
     public static List<Class> loadClassesFromJar(String path, ClassLoader baseLoader) throws Exception{
         // TODO loader dies at method exit without passing loaded class info 
     	
     	File file = new File(path);
-        ArrayList<Class> classes = new ArrayList<Class>();
         URLClassLoader loader;
         
         if(baseLoader == null)
@@ -127,28 +137,179 @@ public class JarInspector {
         else
         	loader = URLClassLoader.newInstance(new URL[]{file.toURI().toURL()}, baseLoader);
         
+        return loadClasses(getClassNames(file), loader);
+    }
+    
+    /**
+     * Get names of all classes contained in jar.
+     * @param file Jar file.
+     * @return Binary names of classes in order of their jar entries.
+     */
+    public static List<String> getClassNames(File file) throws Exception{
         JarFile jar = new JarFile(file);
-        List<JarEntry> entries = getJarEntries(jar, false);
         List<String> classEntries = new ArrayList<String>();
-        
-        for(JarEntry j: entries){
-            if(j.getName().endsWith("class")) {
-                String name = j.getName();
-                name = name.substring(0, name.length()-6);
-                classEntries.add(name.replace("/","."));
-            }
+        try{
+	        List<JarEntry> entries = getJarEntries(jar, false);
+	        for(JarEntry j: entries){
+	            if(j.getName().endsWith("class")) {
+	                String name = j.getName();
+	                name = name.substring(0, name.length()-6);
+	                classEntries.add(name.replace("/","."));
+	            }
+	        }
+        }finally{
+        	jar.close();
         }
-        
-        for(String name: classEntries)
-        	classes.add(loader.loadClass(name));
-        
-        return classes;
+        return classEntries;
+    }
+    
+    /**
+     * Load named classes in parallel.
+     * Each worker loads an interleaved share of the names, the order of the result matches the order of names.
+     * @param names Binary names of classes.
+     * @param loader ClassLoader to use.
+     * @return ArrayList containing loaded classes.
+     */
+    protected static List<Class> loadClasses(final List<String> names, final ClassLoader loader) throws Exception{
+    	final Class[] loaded = new Class[names.size()];
+    	final int threads = Math.min(Runtime.getRuntime().availableProcessors(), names.size()/MINCLASSESPERTHREAD);
+    	
+    	if(threads <= 1){
+    		for(int i=0; i<loaded.length; ++i)
+    			loaded[i] = loader.loadClass(names.get(i));
+    	}else{
+	    	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	    	try{
+	    		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(threads);
+	    		for(int t=0; t<threads; ++t){
+	    			final int offset = t;
+	    			tasks.add(new Callable<Object>(){
+	    				public Object call() throws Exception{
+	    					for(int i=offset; i<loaded.length; i+=threads)
+	    						loaded[i] = loader.loadClass(names.get(i));
+	    					return null;
+	    				}
+	    			});
+	    		}
+	    		for(Future<Object> f: pool.invokeAll(tasks)){
+	    			try{
+	    				f.get();
+	    			}catch(ExecutionException e){
+	    				Throwable cause = e.getCause();
+	    				if(cause instanceof Error)
+	    					throw (Error)cause;
+	    				throw (cause instanceof Exception)? (Exception)cause : e;
+	    			}
+	    		}
+	    	}finally{
+	    		pool.shutdown();
+	    	}
+    	}
+    	return new ArrayList<Class>(Arrays.asList(loaded));
     }
     
     // overloaded version
     public static List<Class> loadClassesFromJar(String path) throws Exception{
         return loadClassesFromJar(path, null);
     }
+
+    /**
+     * Read class metadata from designated jar file without loading any class.
+     * Inherited public methods are resolved for superclasses contained in the same jar.
+     * Entries below META-INF (e.g. versioned classes, module-info) are ignored.
+     * @param path Path to jar.
+     * @return List of class metadata in order of their jar entries.
+     */
+    public static List<ClassFileInfo> readClassInfos(String path) throws Exception{
+        JarFile jar = new JarFile(path);
+        List<ClassFileInfo> infos = new ArrayList<ClassFileInfo>();
+        try{
+	        for(JarEntry j: getJarEntries(jar, false)){
+	            String name = j.getName();
+	            if(!name.endsWith(".class") || name.startsWith("META-INF/") || name.endsWith("module-info.class"))
+	                continue;
+	            InputStream in = new BufferedInputStream(jar.getInputStream(j));
+	            try{
+	                infos.add(ClassFileReader.read(in));
+	            }finally{
+	                in.close();
+	            }
+	        }
+        }finally{
+        	jar.close();
+        }
+        resolveInheritance(infos);
+        return infos;
+    }
+    
+    /**
+     * Add public methods inherited from superclasses to each class, like Class.getMethods() does.
+     * Superclasses not contained in the list are ignored. Methods overridden or hidden by a subclass are not added.
+     * @param infos Class metadata of one jar.
+     */
+    protected static void resolveInheritance(List<ClassFileInfo> infos){
+        HashMap<String, ClassFileInfo> byName = new HashMap<String, ClassFileInfo>();
+        for(ClassFileInfo info: infos)
+        	byName.put(info.getName(), info);
+        
+        for(ClassFileInfo info: infos){
+        	ClassFileInfo parent = byName.get(info.getSuperName());
+        	if(parent == null)
+        		continue;
+        	
+        	List<MethodInfo> methods = new ArrayList<MethodInfo>(info.getDeclaredMethods());
+        	HashSet<String> signatures = new HashSet<String>();
+        	for(MethodInfo m: methods)
+        		signatures.add(parameterSignature(m));
+        	
+        	// walk up the hierarchy, guard against cycles in malformed jars
+        	HashSet<String> visited = new HashSet<String>();
+        	while((parent != null) && visited.add(parent.getName())){
+        		for(MethodInfo m: parent.getDeclaredMethods()){
+        			if(signatures.add(parameterSignature(m)))
+        				methods.add(m.inheritedBy(info.getName()));
+        		}
+        		parent = byName.get(parent.getSuperName());
+        	}
+        	info.methods = methods;
+        }
+    }
+    
+    // name and parameter types of method, a subclass method with equal signature hides the inherited one
+    protected static String parameterSignature(MethodInfo m){
+    	String desc = m.getDescriptor();
+    	return m.getName() + desc.substring(0, desc.indexOf(')')+1);
+    }
+    
+    /**
+     * Collect method metadata into hashmap, where keys denote the method signature as given by ClassInspector.infoString().
+     * No class is loaded, use MethodInfo.resolve() to obtain the actual method.
+     * @param infos Class metadata, e.g. from readClassInfos().
+     * @return HashMap containing method metadata.
+     */
+    public static HashMap<String, MethodInfo> generateMethodIndex(List<ClassFileInfo> infos){
+        HashMap<String, MethodInfo> methodIndex = new HashMap<String, MethodInfo>();
+        for(ClassFileInfo info: infos){
+            for(MethodInfo m: info.getMethods()){
+                methodIndex.put(m.infoString(), m);
+            }
+        }
+        return methodIndex;
+    }
+    
+    /**
+     * Collect names of classes with public constructors, where keys denote the simple class name.
+     * @param infos Class metadata, e.g. from readClassInfos().
+     * @return HashMap mapping simple names to binary names.
+     */
+    public static HashMap<String, String> generateConstructableClassNames(List<ClassFileInfo> infos){
+        HashMap<String, String> classNames = new HashMap<String, String>();
+        for(ClassFileInfo info: infos){
+        	if(info.isConstructable())
+        		classNames.put(info.getSimpleName(), info.getName());
+        }
+        return classNames;
+    }
     
     /**
      * Load methods into hashmap, where keys denote the method name.
@@ -157,8 +318,16 @@ public class JarInspector {
      * @return HashMap containing methods.
      */
     public static HashMap<String, Method> generateMethodCache(String path, ClassLoader loader) throws Exception {
+        return generateMethodCache(loadClassesFromJar(path, loader));
+    }
+    
+    /**
+     * Load methods into hashmap, where keys denote the method name.
+     * @param classes Classes already loaded, e.g. by loadClassesFromJar().
+     * @return HashMap containing methods.
+     */
+    public static HashMap<String, Method> generateMethodCache(List<Class> classes){
         HashMap<String, Method> methodCache = new HashMap<String, Method>();
-        List<Class> classes = loadClassesFromJar(path, loader);
         for (Class c: classes){
             Method[] methods = c.getMethods();
             for(Method m: methods){
@@ -181,8 +350,16 @@ public class JarInspector {
      * @return
      */
     public static HashMap<String, Class> generateClassCache(String path, ClassLoader loader) throws Exception {
+        return generateClassCache(loadClassesFromJar(path, loader));
+    }
+    
+    /**
+     * Load clases into hashmap, where keys denote the class name.
+     * @param classes Classes already loaded, e.g. by loadClassesFromJar().
+     * @return
+     */
+    public static HashMap<String, Class> generateClassCache(List<Class> classes){
         HashMap<String, Class> classCache = new HashMap<String, Class>();
-        List<Class> classes = loadClassesFromJar(path, loader);
         for (Class c: classes){
             String key = c.getSimpleName();
             classCache.put(key, c);
@@ -201,8 +378,16 @@ public class JarInspector {
      * @return
      */
     public static HashMap<String, Class> generateConstructableClassCache(String path, ClassLoader loader) throws Exception {
+        return generateConstructableClassCache(loadClassesFromJar(path, loader));
+    }
+    
+    /**
+     * Load classes with constructors to hashmap, where keys denote the class name.
+     * @param classes Classes already loaded, e.g. by loadClassesFromJar().
+     * @return
+     */
+    public static HashMap<String, Class> generateConstructableClassCache(List<Class> classes){
         HashMap<String, Class> classCache = new HashMap<String, Class>();
-        List<Class> classes = loadClassesFromJar(path, loader);
         for (Class c: classes){
         	if(c.getConstructors().length != 0){
         		String key = c.getSimpleName();
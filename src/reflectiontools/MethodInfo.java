@@ -0,0 +1,213 @@
+package reflectiontools;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Method metadata read from a class file.
+ * Describes a method without loading its class; resolve() creates the actual Method on demand.
+ */
+public class MethodInfo {
+
+	protected final String owner;		// binary name of class listing the method
+	protected final String name;
+	protected final String descriptor;	// JVM method descriptor, e.g. (Lorg/opencv/core/Mat;D)V
+	protected final int modifiers;
+
+	protected String[] parameterTypes;	// descriptors of parameter types
+	protected String returnType;		// descriptor of return type
+
+	/**
+	 * Create method metadata.
+	 * @param owner Binary name of the class the method is listed in.
+	 * @param name Method name.
+	 * @param descriptor JVM method descriptor.
+	 * @param modifiers Access flags as found in the class file.
+	 */
+	public MethodInfo(String owner, String name, String descriptor, int modifiers){
+		this.owner = owner;
+		this.name = name;
+		this.descriptor = descriptor;
+		this.modifiers = modifiers;
+		parseDescriptor();
+	}
+
+	/**
+	 * Create a copy of this method listed in another class, e.g. inherited by a subclass.
+	 * @param newOwner Binary name of the inheriting class.
+	 * @return Copy with changed owner.
+	 */
+	public MethodInfo inheritedBy(String newOwner){
+		return new MethodInfo(newOwner, name, descriptor, modifiers);
+	}
+
+	/**
+	 * Construct String containing method type and parameter types.
+	 * Equals ClassInspector.infoString() of the resolved method.
+	 * Nested types are shortened to the part after the last '$'.
+	 * @return String containing method type and parameter types.
+	 */
+	public String infoString(){
+		String result = simpleName(returnType);
+		result += " " + name + "(";
+		for(String paramType: parameterTypes)
+			result += simpleName(paramType) + ", ";
+		if(parameterTypes.length != 0)
+			result = result.substring(0, result.length()-2);
+		result += ")";
+		return result;
+	}
+
+	/**
+	 * Load the owning class and look up the described method.
+	 * The class is not initialized.
+	 * @param loader ClassLoader to use.
+	 * @return Resolved public method.
+	 * @throws ClassNotFoundException If owner or parameter types are not found.
+	 * @throws NoSuchMethodException If the method does not exist (anymore).
+	 */
+	public Method resolve(ClassLoader loader) throws ClassNotFoundException, NoSuchMethodException{
+		Class c = Class.forName(owner, false, loader);
+		Class[] params = new Class[parameterTypes.length];
+		for(int i=0; i<params.length; ++i)
+			params[i] = toClass(parameterTypes[i], loader);
+		return c.getMethod(name, params);
+	}
+
+	public String getOwner(){
+		return owner;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public String getDescriptor(){
+		return descriptor;
+	}
+
+	public int getModifiers(){
+		return modifiers;
+	}
+
+	public int getParameterCount(){
+		return parameterTypes.length;
+	}
+
+	/**
+	 * Descriptor of a parameter type.
+	 * @param index Position of the parameter.
+	 * @return Type descriptor, e.g. "I" or "Lorg/opencv/core/Mat;".
+	 */
+	public String getParameterType(int index){
+		return parameterTypes[index];
+	}
+
+	// check if method is static
+	public boolean isStatic(){
+		return Modifier.isStatic(modifiers);
+	}
+
+	// check if method is public
+	public boolean isPublic(){
+		return Modifier.isPublic(modifiers);
+	}
+
+	// check if method is void
+	public boolean isVoid(){
+		return returnType.equals("V");
+	}
+
+	/**
+	 * Split descriptor into parameter and return type descriptors.
+	 */
+	protected void parseDescriptor(){
+		List<String> params = new ArrayList<String>();
+		int i = 1;
+		while(descriptor.charAt(i) != ')'){
+			int end = typeEnd(descriptor, i);
+			params.add(descriptor.substring(i, end));
+			i = end;
+		}
+		parameterTypes = params.toArray(new String[params.size()]);
+		returnType = descriptor.substring(i+1);
+	}
+
+	/**
+	 * Find end of type descriptor starting at given position.
+	 * @param desc Descriptor String.
+	 * @param start Start of type.
+	 * @return Position after type.
+	 */
+	protected static int typeEnd(String desc, int start){
+		int i = start;
+		while(desc.charAt(i) == '[')
+			++i;
+		if(desc.charAt(i) == 'L')
+			i = desc.indexOf(';', i);
+		return i+1;
+	}
+
+	/**
+	 * Simple name of type descriptor, like Class.getSimpleName().
+	 * @param desc Type descriptor.
+	 * @return Simple name, e.g. "Mat" or "int[]".
+	 */
+	public static String simpleName(String desc){
+		int dims = 0;
+		while(desc.charAt(dims) == '[')
+			++dims;
+
+		String base;
+		char c = desc.charAt(dims);
+		if(c == 'L'){
+			base = desc.substring(dims+1, desc.length()-1);
+			base = base.substring(Math.max(base.lastIndexOf('/'), base.lastIndexOf('$'))+1);
+		}else{
+			base = primitive(c).getName();
+		}
+		for(int i=0; i<dims; ++i)
+			base += "[]";
+		return base;
+	}
+
+	/**
+	 * Resolve type descriptor to class.
+	 * @param desc Type descriptor.
+	 * @param loader ClassLoader to use for reference types.
+	 * @return Class of type.
+	 */
+	protected static Class toClass(String desc, ClassLoader loader) throws ClassNotFoundException{
+		switch(desc.charAt(0)){
+			case 'L':
+				return Class.forName(desc.substring(1, desc.length()-1).replace('/', '.'), false, loader);
+			case '[':
+				return Class.forName(desc.replace('/', '.'), false, loader);
+			default:
+				return primitive(desc.charAt(0));
+		}
+	}
+
+	// map primitive descriptor character to class
+	protected static Class primitive(char c){
+		switch(c){
+			case 'Z': return Boolean.TYPE;
+			case 'B': return Byte.TYPE;
+			case 'C': return Character.TYPE;
+			case 'S': return Short.TYPE;
+			case 'I': return Integer.TYPE;
+			case 'J': return Long.TYPE;
+			case 'F': return Float.TYPE;
+			case 'D': return Double.TYPE;
+			case 'V': return Void.TYPE;
+			default: throw new IllegalArgumentException("Unknown type descriptor " + c);
+		}
+	}
+
+	@Override
+	public String toString(){
+		return owner + "." + name + descriptor;
+	}
+}